@@ -1,25 +1,68 @@
 package fr.upem.net.tcp.http;
 
 import static java.lang.System.out;
-import static java.util.stream.Collectors.joining;
-import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.FileNotFoundException;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
 import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.URLDecoder;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
-import java.util.Optional;
-import java.util.function.BiConsumer;
-import java.util.function.Function;
-import java.util.function.Predicate;
+import java.util.Objects;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+import java.util.stream.IntStream;
 import java.util.stream.Stream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
 import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpContext;
 import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpPrincipal;
 import com.sun.net.httpserver.HttpServer;
 
 /**
@@ -57,53 +100,536 @@ public class JExpress {
     String param(String name);
 
     /**
-     * Returns the body of the request
+     * Returns the body of the request. Reading more bytes than the maximum body size fails with a
+     * 413 {@link RequestException}.
      * 
      * @return the body of the request
      */
     InputStream body();
 
     /**
-     * Returns the body of the request as a String.
+     * Returns the body of the request as a channel, with the same limit as {@link #body()}.
+     * 
+     * @return the body of the request
+     */
+    ReadableByteChannel bodyChannel();
+
+    /**
+     * Returns the body of the request as a String, decoded with the charset of the Content-Type
+     * or UTF-8.
      * 
      * @return the body of the request as a String.
      * @throws IOException if an I/O error occurs.
      */
     public String bodyText() throws IOException;
+
+    /**
+     * Returns the fields of a form, sent either as 'application/x-www-form-urlencoded' or as
+     * 'multipart/form-data'. For a multipart body, only the parts which are not files are
+     * returned. If a field is repeated, its first value is returned.
+     * 
+     * @return the fields of the form, empty if the body is not a form.
+     * @throws IOException if an I/O error occurs.
+     */
+    Map<String, String> form() throws IOException;
+
+    /**
+     * Returns the parts of a 'multipart/form-data' body. The body is read as a stream and the
+     * large parts are stored in temporary files which are deleted when the callback returns.
+     * 
+     * @return the parts of the body, empty if the body is not multipart.
+     * @throws IOException if an I/O error occurs, a {@link RequestException} if the body is
+     *         malformed.
+     */
+    List<Part> parts() throws IOException;
+
+    /**
+     * Get the value of a request header field.
+     * 
+     * @param field a header field name
+     * @return the first value of the header field or ""
+     */
+    String header(String field);
   }
 
-  private static Request request(HttpExchange exchange) {
-    return new Request() {
-      @Override
-      public String method() {
-        return exchange.getRequestMethod().toUpperCase();
+  /**
+   * An error detected while reading the request, answered with the given HTTP status (400, 413,
+   * etc) if the response has not been started.
+   */
+  public static final class RequestException extends IOException {
+    private static final long serialVersionUID = 1L;
+    private final int status;
+
+    /**
+     * Creates a request error.
+     * 
+     * @param status the HTTP status of the response.
+     * @param message the detail message.
+     */
+    public RequestException(int status, String message) {
+      super(message);
+      this.status = status;
+    }
+
+    /**
+     * @return the HTTP status of the response.
+     */
+    public int status() {
+      return status;
+    }
+  }
+
+  /**
+   * A part of a 'multipart/form-data' body. The content of a part is kept in memory if it is small
+   * enough, else in a temporary file deleted when the callback returns.
+   */
+  public static final class Part {
+    private final String name;
+    private final String filename;
+    private final String contentType;
+    private final long size;
+    private final byte[] content; // null if the content is in file
+    private final Path file;
+
+    private Part(String name, String filename, String contentType, long size, byte[] content, Path file) {
+      this.name = name;
+      this.filename = filename;
+      this.contentType = contentType;
+      this.size = size;
+      this.content = content;
+      this.file = file;
+    }
+
+    /**
+     * @return the name of the form field.
+     */
+    public String name() {
+      return name;
+    }
+
+    /**
+     * @return the name of the uploaded file or "" if the part is not a file.
+     */
+    public String filename() {
+      return filename;
+    }
+
+    /**
+     * @return the MIME type of the part, "text/plain" if not specified.
+     */
+    public String contentType() {
+      return contentType;
+    }
+
+    /**
+     * @return the size of the content in bytes.
+     */
+    public long size() {
+      return size;
+    }
+
+    /**
+     * Opens the content of the part.
+     * 
+     * @return a new input stream on the content.
+     * @throws IOException if an I/O error occurs.
+     */
+    public InputStream open() throws IOException {
+      return (content != null) ? new ByteArrayInputStream(content) : Files.newInputStream(file);
+    }
+
+    /**
+     * Returns the content of the part as a UTF-8 String.
+     * 
+     * @return the content of the part.
+     * @throws IOException if an I/O error occurs.
+     */
+    public String text() throws IOException {
+      return new String((content != null) ? content : Files.readAllBytes(file), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Saves the content of the part in a file. A temporary file is moved instead of being copied.
+     * 
+     * @param target the path of the file.
+     * @throws IOException if an I/O error occurs.
+     */
+    public void saveTo(Path target) throws IOException {
+      if (content != null) {
+        Files.write(target, content);
+        return;
       }
+      Files.move(file, target, StandardCopyOption.REPLACE_EXISTING);
+    }
+  }
 
-      @Override
-      public String path() {
-        return exchange.getRequestURI().getPath();
+  /**
+   * An input stream failing with a 413 {@link RequestException} if more than a maximum number of
+   * bytes are read or skipped.
+   */
+  static final class LimitedInputStream extends FilterInputStream {
+    private long remaining;
+
+    LimitedInputStream(InputStream in, long limit) {
+      super(in);
+      this.remaining = limit;
+    }
+
+    @Override
+    public int read() throws IOException {
+      int b = in.read();
+      if (b != -1) {
+        count(1);
       }
+      return b;
+    }
 
-      @Override
-      @SuppressWarnings("unchecked")
-      public String param(String name) {
-        return ((Map<String, String>) exchange.getAttribute("params")).getOrDefault(name, "");
+    @Override
+    public int read(byte[] bytes, int offset, int length) throws IOException {
+      int read = in.read(bytes, offset, length);
+      if (read > 0) {
+        count(read);
       }
+      return read;
+    }
 
-      @Override
-      public InputStream body() {
-        return exchange.getRequestBody();
+    @Override
+    public long skip(long n) throws IOException {
+      // never skips more than one byte past the limit
+      long skipped = in.skip(Math.min(n, remaining + 1));
+      if (skipped > 0) {
+        count(skipped);
       }
+      return skipped;
+    }
 
-      @Override
-      public String bodyText() throws IOException {
-        try (InputStream in = exchange.getRequestBody();
-            InputStreamReader reader = new InputStreamReader(in);
-            BufferedReader buffered = new BufferedReader(reader)) {
-          return buffered.lines().collect(joining("\n"));
+    private void count(long read) throws RequestException {
+      remaining -= read;
+      if (remaining < 0) {
+        throw new RequestException(413, "request body too large");
+      }
+    }
+  }
+
+  /**
+   * Streaming parser of a 'multipart/form-data' body. The parts are never entirely in memory, the
+   * content of a part is written in a temporary file once it is bigger than maxInMemory.
+   */
+  static final class MultipartParser {
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int MAX_HEADER_SIZE = 8192;
+
+    private final InputStream input;
+    private final byte[] delimiter; // CRLF--boundary
+    private final int maxInMemory;
+    private final List<Path> files;
+    private final byte[] buffer = new byte[BUFFER_SIZE];
+    private int position;
+    private int limit;
+
+    MultipartParser(InputStream input, String boundary, int maxInMemory, List<Path> files) {
+      this.input = input;
+      this.delimiter = ("\r\n--" + boundary).getBytes(StandardCharsets.ISO_8859_1);
+      this.maxInMemory = maxInMemory;
+      this.files = files;
+      // the first delimiter is not preceded by CRLF
+      buffer[0] = '\r';
+      buffer[1] = '\n';
+      limit = 2;
+    }
+
+    List<Part> parse() throws IOException {
+      do { // preamble
+        position = skipTo();
+      } while (!startsWithDelimiter());
+      position += delimiter.length;
+      ArrayList<Part> parts = new ArrayList<>();
+      for (;;) {
+        if (!fill(2)) {
+          throw malformed();
+        }
+        if (buffer[position] == '-' && buffer[position + 1] == '-') {
+          return parts; // close delimiter, the epilogue is ignored
+        }
+        readLine(); // transport padding and CRLF after the delimiter
+        Headers headers = new Headers();
+        int headerSize = 0;
+        for (String line = readLine(); !line.isEmpty(); line = readLine()) {
+          headerSize += line.length();
+          int colon = line.indexOf(':');
+          if (colon == -1 || headerSize > MAX_HEADER_SIZE) {
+            throw malformed();
+          }
+          headers.add(line.substring(0, colon).trim(), line.substring(colon + 1).trim());
         }
+        parts.add(readPart(headers));
       }
-    };
+    }
+
+    private Part readPart(Headers headers) throws IOException {
+      String disposition = headers.getFirst("Content-Disposition");
+      if (disposition == null) {
+        throw malformed();
+      }
+      String name = parameter(disposition, "name");
+      String filename = parameter(disposition, "filename");
+      String contentType = headers.getFirst("Content-Type");
+      ByteArrayOutputStream memory = new ByteArrayOutputStream();
+      Path file = null;
+      OutputStream output = memory;
+      try {
+        long size = 0;
+        for (;;) {
+          int end = skipTo();
+          size += end - position;
+          if (file == null && size > maxInMemory) {
+            file = Files.createTempFile("jexpress", ".part");
+            files.add(file);
+            output = Files.newOutputStream(file);
+            memory.writeTo(output);
+            memory = null;
+          }
+          output.write(buffer, position, end - position);
+          position = end;
+          if (startsWithDelimiter()) {
+            position += delimiter.length;
+            return new Part(name, (filename == null) ? "" : filename,
+                (contentType == null) ? "text/plain" : contentType, size,
+                (memory == null) ? null : memory.toByteArray(), file);
+          }
+        }
+      } finally {
+        if (file != null) {
+          output.close();
+        }
+      }
+    }
+
+    /**
+     * Skips the bytes of the buffer which cannot be the start of the delimiter, refilling the
+     * buffer if needed.
+     * 
+     * @return the index of the delimiter in the buffer or of the first byte which may start it.
+     */
+    private int skipTo() throws IOException {
+      if (!fill(delimiter.length)) {
+        throw malformed();
+      }
+      int last = limit - delimiter.length;
+      for (int i = position; i <= last; i++) {
+        if (buffer[i] == '\r' && matches(i)) {
+          return i;
+        }
+      }
+      return last + 1;
+    }
+
+    private boolean matches(int index) {
+      for (int j = 1; j < delimiter.length; j++) {
+        if (buffer[index + j] != delimiter[j]) {
+          return false;
+        }
+      }
+      return true;
+    }
+
+    private boolean startsWithDelimiter() throws IOException {
+      return fill(delimiter.length) && buffer[position] == '\r' && matches(position);
+    }
+
+    /**
+     * Ensures that at least size bytes are available in the buffer.
+     * 
+     * @return false if the end of the body is reached before.
+     */
+    private boolean fill(int size) throws IOException {
+      if (limit - position >= size) {
+        return true;
+      }
+      System.arraycopy(buffer, position, buffer, 0, limit - position);
+      limit -= position;
+      position = 0;
+      while (limit < size) {
+        int read = input.read(buffer, limit, buffer.length - limit);
+        if (read == -1) {
+          return false;
+        }
+        limit += read;
+      }
+      return true;
+    }
+
+    private String readLine() throws IOException {
+      StringBuilder line = new StringBuilder();
+      for (;;) {
+        if (!fill(2)) {
+          throw malformed();
+        }
+        if (buffer[position] == '\r' && buffer[position + 1] == '\n') {
+          position += 2;
+          return line.toString();
+        }
+        if (line.length() == MAX_HEADER_SIZE) {
+          throw malformed();
+        }
+        line.append((char) (buffer[position++] & 0xFF));
+      }
+    }
+
+    private static String parameter(String header, String name) {
+      for (String token : header.split(";")) {
+        int equal = token.indexOf('=');
+        if (equal != -1 && token.substring(0, equal).trim().equalsIgnoreCase(name)) {
+          String value = token.substring(equal + 1).trim();
+          if (value.length() >= 2 && value.startsWith("\"") && value.endsWith("\"")) {
+            value = value.substring(1, value.length() - 1);
+          }
+          return new String(value.getBytes(StandardCharsets.ISO_8859_1), StandardCharsets.UTF_8);
+        }
+      }
+      return null;
+    }
+
+    private static RequestException malformed() {
+      return new RequestException(400, "malformed multipart body");
+    }
+  }
+
+  /**
+   * The request of an exchange, the body being read at most once.
+   */
+  private static final class ExchangeRequest implements Request {
+    private final HttpExchange exchange;
+    private final Map<String, String> params;
+    private final long maxBodySize;
+    private final int maxInMemoryPartSize;
+    private final ArrayList<Path> files = new ArrayList<>(); // temporary files of the parts
+    private InputStream body;
+    private List<Part> parts;
+    private Map<String, String> form;
+
+    private ExchangeRequest(HttpExchange exchange, Map<String, String> params, long maxBodySize,
+        int maxInMemoryPartSize) {
+      this.exchange = exchange;
+      this.params = params;
+      this.maxBodySize = maxBodySize;
+      this.maxInMemoryPartSize = maxInMemoryPartSize;
+    }
+
+    @Override
+    public String method() {
+      return exchange.getRequestMethod().toUpperCase();
+    }
+
+    @Override
+    public String path() {
+      return exchange.getRequestURI().getPath();
+    }
+
+    @Override
+    public String param(String name) {
+      return params.getOrDefault(name, "");
+    }
+
+    @Override
+    public InputStream body() {
+      if (body == null) {
+        body = new LimitedInputStream(exchange.getRequestBody(), maxBodySize);
+      }
+      return body;
+    }
+
+    @Override
+    public ReadableByteChannel bodyChannel() {
+      return Channels.newChannel(body());
+    }
+
+    @Override
+    public String bodyText() throws IOException {
+      try (InputStream in = body()) {
+        return new String(in.readAllBytes(), charset());
+      }
+    }
+
+    private Charset charset() {
+      for (String token : header("Content-Type").split(";")) {
+        token = token.trim();
+        if (token.regionMatches(true, 0, "charset=", 0, "charset=".length())) {
+          try {
+            return Charset.forName(token.substring("charset=".length()).replace("\"", ""));
+          } catch (IllegalArgumentException e) {
+            break; // unknown charset
+          }
+        }
+      }
+      return StandardCharsets.UTF_8;
+    }
+
+    @Override
+    public Map<String, String> form() throws IOException {
+      if (form != null) {
+        return form;
+      }
+      LinkedHashMap<String, String> fields = new LinkedHashMap<>();
+      String type = header("Content-Type").toLowerCase();
+      if (type.startsWith("application/x-www-form-urlencoded")) {
+        for (String pair : bodyText().split("&")) {
+          if (pair.isEmpty()) {
+            continue;
+          }
+          int equal = pair.indexOf('=');
+          String name = URLDecoder.decode((equal == -1) ? pair : pair.substring(0, equal), StandardCharsets.UTF_8);
+          String value = (equal == -1) ? "" : URLDecoder.decode(pair.substring(equal + 1), StandardCharsets.UTF_8);
+          fields.putIfAbsent(name, value);
+        }
+      } else {
+        for (Part part : parts()) {
+          if (part.filename().isEmpty()) {
+            fields.putIfAbsent(part.name(), part.text());
+          }
+        }
+      }
+      form = fields;
+      return form;
+    }
+
+    @Override
+    public List<Part> parts() throws IOException {
+      if (parts != null) {
+        return parts;
+      }
+      String type = header("Content-Type");
+      String boundary = type.toLowerCase().startsWith("multipart/form-data")
+          ? MultipartParser.parameter(type, "boundary")
+          : null;
+      if (boundary == null || boundary.isEmpty()) {
+        parts = List.of();
+        return parts;
+      }
+      try (InputStream in = body()) {
+        parts = List.copyOf(new MultipartParser(in, boundary, maxInMemoryPartSize, files).parse());
+      }
+      return parts;
+    }
+
+    @Override
+    public String header(String field) {
+      String value = exchange.getRequestHeaders().getFirst(field);
+      return (value == null) ? "" : value;
+    }
+
+    /**
+     * Deletes the temporary files of the parts which have not been moved.
+     */
+    private void deleteFiles() {
+      for (Path file : files) {
+        try {
+          Files.deleteIfExists(file);
+        } catch (IOException e) {
+          System.err.println("cannot delete " + file + " " + e.getMessage());
+        }
+      }
+    }
   }
 
   /**
@@ -156,173 +682,1794 @@ public class JExpress {
     }
 
     /**
-     * Sends a JSON response with the correct 'Content-Type'.
+     * Sends a JSON response with the correct 'Content-Type'. The elements are encoded and sent
+     * with the chunked transfer encoding while the stream is consumed, so the whole array is never
+     * kept in memory.
      * 
      * @param stream a stream of Object, toString will be called on each of them.
      * @throws IOException if an I/O error occurs.
      */
     void json(Stream<?> stream) throws IOException;
 
-    /**
-     * Sends a JSON response with the correct 'Content-Type'.
-     * 
-     * @param json a JSON string
-     * @throws IOException if an I/O error occurs.
-     */
-    void json(String json) throws IOException;
+    /**
+     * Sends a JSON response with the correct 'Content-Type'.
+     * 
+     * @param json a JSON string
+     * @throws IOException if an I/O error occurs.
+     */
+    void json(String json) throws IOException;
+
+    /**
+     * Send a Text response. If the status is not defined 200 will be used. If the Content-Type is
+     * not defined, "text/html" will be used.
+     * 
+     * @param body the text of the response
+     * @throws IOException if an I/O error occurs.
+     */
+    void send(String body) throws IOException;
+
+    /**
+     * Send a file as response. The status is set to 200 if the file is found or 404 if not found.
+     * 
+     * @param path the path of the file;
+     * @throws IOException if an I/O error occurs.
+     */
+    void sendFile(Path path) throws IOException;
+  }
+
+  /**
+   * Metadata of a file sent by {@link Response#sendFile(Path)}, with its content if the file is
+   * small enough to be kept in memory.
+   */
+  private static final class FileInfo {
+    private final long size;
+    private final long lastModified;
+    private final String contentType;
+    private final String etag;
+    private final String lastModifiedText;
+    private final byte[] content; // null if the file is too big to be cached
+    private final ConcurrentHashMap<String, byte[]> encoded = new ConcurrentHashMap<>(); // by coding:level
+
+    private FileInfo(Path path, BasicFileAttributes attributes, byte[] content) throws IOException {
+      this.size = attributes.size();
+      this.lastModified = attributes.lastModifiedTime().toMillis();
+      String contentType = Files.probeContentType(path);
+      if (contentType == null) {
+        contentType = "application/octet-stream";
+      }
+      this.contentType = contentType.startsWith("text/") ? contentType + "; charset=utf-8" : contentType;
+      this.etag = "\"" + Long.toHexString(size) + "-" + Long.toHexString(lastModified) + "\"";
+      this.lastModifiedText = DateTimeFormatter.RFC_1123_DATE_TIME
+        .format(Instant.ofEpochMilli(lastModified).atOffset(ZoneOffset.UTC));
+      this.content = content;
+    }
+
+    /**
+     * Returns the content compressed with the given content coding and level, computed by the
+     * first call. The level is part of the key since the cache is shared by the applications.
+     * The compressed variants are not accounted in the size of the {@link FileCache}, they are
+     * smaller than the content for the compressible types.
+     */
+    private byte[] encoded(String coding, int level) {
+      return encoded.computeIfAbsent(coding + ":" + level, __ -> compress(content, coding, level));
+    }
+  }
+
+  /**
+   * A LRU cache of {@link FileInfo} bounded by the total size of the cached contents. An entry is
+   * reloaded when the size or the modification time of the file changes.
+   */
+  private static final class FileCache {
+    private final int maxFileSize;
+    private final long maxSize;
+    private long size;
+    private final LinkedHashMap<Path, FileInfo> infos = new LinkedHashMap<>(16, 0.75f, true);
+
+    private FileCache(int maxFileSize, long maxSize) {
+      this.maxFileSize = maxFileSize;
+      this.maxSize = maxSize;
+    }
+
+    private FileInfo get(Path path) throws IOException {
+      BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+      if (!attributes.isRegularFile()) {
+        throw new NoSuchFileException(path.toString());
+      }
+      synchronized (infos) {
+        FileInfo info = infos.get(path);
+        if (info != null && info.size == attributes.size()
+            && info.lastModified == attributes.lastModifiedTime().toMillis()) {
+          return info;
+        }
+      }
+      byte[] content = (attributes.size() <= maxFileSize) ? Files.readAllBytes(path) : null;
+      FileInfo info = new FileInfo(path, attributes, content);
+      synchronized (infos) {
+        FileInfo old = infos.put(path, info);
+        size += contentSize(info) - contentSize(old);
+        for (Iterator<FileInfo> it = infos.values().iterator(); size > maxSize && it.hasNext();) {
+          size -= contentSize(it.next());
+          it.remove();
+        }
+      }
+      return info;
+    }
+
+    private static long contentSize(FileInfo info) {
+      return (info == null || info.content == null) ? 0 : info.content.length;
+    }
+  }
+
+  private static final FileCache FILE_CACHE = new FileCache(64 * 1024, 16 * 1024 * 1024);
+  private static final ThreadLocal<byte[]> FILE_BUFFER = ThreadLocal.withInitial(() -> new byte[64 * 1024]);
+
+  /**
+   * Parses the Range header of a request for a file of the given size.
+   * 
+   * @return {start, end} (end excluded), null to send the whole file or an empty array if the range
+   *         cannot be satisfied. An invalid range, such as bytes=5-3, is ignored as required by
+   *         RFC 9110.
+   */
+  private static long[] range(String range, long size) {
+    if (range == null || !range.startsWith("bytes=") || range.indexOf(',') != -1) {
+      return null; // several ranges are allowed to be answered with the whole file
+    }
+    String spec = range.substring("bytes=".length()).trim();
+    int dash = spec.indexOf('-');
+    if (dash == -1) {
+      return null;
+    }
+    try {
+      long start;
+      long end;
+      if (dash == 0) { // suffix: the last bytes of the file
+        long suffix = Long.parseLong(spec.substring(1));
+        if (suffix < 0) {
+          return null;
+        }
+        start = Math.max(size - suffix, 0);
+        end = size;
+      } else {
+        start = Long.parseLong(spec.substring(0, dash));
+        long last = (dash == spec.length() - 1) ? Long.MAX_VALUE - 1 : Long.parseLong(spec.substring(dash + 1));
+        if (start < 0 || last < start) {
+          return null;
+        }
+        end = Math.min(last + 1, size);
+      }
+      if (start >= end) { // valid but not satisfiable
+        return new long[0];
+      }
+      return new long[] { start, end };
+    } catch (NumberFormatException e) {
+      return null;
+    }
+  }
+
+  /**
+   * The compression of the response bodies, negotiated with the 'Accept-Encoding' header of the
+   * request. Each content type is associated to a compression level from 1 (fast) to 9 (small),
+   * or to {@link #NONE} if the bodies of this type are already compressed (images, archives,
+   * etc). A body smaller than the minimum size is never compressed.
+   */
+  public static final class Compression {
+    /**
+     * The level of the content types which are never compressed.
+     */
+    public static final int NONE = -1;
+
+    private final int minSize;
+    private final HashMap<String, Integer> levels = new HashMap<>();
+
+    /**
+     * Creates a compression configuration compressing nothing.
+     * 
+     * @param minSize the size in bytes under which a body is not compressed.
+     */
+    public Compression(int minSize) {
+      if (minSize < 0) {
+        throw new IllegalArgumentException();
+      }
+      this.minSize = minSize;
+    }
+
+    /**
+     * Sets the compression level of a content type.
+     * 
+     * @param type a MIME type like "application/json" or all the subtypes of a type like "text/*".
+     * @param level a level between 1 and 9 or {@link #NONE}.
+     * @return the current configuration.
+     */
+    public Compression level(String type, int level) {
+      if (level != NONE && (level < Deflater.BEST_SPEED || level > Deflater.BEST_COMPRESSION)) {
+        throw new IllegalArgumentException("invalid level " + level);
+      }
+      levels.put(type.toLowerCase(), level);
+      return this;
+    }
+
+    /**
+     * Creates the default configuration: bodies of 1 KB or more of the textual types are
+     * compressed with the level 6.
+     * 
+     * @return a new compression configuration.
+     */
+    public static Compression defaults() {
+      return new Compression(1024).level("text/*", 6)
+        .level("application/json", 6)
+        .level("application/javascript", 6)
+        .level("application/xml", 6)
+        .level("image/svg+xml", 6);
+    }
+
+    private int level(String contentType) {
+      if (contentType == null) {
+        return NONE;
+      }
+      int semicolon = contentType.indexOf(';');
+      String type = ((semicolon == -1) ? contentType : contentType.substring(0, semicolon)).trim().toLowerCase();
+      Integer level = levels.get(type);
+      if (level == null) {
+        int slash = type.indexOf('/');
+        level = levels.get(((slash == -1) ? type : type.substring(0, slash)) + "/*");
+      }
+      return (level == null) ? NONE : level;
+    }
+  }
+
+  /**
+   * Writes the bytes from start (included) to end (excluded) of a file.
+   */
+  private static void copy(Path path, FileInfo info, long start, long end, OutputStream output) throws IOException {
+    if (info.content != null) {
+      output.write(info.content, (int) start, (int) (end - start));
+      return;
+    }
+    byte[] buffer = FILE_BUFFER.get();
+    ByteBuffer bb = ByteBuffer.wrap(buffer);
+    try (FileChannel channel = FileChannel.open(path)) {
+      for (long position = start; position < end;) {
+        bb.clear().limit((int) Math.min(buffer.length, end - position));
+        int read = channel.read(bb, position);
+        if (read == -1) {
+          throw new IOException("file truncated while sent " + path);
+        }
+        output.write(buffer, 0, read);
+        position += read;
+      }
+    }
+  }
+
+  /**
+   * Chooses the content coding of a response from the 'Accept-Encoding' header of the request,
+   * gzip being preferred to deflate when both have the same weight.
+   * 
+   * @return "gzip", "deflate" or null if the body must not be compressed.
+   */
+  private static String contentCoding(String acceptEncoding) {
+    if (acceptEncoding == null) {
+      return null;
+    }
+    double gzip = -1;
+    double deflate = -1;
+    double any = -1;
+    for (String token : acceptEncoding.split(",")) {
+      String[] parts = token.split(";");
+      double weight = 1;
+      for (int i = 1; i < parts.length; i++) {
+        String parameter = parts[i].trim();
+        if (parameter.startsWith("q=")) {
+          try {
+            weight = Double.parseDouble(parameter.substring(2));
+          } catch (NumberFormatException e) {
+            weight = 0;
+          }
+        }
+      }
+      switch (parts[0].trim().toLowerCase()) {
+      case "gzip", "x-gzip" -> gzip = weight;
+      case "deflate" -> deflate = weight;
+      case "*" -> any = weight;
+      default -> {
+        // not supported
+      }
+      }
+    }
+    if (gzip == -1) {
+      gzip = any;
+    }
+    if (deflate == -1) {
+      deflate = any;
+    }
+    if (gzip <= 0 && deflate <= 0) {
+      return null;
+    }
+    return (gzip >= deflate) ? "gzip" : "deflate";
+  }
+
+  /**
+   * Wraps an output stream to compress what is written with the given content coding. Closing
+   * the returned stream closes the wrapped one.
+   */
+  private static OutputStream encoder(OutputStream output, String coding, int level) throws IOException {
+    if (coding.equals("gzip")) {
+      return new GZIPOutputStream(output, 8192) {
+        {
+          def.setLevel(level);
+        }
+      };
+    }
+    return new DeflaterOutputStream(output) {
+      {
+        def.setLevel(level);
+      }
+    };
+  }
+
+  private static byte[] compress(byte[] content, String coding, int level) {
+    ByteArrayOutputStream output = new ByteArrayOutputStream(content.length / 4 + 64);
+    try (OutputStream encoder = encoder(output, coding, level)) {
+      encoder.write(content);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e); // not thrown by a ByteArrayOutputStream
+    }
+    return output.toByteArray();
+  }
+
+  private static Response response(HttpExchange exchange, Compression compression) {
+    return new Response() {
+      private int status = 200;
+
+      private final boolean head = exchange.getRequestMethod().equalsIgnoreCase("HEAD");
+
+      /**
+       * Sends the headers of the response. The {@link HttpServer} omits the Content-Length of a
+       * HEAD response and warns when it is given, so it is set as a header field instead. It also
+       * ends an exchange without response body as soon as the headers are sent, and closes the
+       * connection if the request body has not been read until then, so the body is drained first.
+       */
+      private void sendHeaders(int code, long length) throws IOException {
+        if (!(exchange instanceof NioServer.NioExchange)) {
+          if (head) {
+            if (length > 0) {
+              set("Content-Length", Long.toString(length));
+            }
+            length = -1;
+          }
+          if (length == -1) {
+            exchange.getRequestBody().close();
+          }
+        }
+        exchange.sendResponseHeaders(code, length);
+      }
+
+      /**
+       * Returns the body of the response, nothing is sent for a HEAD request.
+       */
+      private OutputStream body() {
+        return head ? OutputStream.nullOutputStream() : exchange.getResponseBody();
+      }
+
+      @Override
+      public Response status(int status) {
+        this.status = status;
+        return this;
+      }
+
+      @Override
+      public Response append(String field, String value) {
+        exchange.getResponseHeaders().add(field, value);
+        return this;
+      }
+
+      @Override
+      public Response set(String field, String value) {
+        exchange.getResponseHeaders().set(field, value);
+        return this;
+      }
+
+      @Override
+      public Response type(String type) {
+        return set("Content-Type", type);
+      }
+
+      @Override
+      public void json(Stream<?> stream) throws IOException {
+        type("application/json", "utf-8");
+        String coding = negotiate(-1);
+        if (coding != null) {
+          set("Content-Encoding", coding);
+        }
+        sendHeaders(status, 0); // length unknown, chunked transfer encoding
+        OutputStream output = body();
+        if (coding != null) {
+          output = encoder(output, coding, compression.level(exchange.getResponseHeaders().getFirst("Content-Type")));
+        }
+        try (Writer writer = new OutputStreamWriter(output, StandardCharsets.UTF_8)) {
+          writer.write('[');
+          Iterator<?> iterator = stream.iterator();
+          if (iterator.hasNext()) {
+            writer.write(iterator.next().toString());
+          }
+          while (iterator.hasNext()) {
+            writer.write(", ");
+            writer.write(iterator.next().toString());
+          }
+          writer.write(']');
+        }
+      }
+
+      @Override
+      public void json(String json) throws IOException {
+        type("application/json", "utf-8");
+        send(json);
+      }
+
+      @Override
+      public void send(String body) throws IOException {
+        byte[] content = body.getBytes("UTF8");
+        Headers headers = exchange.getResponseHeaders();
+        if (!headers.containsKey("Content-Type")) {
+          type("text/html", "utf-8");
+        }
+        String coding = negotiate(content.length);
+        if (coding != null) {
+          content = compress(content, coding, compression.level(headers.getFirst("Content-Type")));
+          set("Content-Encoding", coding);
+        }
+        sendHeaders(status, content.length);
+        try (OutputStream output = body()) {
+          output.write(content);
+        }
+      }
+
+      /**
+       * Negotiates the content coding of a body of the given size (-1 if unknown) with the current
+       * Content-Type, and adds the 'Vary' header if the body may be compressed.
+       * 
+       * @return the content coding or null if the body is sent uncompressed.
+       */
+      private String negotiate(long size) {
+        if (compression == null
+            || compression.level(exchange.getResponseHeaders().getFirst("Content-Type")) == Compression.NONE) {
+          return null;
+        }
+        append("Vary", "Accept-Encoding");
+        if (size != -1 && size < compression.minSize) {
+          return null;
+        }
+        return contentCoding(exchange.getRequestHeaders().getFirst("Accept-Encoding"));
+      }
+
+      @Override
+      public void sendFile(Path path) throws IOException {
+        FileInfo info;
+        try {
+          info = FILE_CACHE.get(path);
+        } catch (NoSuchFileException | FileNotFoundException e) {
+          String message = "Not Found " + e.getMessage();
+          System.err.println(message);
+          status(404).send("<html><h2>" + message + "</h2></html>");
+          return;
+        }
+        Headers headers = exchange.getResponseHeaders();
+        if (!headers.containsKey("Content-Type")) {
+          type(info.contentType);
+        }
+        Headers requestHeaders = exchange.getRequestHeaders();
+        String coding = negotiate(info.size);
+        if (requestHeaders.containsKey("Range")) {
+          coding = null; // the ranges are always served from the uncompressed file
+        }
+        String etag = (coding == null) ? info.etag : info.etag.substring(0, info.etag.length() - 1) + "-" + coding + "\"";
+        set("ETag", etag);
+        set("Last-Modified", info.lastModifiedText);
+        set("Accept-Ranges", "bytes");
+
+        String ifNoneMatch = requestHeaders.getFirst("If-None-Match");
+        String ifModifiedSince = requestHeaders.getFirst("If-Modified-Since");
+        if ((ifNoneMatch != null && (ifNoneMatch.contains(etag) || ifNoneMatch.trim().equals("*")))
+            || (ifNoneMatch == null && info.lastModifiedText.equals(ifModifiedSince))) {
+          sendHeaders(304, -1);
+          exchange.close();
+          return;
+        }
+
+        if (coding != null) {
+          sendEncodedFile(path, info, coding);
+          return;
+        }
+        long start = 0;
+        long end = info.size;
+        long[] range = range(requestHeaders.getFirst("Range"), info.size);
+        if (range != null && range.length == 0) {
+          set("Content-Range", "bytes */" + info.size);
+          sendHeaders(416, -1);
+          exchange.close();
+          return;
+        }
+        if (range != null) {
+          start = range[0];
+          end = range[1];
+          set("Content-Range", "bytes " + start + "-" + (end - 1) + "/" + info.size);
+        }
+        sendHeaders((range != null) ? 206 : status, (end == start) ? -1 : end - start);
+        try (OutputStream output = body()) {
+          copy(path, info, start, end, output);
+        }
+      }
+
+      /**
+       * Sends a compressed file. The compressed content of a small file is computed once and kept
+       * with its {@link FileInfo}, a big file is sent from a precompressed sibling file (file.gz) if
+       * it is up to date or compressed while it is sent.
+       */
+      private void sendEncodedFile(Path path, FileInfo info, String coding) throws IOException {
+        int level = compression.level(exchange.getResponseHeaders().getFirst("Content-Type"));
+        set("Content-Encoding", coding);
+        if (info.content != null) {
+          byte[] content = info.encoded(coding, level);
+          sendHeaders(status, content.length);
+          try (OutputStream output = body()) {
+            output.write(content);
+          }
+          return;
+        }
+        if (coding.equals("gzip")) {
+          Path sibling = path.resolveSibling(path.getFileName() + ".gz");
+          FileInfo precompressed = null;
+          try {
+            precompressed = FILE_CACHE.get(sibling);
+          } catch (NoSuchFileException | FileNotFoundException e) {
+            // no precompressed file
+          }
+          if (precompressed != null && precompressed.lastModified >= info.lastModified) {
+            sendHeaders(status, (precompressed.size == 0) ? -1 : precompressed.size);
+            try (OutputStream output = body()) {
+              copy(sibling, precompressed, 0, precompressed.size, output);
+            }
+            return;
+          }
+        }
+        sendHeaders(status, 0); // length unknown, chunked transfer encoding
+        try (OutputStream output = encoder(body(), coding, level)) {
+          copy(path, info, 0, info.size, output);
+        }
+      }
+    };
+  }
+
+  /**
+   * A callback called to process a HTTP request in order to create a HTTP response.
+   */
+  @FunctionalInterface
+  public interface Callback {
+    /**
+     * Called to process a HTTP request in order to create a HTTP response.
+     * 
+     * @param request a HTTP request
+     * @param response a HTTP response
+     * @throws IOException if an I/O occurs
+     */
+    public void accept(Request request, Response response) throws IOException;
+  }
+
+  /**
+   * A middleware called for every HTTP request before the callback of the matching route.
+   */
+  @FunctionalInterface
+  public interface Middleware {
+    /**
+     * Called to process a HTTP request. The middleware may answer itself or call next, possibly with
+     * a wrapped request or response, to continue with the next middleware or the route callback.
+     * 
+     * @param request a HTTP request
+     * @param response a HTTP response
+     * @param next the rest of the chain
+     * @throws IOException if an I/O occurs
+     */
+    public void accept(Request request, Response response, Callback next) throws IOException;
+  }
+
+  /**
+   * A middleware keeping the responses to the GET requests in memory. The key of a response is the
+   * path of the request and the values of some request headers. Only the responses with status 200
+   * sent with {@link Response#send(String)} or {@link Response#json(String)}, and without a
+   * 'Cache-Control: no-store' or 'private' header, are cached.
+   * 
+   * The entries expire after a time to live and the least recently used ones are evicted when there
+   * are too many entries.
+   */
+  public static final class ResponseCache implements Middleware {
+    private static final class Entry {
+      private final long expiration;
+      private final List<String[]> headers;
+      private final String body;
+
+      private Entry(long expiration, List<String[]> headers, String body) {
+        this.expiration = expiration;
+        this.headers = headers;
+        this.body = body;
+      }
+    }
+
+    /**
+     * A response recording what is sent in order to cache it.
+     */
+    private static final class RecordingResponse implements Response {
+      private final Response response;
+      private final ArrayList<String[]> headers = new ArrayList<>(); // {"set" or "append", field, value}
+      private int status = 200;
+      private boolean cacheable = true;
+      private String body;
+
+      private RecordingResponse(Response response) {
+        this.response = response;
+      }
+
+      @Override
+      public Response status(int status) {
+        this.status = status;
+        response.status(status);
+        return this;
+      }
+
+      @Override
+      public Response append(String field, String value) {
+        record("append", field, value);
+        response.append(field, value);
+        return this;
+      }
+
+      @Override
+      public Response set(String field, String value) {
+        record("set", field, value);
+        response.set(field, value);
+        return this;
+      }
+
+      private void record(String operation, String field, String value) {
+        if (field.equalsIgnoreCase("Cache-Control") && (value.contains("no-store") || value.contains("private"))) {
+          cacheable = false;
+        }
+        headers.add(new String[] { operation, field, value });
+      }
+
+      @Override
+      public Response type(String type) {
+        return set("Content-Type", type);
+      }
+
+      @Override
+      public void json(Stream<?> stream) throws IOException {
+        cacheable = false;
+        response.json(stream);
+      }
+
+      @Override
+      public void json(String json) throws IOException {
+        type("application/json", "utf-8");
+        send(json);
+      }
+
+      @Override
+      public void send(String body) throws IOException {
+        this.body = body;
+        response.send(body);
+      }
+
+      @Override
+      public void sendFile(Path path) throws IOException {
+        cacheable = false;
+        response.sendFile(path);
+      }
+    }
+
+    private final long timeToLive;
+    private final String[] varyHeaders;
+    private final LinkedHashMap<String, Entry> entries;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * Creates a response cache.
+     * 
+     * @param timeToLive the time in milliseconds a response stays in the cache.
+     * @param maxEntries the maximum number of responses in the cache.
+     * @param varyHeaders the request headers which are part of the key of a response.
+     */
+    public ResponseCache(long timeToLive, int maxEntries, String... varyHeaders) {
+      if (timeToLive <= 0 || maxEntries <= 0) {
+        throw new IllegalArgumentException();
+      }
+      this.timeToLive = timeToLive;
+      this.varyHeaders = varyHeaders.clone();
+      this.entries = new LinkedHashMap<>(16, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+          return size() > maxEntries;
+        }
+      };
+    }
+
+    @Override
+    public void accept(Request request, Response response, Callback next) throws IOException {
+      if (!request.method().equals("GET")) {
+        next.accept(request, response);
+        return;
+      }
+      StringBuilder builder = new StringBuilder(request.path());
+      for (String header : varyHeaders) {
+        builder.append('\n').append(request.header(header));
+      }
+      String key = builder.toString();
+      long now = System.currentTimeMillis();
+      Entry entry;
+      synchronized (entries) {
+        entry = entries.get(key);
+        if (entry != null && entry.expiration <= now) {
+          entries.remove(key);
+          entry = null;
+        }
+      }
+      if (entry != null) {
+        hits.incrementAndGet();
+        for (String[] header : entry.headers) {
+          if (header[0].equals("set")) {
+            response.set(header[1], header[2]);
+          } else {
+            response.append(header[1], header[2]);
+          }
+        }
+        response.status(200).send(entry.body);
+        return;
+      }
+      misses.incrementAndGet();
+      RecordingResponse recording = new RecordingResponse(response);
+      next.accept(request, recording);
+      if (recording.cacheable && recording.status == 200 && recording.body != null) {
+        synchronized (entries) {
+          entries.put(key, new Entry(now + timeToLive, List.copyOf(recording.headers), recording.body));
+        }
+      }
+    }
+
+    /**
+     * @return the number of requests answered from the cache.
+     */
+    public long hits() {
+      return hits.get();
+    }
+
+    /**
+     * @return the number of GET requests which reached the route callback.
+     */
+    public long misses() {
+      return misses.get();
+    }
+
+    /**
+     * @return the number of responses in the cache, expired ones included.
+     */
+    public int size() {
+      synchronized (entries) {
+        return entries.size();
+      }
+    }
+  }
+
+  /**
+   * A route registered with {@link JExpress#get(String, Callback)} and co. The parameters are
+   * recorded by index of the path segment they capture.
+   */
+  private static final class Route {
+    private final int order;
+    private final String[] paramNames;
+    private final int[] paramIndexes;
+    private final Callback callback;
+
+    private Route(int order, String[] parts, Callback callback) {
+      this.order = order;
+      this.paramIndexes = IntStream.range(0, parts.length).filter(i -> parts[i].startsWith(":")).toArray();
+      this.paramNames = Arrays.stream(paramIndexes).mapToObj(i -> parts[i].substring(1)).toArray(String[]::new);
+      this.callback = callback;
+    }
+
+    private Map<String, String> params(String[] components) {
+      HashMap<String, String> map = new HashMap<>();
+      for (int i = 0; i < paramIndexes.length; i++) {
+        map.put(paramNames[i], components[paramIndexes[i]]);
+      }
+      return map;
+    }
+  }
+
+  /**
+   * A node of the route trie, one level per path segment. A route matches any path starting with
+   * its segments, so every route met while walking down the trie is a candidate and the most
+   * recently registered one wins.
+   */
+  private static final class RouteNode {
+    private final HashMap<String, RouteNode> children = new HashMap<>();
+    private RouteNode paramChild;
+    private Route route;
+
+    private void add(String[] parts, Route route) {
+      RouteNode node = this;
+      for (String part : parts) {
+        if (part.startsWith(":")) {
+          if (node.paramChild == null) {
+            node.paramChild = new RouteNode();
+          }
+          node = node.paramChild;
+        } else {
+          node = node.children.computeIfAbsent(part, __ -> new RouteNode());
+        }
+      }
+      node.route = route;
+    }
+
+    private Route find(String[] components, int depth, Route best) {
+      if (route != null && (best == null || route.order > best.order)) {
+        best = route;
+      }
+      if (depth == components.length) {
+        return best;
+      }
+      RouteNode child = children.get(components[depth]);
+      if (child != null) {
+        best = child.find(components, depth + 1, best);
+      }
+      if (paramChild != null) {
+        best = paramChild.find(components, depth + 1, best);
+      }
+      return best;
+    }
+  }
+
+  /**
+   * The server backends which can run a JExpress application.
+   */
+  public enum Backend {
+    /**
+     * The {@link HttpServer} of the JDK.
+     */
+    JDK,
+    /**
+     * A server built on a {@link Selector}, supporting keep-alive and pipelining. The selector
+     * thread only reads and writes the connections, the callbacks are run by the executor given to
+     * {@link JExpress#listen(int, int, Executor, Backend)} or by a cached pool of threads.
+     */
+    NIO
+  }
+
+  /**
+   * Incremental parser of a HTTP request. The request line, the header fields and the body (fixed
+   * length or chunked) are read from whatever bytes are available.
+   */
+  private static final class RequestReader {
+    private enum State {
+      REQUEST_LINE, FIELDS, BODY, CHUNK_SIZE, CHUNK_DATA, CHUNK_END, TRAILER, DONE, ERROR
+    }
+
+    enum ProcessStatus {
+      DONE, REFILL, ERROR
+    }
+
+    private static final int MAX_LINE_SIZE = 8192;
+    private static final int MAX_FIELDS = 100;
+    private static final int MAX_ARRAY_SIZE = Integer.MAX_VALUE - 8;
+
+    private final int maxBodySize;
+    private State state = State.REQUEST_LINE;
+    private final StringBuilder line = new StringBuilder();
+    private boolean lastCR;
+    private String method;
+    private URI target;
+    private String protocol;
+    private Headers fields = new Headers();
+    private int fieldCount;
+    private byte[] body = new byte[0];
+    private int bodySize;
+    private int missing; // bytes left in the body or in the current chunk
+    private int errorStatus;
+
+    /**
+     * @param maxBodySize the maximum size of a body, bigger ones are rejected with the status 413.
+     */
+    private RequestReader(long maxBodySize) {
+      this.maxBodySize = (int) Math.min(maxBodySize, MAX_ARRAY_SIZE);
+    }
+
+    /**
+     * Process the bytes of bb.
+     * 
+     * The convention is that bb is in read-mode before and after the call. No byte of the next
+     * request is consumed.
+     */
+    private ProcessStatus process(ByteBuffer bb) {
+      if (state == State.DONE || state == State.ERROR) {
+        throw new IllegalStateException();
+      }
+      for (;;) {
+        switch (state) {
+          case REQUEST_LINE: {
+            String requestLine = readLine(bb);
+            if (requestLine == null) {
+              return status();
+            }
+            if (requestLine.isEmpty()) { // empty lines before a request are ignored
+              break;
+            }
+            String[] tokens = requestLine.split(" ");
+            if (tokens.length != 3) {
+              return error(400);
+            }
+            if (!tokens[2].startsWith("HTTP/1.")) {
+              return error(505);
+            }
+            try {
+              target = new URI(tokens[1]);
+            } catch (URISyntaxException e) {
+              return error(400);
+            }
+            method = tokens[0];
+            protocol = tokens[2];
+            state = State.FIELDS;
+            break;
+          }
+          case FIELDS: {
+            String field = readLine(bb);
+            if (field == null) {
+              return status();
+            }
+            if (!field.isEmpty()) {
+              int colon = field.indexOf(':');
+              if (colon <= 0 || ++fieldCount > MAX_FIELDS) {
+                return error(400);
+              }
+              fields.add(field.substring(0, colon).trim(), field.substring(colon + 1).trim());
+              break;
+            }
+            String transferEncoding = fields.getFirst("Transfer-Encoding");
+            if (transferEncoding != null && transferEncoding.equalsIgnoreCase("chunked")) {
+              state = State.CHUNK_SIZE;
+              break;
+            }
+            String contentLength = fields.getFirst("Content-Length");
+            long length;
+            try {
+              length = (contentLength == null) ? 0 : Long.parseLong(contentLength);
+            } catch (NumberFormatException e) {
+              return error(400);
+            }
+            if (length < 0) {
+              return error(400);
+            }
+            if (length > maxBodySize) { // rejected before reading the body
+              return error(413);
+            }
+            if (length == 0) {
+              state = State.DONE;
+              return ProcessStatus.DONE;
+            }
+            ensureCapacity((int) length);
+            missing = (int) length;
+            state = State.BODY;
+            break;
+          }
+          case BODY:
+            transfer(bb);
+            if (missing > 0) {
+              return ProcessStatus.REFILL;
+            }
+            state = State.DONE;
+            return ProcessStatus.DONE;
+          case CHUNK_SIZE: {
+            String sizeLine = readLine(bb);
+            if (sizeLine == null) {
+              return status();
+            }
+            int extension = sizeLine.indexOf(';');
+            if (extension != -1) {
+              sizeLine = sizeLine.substring(0, extension);
+            }
+            int size;
+            try {
+              size = Integer.parseInt(sizeLine.trim(), 16);
+            } catch (NumberFormatException e) {
+              return error(400);
+            }
+            if (size < 0) {
+              return error(400);
+            }
+            if (size > maxBodySize - bodySize) {
+              return error(413);
+            }
+            if (size == 0) {
+              state = State.TRAILER;
+              break;
+            }
+            ensureCapacity(size);
+            missing = size;
+            state = State.CHUNK_DATA;
+            break;
+          }
+          case CHUNK_DATA:
+            transfer(bb);
+            if (missing > 0) {
+              return ProcessStatus.REFILL;
+            }
+            state = State.CHUNK_END;
+            break;
+          case CHUNK_END: {
+            String empty = readLine(bb);
+            if (empty == null) {
+              return status();
+            }
+            if (!empty.isEmpty()) {
+              return error(400);
+            }
+            state = State.CHUNK_SIZE;
+            break;
+          }
+          case TRAILER: {
+            String trailer = readLine(bb);
+            if (trailer == null) {
+              return status();
+            }
+            if (trailer.isEmpty()) {
+              state = State.DONE;
+              return ProcessStatus.DONE;
+            }
+            break;
+          }
+          default:
+            throw new IllegalStateException("Unexpected state: " + state);
+        }
+      }
+    }
+
+    /**
+     * @return the line terminated by CRLF without the CRLF or null if the line is not complete.
+     */
+    private String readLine(ByteBuffer bb) {
+      while (bb.hasRemaining()) {
+        char c = (char) (bb.get() & 0xFF);
+        if (lastCR && c == '\n') {
+          lastCR = false;
+          line.setLength(line.length() - 1);
+          String result = line.toString();
+          line.setLength(0);
+          return result;
+        }
+        if (line.length() == MAX_LINE_SIZE) {
+          error(400);
+          return null;
+        }
+        lastCR = c == '\r';
+        line.append(c);
+      }
+      return null;
+    }
+
+    private ProcessStatus status() {
+      return (state == State.ERROR) ? ProcessStatus.ERROR : ProcessStatus.REFILL;
+    }
+
+    private ProcessStatus error(int status) {
+      errorStatus = status;
+      state = State.ERROR;
+      return ProcessStatus.ERROR;
+    }
+
+    private void ensureCapacity(int size) {
+      if (body.length - bodySize < size) {
+        body = Arrays.copyOf(body, Math.max(bodySize + size, (int) Math.min(2L * body.length, maxBodySize)));
+      }
+    }
+
+    private void transfer(ByteBuffer bb) {
+      int size = Math.min(bb.remaining(), missing);
+      bb.get(body, bodySize, size);
+      bodySize += size;
+      missing -= size;
+    }
+
+    private void reset() {
+      state = State.REQUEST_LINE;
+      line.setLength(0);
+      lastCR = false;
+      method = null;
+      target = null;
+      protocol = null;
+      fields = new Headers(); // the previous ones belong to the exchange
+      fieldCount = 0;
+      body = new byte[0];
+      bodySize = 0;
+      missing = 0;
+      errorStatus = 0;
+    }
+  }
+
+  /**
+   * A server running the pipeline of an application with a single selector thread. The selector
+   * thread reads the requests and writes the responses, the callbacks are run by worker threads,
+   * one exchange at a time per connection, so that a callback can wait for a slow client without
+   * stopping the other connections. A callback run by the selector thread itself, when the
+   * executor runs the rejected tasks in the caller thread, buffers its response instead.
+   */
+  private static final class NioServer {
+    private static final int BUFFER_SIZE = 8192;
+    private static final int FLUSH_THRESHOLD = 256 * 1024; // pending bytes making a callback wait
+    private static final int MAX_PENDING = 1024 * 1024; // pending bytes before reading stops
+
+    private final ServerSocketChannel serverSocketChannel;
+    private final Selector selector;
+    private final Pipeline pipeline;
+    private final Thread thread;
+    private final Executor workers;
+    private final LongSupplier maxBodySize;
+    private final ConcurrentLinkedQueue<Context> updates = new ConcurrentLinkedQueue<>(); // by workers
+    private volatile long stopDeadline; // 0 while running
+    private String date;
+    private long dateSecond;
+
+    /**
+     * The state of a connection with a client. The output (bbout, queue, pending) and the flags
+     * are shared with the worker running the exchange and guarded by the context.
+     */
+    private final class Context {
+      private final SelectionKey key;
+      private final SocketChannel sc;
+      private final ByteBuffer bbin = ByteBuffer.allocate(BUFFER_SIZE); // write-mode
+      private final ArrayDeque<ByteBuffer> queue = new ArrayDeque<>(); // buffers read-mode
+      private ByteBuffer bbout; // write-mode, not yet in the queue
+      private long pending; // bytes in queue and bbout
+      private final RequestReader reader = new RequestReader(maxBodySize.getAsLong());
+      private boolean closed; // client has nothing to send
+      private boolean closeAfterWrite;
+      private boolean busy; // a worker runs an exchange
+
+      private Context(SelectionKey key) {
+        this.key = key;
+        this.sc = (SocketChannel) key.channel();
+      }
+
+      /**
+       * Process the requests of bbin and give the first complete one to a worker, as long as not
+       * too many bytes are waiting to be sent.
+       * 
+       * The convention is that bbin is in write-mode before the call to process and after the
+       * call
+       */
+      private synchronized void processIn() {
+        bbin.flip();
+        try {
+          while (!busy && !closeAfterWrite && pending < MAX_PENDING && bbin.hasRemaining()) {
+            switch (reader.process(bbin)) {
+              case REFILL:
+                return;
+              case ERROR:
+                sendError(reader.errorStatus);
+                return;
+              case DONE:
+                NioExchange exchange = new NioExchange(this, reader);
+                reader.reset();
+                busy = true;
+                workers.execute(() -> run(exchange));
+                break;
+            }
+          }
+        } finally {
+          bbin.compact();
+        }
+      }
+
+      /**
+       * Runs the pipeline on exchange, on a worker thread.
+       */
+      private void run(NioExchange exchange) {
+        try {
+          pipeline.accept(exchange);
+          if (exchange.responseCode == -1) {
+            exchange.sendResponseHeaders(500, -1);
+          }
+          exchange.close();
+        } catch (IOException | RuntimeException e) {
+          e.printStackTrace();
+          synchronized (this) {
+            if (exchange.responseCode == -1) {
+              sendError(500);
+            } else {
+              closeAfterWrite = true; // the response is truncated
+            }
+          }
+        } finally {
+          synchronized (this) {
+            if (!exchange.keepAlive) {
+              closeAfterWrite = true;
+            }
+            pushOut();
+            busy = false;
+          }
+          requestUpdate();
+        }
+      }
+
+      private synchronized void closeAfterWrite() {
+        closeAfterWrite = true;
+      }
+
+      private void sendError(int status) {
+        append(("HTTP/1.1 " + status + " " + reason(status) + "\r\nContent-Length: 0\r\nConnection: close\r\n\r\n")
+          .getBytes(StandardCharsets.ISO_8859_1));
+        pushOut();
+        closeAfterWrite = true;
+      }
+
+      private void append(byte[] bytes) {
+        append(bytes, 0, bytes.length);
+      }
+
+      /**
+       * Adds bytes to the output.
+       */
+      private synchronized void append(byte[] bytes, int offset, int length) {
+        pending += length;
+        while (length > 0) {
+          if (bbout == null) {
+            bbout = ByteBuffer.allocate(Math.max(BUFFER_SIZE, length));
+          }
+          int size = Math.min(length, bbout.remaining());
+          bbout.put(bytes, offset, size);
+          offset += size;
+          length -= size;
+          if (!bbout.hasRemaining()) {
+            pushOut();
+          }
+        }
+      }
+
+      private synchronized void pushOut() {
+        if (bbout != null && bbout.position() != 0) {
+          queue.add(bbout.flip());
+        }
+        bbout = null;
+      }
+
+      /**
+       * If more than FLUSH_THRESHOLD bytes are pending, asks the selector thread to send them and
+       * waits until the client has read enough of them. Used by the workers to send large
+       * responses without keeping them in memory.
+       * 
+       * @throws IOException if the connection is closed meanwhile.
+       */
+      private synchronized void awaitDrain() throws IOException {
+        if (pending <= FLUSH_THRESHOLD || Thread.currentThread() == thread) {
+          return; // the selector thread cannot wait for itself
+        }
+        pushOut();
+        requestUpdate();
+        while (pending > FLUSH_THRESHOLD / 2 && sc.isOpen()) {
+          try {
+            wait();
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+          }
+        }
+        if (!sc.isOpen()) {
+          throw new IOException("connection closed");
+        }
+      }
+
+      /**
+       * Asks the selector thread to call {@link #update()}.
+       */
+      private void requestUpdate() {
+        updates.add(this);
+        selector.wakeup();
+      }
+
+      /**
+       * Writes as many queued bytes as possible and wakes up the worker waiting for them.
+       */
+      private synchronized void processOut() throws IOException {
+        while (!queue.isEmpty()) {
+          ByteBuffer bb = queue.peek();
+          pending -= sc.write(bb);
+          if (bb.hasRemaining()) {
+            break;
+          }
+          queue.remove();
+        }
+        if (pending <= FLUSH_THRESHOLD / 2) {
+          notifyAll();
+        }
+      }
+
+      /**
+       * Update the interestOps of the key looking at the input, the output queue and whether the
+       * connection must be closed.
+       */
+      private synchronized void updateInterestOps() {
+        int interestOps = 0;
+        if (!busy && !closed && !closeAfterWrite && pending < MAX_PENDING && bbin.hasRemaining()) {
+          interestOps |= SelectionKey.OP_READ;
+        }
+        if (!queue.isEmpty()) {
+          interestOps |= SelectionKey.OP_WRITE;
+        }
+        if (interestOps == 0 && !busy) {
+          silentlyClose();
+          return;
+        }
+        key.interestOps(interestOps);
+      }
+
+      /**
+       * @return true if no request is being read or answered.
+       */
+      private synchronized boolean isIdle() {
+        return !busy && queue.isEmpty() && reader.state == RequestReader.State.REQUEST_LINE
+            && reader.line.length() == 0;
+      }
+
+      /**
+       * Closes the connection and wakes up the worker waiting for the client, if any.
+       */
+      private synchronized void silentlyClose() {
+        try {
+          sc.close();
+        } catch (IOException e) {
+          // ignore exception
+        }
+        notifyAll();
+      }
+
+      private void doRead() throws IOException {
+        if (sc.read(bbin) == -1) {
+          closed = true;
+        }
+        processIn();
+        processOut();
+        updateInterestOps();
+      }
+
+      private void doWrite() throws IOException {
+        processOut();
+        processIn(); // pipelined requests may have been left in bbin
+        processOut();
+        updateInterestOps();
+      }
+
+      /**
+       * Takes into account the bytes and the end of an exchange given by a worker.
+       */
+      private void update() {
+        if (!key.isValid()) {
+          return;
+        }
+        try {
+          doWrite();
+        } catch (IOException e) {
+          silentlyClose();
+        } catch (RuntimeException e) {
+          e.printStackTrace(); // only this connection is closed
+          silentlyClose();
+        }
+      }
+    }
+
+    /**
+     * A {@link HttpExchange} on a connection of the server. The request is fully read before the
+     * exchange is created and the response is written in the output queue of the connection. As
+     * with the {@link HttpServer}, the body of a response to a HEAD request is not sent.
+     */
+    private final class NioExchange extends HttpExchange {
+      private final Context context;
+      private final String method;
+      private final URI uri;
+      private final String protocol;
+      private final Headers requestHeaders;
+      private InputStream requestBody;
+      private final Headers responseHeaders = new Headers();
+      private final HashMap<String, Object> attributes = new HashMap<>();
+      private final boolean keepAlive;
+      private int responseCode = -1;
+      private final BodyOutputStream body;
+      private OutputStream responseBody; // body or the stream given to setStreams
+
+      private NioExchange(Context context, RequestReader reader) {
+        this.context = context;
+        this.method = reader.method;
+        this.uri = reader.target;
+        this.protocol = reader.protocol;
+        this.requestHeaders = reader.fields;
+        this.requestBody = new ByteArrayInputStream(reader.body, 0, reader.bodySize);
+        String connection = requestHeaders.getFirst("Connection");
+        this.keepAlive = protocol.equals("HTTP/1.1") ? !"close".equalsIgnoreCase(connection)
+            : "keep-alive".equalsIgnoreCase(connection);
+        this.body = new BodyOutputStream(context);
+        this.responseBody = body;
+      }
+
+      @Override
+      public Headers getRequestHeaders() {
+        return requestHeaders;
+      }
+
+      @Override
+      public Headers getResponseHeaders() {
+        return responseHeaders;
+      }
+
+      @Override
+      public URI getRequestURI() {
+        return uri;
+      }
+
+      @Override
+      public String getRequestMethod() {
+        return method;
+      }
+
+      /**
+       * Not supported, the routes of the application are not registered as contexts.
+       * 
+       * @return null.
+       */
+      @Override
+      public HttpContext getHttpContext() {
+        return null;
+      }
+
+      @Override
+      public void close() {
+        try {
+          responseBody.close();
+        } catch (IOException e) {
+          context.closeAfterWrite();
+        }
+      }
+
+      @Override
+      public InputStream getRequestBody() {
+        return requestBody;
+      }
+
+      @Override
+      public OutputStream getResponseBody() {
+        return responseBody;
+      }
 
-    /**
-     * Send a Text response. If the status is not defined 200 will be used. If the Content-Type is
-     * not defined, "text/html" will be used.
-     * 
-     * @param body the text of the response
-     * @throws IOException if an I/O error occurs.
-     */
-    void send(String body) throws IOException;
+      @Override
+      public void sendResponseHeaders(int code, long length) throws IOException {
+        if (responseCode != -1) {
+          throw new IOException("headers already sent");
+        }
+        responseCode = code;
+        boolean noBody = length == -1 || code == 304 || code == 204 || code < 200;
+        StringBuilder builder = new StringBuilder(256);
+        builder.append("HTTP/1.1 ").append(code).append(' ').append(reason(code)).append("\r\n");
+        builder.append("Date: ").append(date()).append("\r\n");
+        for (Map.Entry<String, List<String>> entry : responseHeaders.entrySet()) {
+          for (String value : entry.getValue()) {
+            builder.append(entry.getKey()).append(": ").append(value).append("\r\n");
+          }
+        }
+        if (!noBody && length == 0) {
+          builder.append("Transfer-Encoding: chunked\r\n");
+        } else if (code != 304 && code != 204 && code >= 200) {
+          builder.append("Content-Length: ").append(noBody ? 0 : length).append("\r\n");
+        }
+        if (!keepAlive) {
+          builder.append("Connection: close\r\n");
+        }
+        builder.append("\r\n");
+        context.append(builder.toString().getBytes(StandardCharsets.ISO_8859_1));
+        body.start(noBody ? 0 : length, !noBody && length == 0, method.equals("HEAD"));
+      }
 
-    /**
-     * Send a file as response. The status is set to 200 if the file is found or 404 if not found.
-     * 
-     * @param path the path of the file;
-     * @throws IOException if an I/O error occurs.
-     */
-    void sendFile(Path path) throws IOException;
-  }
+      @Override
+      public InetSocketAddress getRemoteAddress() {
+        try {
+          return (InetSocketAddress) context.sc.getRemoteAddress();
+        } catch (IOException e) {
+          return null;
+        }
+      }
 
-  private static Response response(HttpExchange exchange) {
-    return new Response() {
       @Override
-      public Response status(int status) {
-        exchange.setAttribute("status", status);
-        return this;
+      public int getResponseCode() {
+        return responseCode;
       }
 
       @Override
-      public Response append(String field, String value) {
-        exchange.getResponseHeaders().add(field, value);
-        return this;
+      public InetSocketAddress getLocalAddress() {
+        try {
+          return (InetSocketAddress) context.sc.getLocalAddress();
+        } catch (IOException e) {
+          return null;
+        }
       }
 
       @Override
-      public Response set(String field, String value) {
-        exchange.getResponseHeaders().set(field, value);
-        return this;
+      public String getProtocol() {
+        return protocol;
       }
 
       @Override
-      public Response type(String type) {
-        return set("Content-Type", type);
+      public Object getAttribute(String name) {
+        return attributes.get(name);
       }
 
       @Override
-      public void json(Stream<?> stream) throws IOException {
-        json(stream.map(Object::toString).collect(joining(", ", "[", "]")));
+      public void setAttribute(String name, Object value) {
+        attributes.put(name, value);
       }
 
       @Override
-      public void json(String json) throws IOException {
-        type("application/json", "utf-8");
-        send(json);
+      public void setStreams(InputStream i, OutputStream o) {
+        if (i != null) {
+          requestBody = i;
+        }
+        if (o != null) {
+          responseBody = o;
+        }
       }
 
       @Override
-      public void send(String body) throws IOException {
-        byte[] content = body.getBytes("UTF8");
-        Integer statusAttr = (Integer) exchange.getAttribute("status");
-        int status = (statusAttr == null) ? 200 : statusAttr;
-        exchange.sendResponseHeaders(status, content.length);
-        Headers headers = exchange.getResponseHeaders();
-        if (!headers.containsKey("Content-Type")) {
-          type("text/html", "utf-8");
+      public HttpPrincipal getPrincipal() {
+        return null;
+      }
+    }
+
+    /**
+     * The body of a response, framed with a Content-Length or with the chunked transfer encoding
+     * once the headers are sent. The bytes written for a HEAD request are counted but not sent.
+     */
+    private static final class BodyOutputStream extends OutputStream {
+      private static final byte[] CRLF = { '\r', '\n' };
+      private static final byte[] LAST_CHUNK = { '0', '\r', '\n', '\r', '\n' };
+      private final Context context;
+      private boolean started;
+      private boolean chunked;
+      private boolean head;
+      private long remaining; // for a fixed length
+      private boolean closed;
+
+      private BodyOutputStream(Context context) {
+        this.context = context;
+      }
+
+      private void start(long length, boolean chunked, boolean head) {
+        this.started = true;
+        this.remaining = length;
+        this.chunked = chunked;
+        this.head = head;
+      }
+
+      @Override
+      public void write(int b) throws IOException {
+        write(new byte[] { (byte) b }, 0, 1);
+      }
+
+      @Override
+      public void write(byte[] bytes, int offset, int length) throws IOException {
+        if (closed) {
+          throw new IOException("stream closed");
         }
-        try (OutputStream output = exchange.getResponseBody()) {
-          output.write(content);
+        if (!started) {
+          throw new IOException("sendResponseHeaders must be called first");
+        }
+        if (length == 0) {
+          return;
+        }
+        if (chunked) {
+          if (head) {
+            return;
+          }
+          context.append((Integer.toHexString(length) + "\r\n").getBytes(StandardCharsets.ISO_8859_1));
+          context.append(bytes, offset, length);
+          context.append(CRLF);
+        } else {
+          if (length > remaining) {
+            throw new IOException("too many bytes to write");
+          }
+          remaining -= length;
+          if (head) {
+            return;
+          }
+          context.append(bytes, offset, length);
         }
+        context.awaitDrain();
       }
 
       @Override
-      public void sendFile(Path path) throws IOException {
-        try {
-          try (InputStream input = Files.newInputStream(path)) {
-            exchange.sendResponseHeaders(200, Files.size(path));
-            Headers headers = exchange.getResponseHeaders();
-            if (!headers.containsKey("Content-Type")) {
-              String contentType = Files.probeContentType(path);
-              if (contentType.startsWith("text/")) {
-                type(contentType, "utf-8");
-              } else {
-                type(contentType);
-              }
-            }
+      public void close() throws IOException {
+        if (closed) {
+          return;
+        }
+        closed = true;
+        if (chunked && !head) {
+          context.append(LAST_CHUNK);
+        } else if (remaining > 0 && !head) {
+          throw new IOException("insufficient bytes written");
+        }
+      }
+    }
 
-            try (OutputStream output = exchange.getResponseBody()) {
-              byte[] buffer = new byte[8192];
-              int read;
-              while ((read = input.read(buffer)) != -1) {
-                output.write(buffer, 0, read);
-              }
-            }
+    private NioServer(int port, int backlog, Executor executor, Pipeline pipeline, LongSupplier maxBodySize)
+        throws IOException {
+      this.pipeline = pipeline;
+      this.maxBodySize = maxBodySize;
+      this.workers = (executor == null) ? Executors.newCachedThreadPool() : executor;
+      serverSocketChannel = ServerSocketChannel.open();
+      serverSocketChannel.bind(new InetSocketAddress(port), backlog);
+      serverSocketChannel.configureBlocking(false);
+      selector = Selector.open();
+      serverSocketChannel.register(selector, SelectionKey.OP_ACCEPT);
+      thread = new Thread(this::launch, "JExpress-NIO-" + port);
+    }
+
+    private void launch() {
+      try {
+        while (!Thread.interrupted()) {
+          if (stopDeadline != 0 && isStopped()) {
+            return;
           }
-        } catch (FileNotFoundException e) {
-          String message = "Not Found " + e.getMessage();
-          System.err.println(message);
-          status(404).send("<html><h2>" + message + "</h2></html>");
+          selector.select(this::treatKey, (stopDeadline == 0) ? 0 : 10);
+          for (Context context = updates.poll(); context != null; context = updates.poll()) {
+            context.update();
+          }
+        }
+      } catch (IOException e) {
+        e.printStackTrace();
+      } finally {
+        for (SelectionKey key : selector.keys()) {
+          if (key.attachment() instanceof Context) {
+            ((Context) key.attachment()).silentlyClose(); // wakes up its worker
+          } else {
+            silentlyClose(key);
+          }
+        }
+        try {
+          selector.close();
+        } catch (IOException e) {
+          // ignore exception
         }
       }
-    };
-  }
+    }
 
-  /**
-   * A callback called to process a HTTP request in order to create a HTTP response.
-   */
-  @FunctionalInterface
-  public interface Callback {
     /**
-     * Called to process a HTTP request in order to create a HTTP response.
+     * Closes the idle connections once the server is asked to stop.
      * 
-     * @param request a HTTP request
-     * @param response a HTTP response
-     * @throws IOException if an I/O occurs
+     * @return true if every connection is closed or if the delay given to stop is elapsed.
      */
-    public void accept(Request request, Response response) throws IOException;
-  }
+    private boolean isStopped() {
+      boolean stopped = true;
+      for (SelectionKey key : selector.keys()) {
+        if (key.channel() == serverSocketChannel) {
+          silentlyClose(key);
+        } else if (key.isValid()) {
+          Context context = (Context) key.attachment();
+          if (context.isIdle()) {
+            context.silentlyClose();
+          } else {
+            stopped = false;
+          }
+        }
+      }
+      return stopped || System.nanoTime() - stopDeadline > 0;
+    }
 
-  private static Function<String, Optional<Map<String, String>>> matcher(String uri) {
-    String[] parts = uri.split("/");
-    int length = parts.length;
-    Predicate<String[]> predicate = cs -> cs.length >= length;
-    BiConsumer<String[], Map<String, String>> consumer = (_1, _2) ->
-    {
-      /* empty */ };
-    for (int i = 0; i < length; i++) {
-      int index = i;
-      String part = parts[i];
-      if (part.startsWith(":")) {
-        String key = part.substring(1);
-        BiConsumer<String[], Map<String, String>> c = consumer;
-        consumer = (cs, map) ->
-        {
-          c.accept(cs, map);
-          map.put(key, cs[index]);
-        };
-      } else {
-        predicate = predicate.and(cs -> part.equals(cs[index]));
+    private void treatKey(SelectionKey key) {
+      try {
+        if (key.isValid() && key.isAcceptable()) {
+          doAccept();
+        }
+      } catch (IOException ioe) {
+        // lambda call in select requires to tunnel IOException
+        throw new UncheckedIOException(ioe);
+      }
+      try {
+        if (key.isValid() && key.isWritable()) {
+          ((Context) key.attachment()).doWrite();
+        }
+        if (key.isValid() && key.isReadable()) {
+          ((Context) key.attachment()).doRead();
+        }
+      } catch (IOException e) {
+        ((Context) key.attachment()).silentlyClose();
+      } catch (RuntimeException e) {
+        e.printStackTrace(); // only this connection is closed
+        ((Context) key.attachment()).silentlyClose();
       }
     }
 
-    Predicate<String[]> p = predicate;
-    BiConsumer<String[], Map<String, String>> c = consumer;
-    return s ->
-    {
-      String[] components = s.split("/");
-      if (!p.test(components)) {
-        return Optional.empty();
+    private void doAccept() throws IOException {
+      SocketChannel sc = serverSocketChannel.accept();
+      if (sc == null) {
+        return;
       }
+      sc.configureBlocking(false);
+      // the responses of pipelined requests must not wait for the acknowledgment of the previous ones
+      sc.setOption(StandardSocketOptions.TCP_NODELAY, true);
+      SelectionKey clientKey = sc.register(selector, SelectionKey.OP_READ);
+      clientKey.attach(new Context(clientKey));
+    }
 
-      HashMap<String, String> map = new HashMap<>();
-      c.accept(components, map);
-      return Optional.of(map);
-    };
+    private static void silentlyClose(SelectionKey key) {
+      try {
+        key.channel().close();
+      } catch (IOException e) {
+        // ignore exception
+      }
+    }
+
+    private synchronized String date() {
+      long second = System.currentTimeMillis() / 1000;
+      if (second != dateSecond) {
+        dateSecond = second;
+        date = DateTimeFormatter.RFC_1123_DATE_TIME.format(Instant.ofEpochSecond(second).atOffset(ZoneOffset.UTC));
+      }
+      return date;
+    }
+
+    private void start() {
+      thread.start();
+    }
+
+    private void stop(int delay) {
+      stopDeadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(delay) | 1; // never 0
+      selector.wakeup();
+      try {
+        thread.join();
+      } catch (InterruptedException e) {
+        thread.interrupt();
+        Thread.currentThread().interrupt();
+      }
+      if (workers instanceof ExecutorService) {
+        awaitTermination((ExecutorService) workers, stopDeadline);
+      }
+    }
+
+    private static String reason(int status) {
+      switch (status) {
+        case 200:
+          return "OK";
+        case 201:
+          return "Created";
+        case 204:
+          return "No Content";
+        case 206:
+          return "Partial Content";
+        case 301:
+          return "Moved Permanently";
+        case 302:
+          return "Found";
+        case 304:
+          return "Not Modified";
+        case 400:
+          return "Bad Request";
+        case 404:
+          return "Not Found";
+        case 413:
+          return "Payload Too Large";
+        case 416:
+          return "Range Not Satisfiable";
+        case 500:
+          return "Internal Server Error";
+        case 505:
+          return "HTTP Version Not Supported";
+        default:
+          return "";
+      }
+    }
   }
 
   private JExpress() {
@@ -342,16 +2489,107 @@ public class JExpress {
     void accept(HttpExchange exchange) throws IOException;
   }
 
-  private static Pipeline asPipeline(Callback callback) {
-    return exchange -> callback.accept(request(exchange), response(exchange));
-  }
-
-  private Pipeline pipeline = asPipeline((request, response) ->
+  private final Callback notFound = (request, response) ->
   {
     String message = "no match " + request.method() + " " + request.path();
     System.err.println(message);
     response.status(404).send("<html><h2>" + message + "</h2></html>");
-  });
+  };
+
+  private final HashMap<String, RouteNode> routes = new HashMap<>(); // by HTTP method
+  private int routeCount;
+  private final ArrayList<Middleware> middlewares = new ArrayList<>();
+  private HttpServer server;
+  private Executor executor;
+  private NioServer nioServer;
+  private Compression compression = Compression.defaults();
+  private long maxBodySize = 16 * 1024 * 1024;
+  private int maxInMemoryPartSize = 64 * 1024;
+
+  private final Pipeline pipeline = exchange ->
+  {
+    String method = exchange.getRequestMethod().toUpperCase();
+    RouteNode root = routes.get(method.equals("HEAD") ? "GET" : method); // HEAD is answered as GET
+    String[] components = exchange.getRequestURI().getPath().split("/");
+    Route route = (root == null) ? null : root.find(components, 0, null);
+    Callback callback = (route == null) ? notFound : route.callback;
+    for (int i = middlewares.size() - 1; i >= 0; i--) {
+      Middleware middleware = middlewares.get(i);
+      Callback next = callback;
+      callback = (request, response) -> middleware.accept(request, response, next);
+    }
+    Map<String, String> params = (route == null) ? Map.of() : route.params(components);
+    Response response = response(exchange, compression);
+    String contentLength = exchange.getRequestHeaders().getFirst("Content-Length");
+    try {
+      if (contentLength != null && Long.parseLong(contentLength.trim()) > maxBodySize) {
+        // rejected before reading the body
+        response.set("Connection", "close").status(413).send("<html><h2>Payload Too Large</h2></html>");
+        return;
+      }
+    } catch (NumberFormatException e) {
+      response.set("Connection", "close").status(400).send("<html><h2>Bad Request</h2></html>");
+      return;
+    }
+    ExchangeRequest request = new ExchangeRequest(exchange, params, maxBodySize, maxInMemoryPartSize);
+    try {
+      callback.accept(request, response);
+    } catch (RequestException e) {
+      if (exchange.getResponseCode() != -1) {
+        throw e; // the response is already started
+      }
+      response.set("Connection", "close").status(e.status()).send("<html><h2>" + e.getMessage() + "</h2></html>");
+    } finally {
+      request.deleteFiles();
+    }
+  };
+
+  /**
+   * Adds a middleware called for every HTTP request, in the order of registration, before the
+   * callback of the matching route.
+   * 
+   * @param middleware a middleware, for instance a {@link ResponseCache}.
+   */
+  public void use(Middleware middleware) {
+    middlewares.add(Objects.requireNonNull(middleware));
+  }
+
+  /**
+   * Sets how the response bodies are compressed, by default with {@link Compression#defaults()}.
+   * 
+   * @param compression a compression configuration or null to never compress the responses.
+   */
+  public void compression(Compression compression) {
+    this.compression = compression;
+  }
+
+  /**
+   * Sets the maximum size of a request body, 16 MB by default. A request announcing a bigger
+   * Content-Length is rejected with the status 413 before its body is read, a chunked body is
+   * rejected when the limit is reached, with both backends. The {@link Backend#NIO} backend
+   * keeps the bodies in memory, so it never accepts more than 2 GB.
+   * 
+   * @param maxBodySize the maximum size in bytes.
+   */
+  public void maxBodySize(long maxBodySize) {
+    if (maxBodySize < 0) {
+      throw new IllegalArgumentException();
+    }
+    this.maxBodySize = maxBodySize;
+  }
+
+  /**
+   * Sets the size above which the content of a part of a multipart body is stored in a temporary
+   * file instead of in memory, 64 KB by default.
+   * 
+   * @param maxInMemoryPartSize a size in bytes.
+   */
+  public void maxInMemoryPartSize(int maxInMemoryPartSize) {
+    if (maxInMemoryPartSize < 0) {
+      throw new IllegalArgumentException();
+    }
+    this.maxInMemoryPartSize = maxInMemoryPartSize;
+  }
 
   /**
    * Routes an HTTP request if the HTTP method is GET.
@@ -397,24 +2635,35 @@ public class JExpress {
     method("DELETE", path, callback);
   }
 
-  private void method(String method, String path, Callback callback) {
-    Pipeline oldPipeline = this.pipeline;
-    Function<String, Optional<Map<String, String>>> matcher = matcher(path);
-    Pipeline stub = asPipeline(callback);
-    this.pipeline = exchange ->
+  /**
+   * Serves the files of a directory for the HTTP GET requests whose path starts with prefix. For
+   * instance with {@code serveStatic("/assets", Path.of("www"))}, a request on
+   * /assets/css/main.css is answered with the file www/css/main.css.
+   * 
+   * @param prefix a string representation of a path without interpolation.
+   * @param root the directory containing the files.
+   */
+  public void serveStatic(String prefix, Path root) {
+    Path base = root.toAbsolutePath().normalize();
+    get(prefix, (request, response) ->
     {
-      exchange.setAttribute("status", null);
-      Optional<Map<String, String>> paramsOpt = Optional
-        .of(exchange)
-        .filter(req -> exchange.getRequestMethod().equalsIgnoreCase(method))
-        .flatMap(matcher.compose(_exchange -> _exchange.getRequestURI().getPath()));
-      if (paramsOpt.isPresent()) {
-        exchange.setAttribute("params", paramsOpt.get());
-        stub.accept(exchange);
-      } else {
-        oldPipeline.accept(exchange);
+      String relative = request.path().substring(Math.min(prefix.length(), request.path().length()));
+      while (relative.startsWith("/")) {
+        relative = relative.substring(1);
       }
-    };
+      Path file = base.resolve(relative).normalize();
+      if (!file.startsWith(base)) {
+        response.status(404).send("<html><h2>Not Found " + request.path() + "</h2></html>");
+        return;
+      }
+      response.sendFile(file);
+    });
+  }
+
+  private void method(String method, String path, Callback callback) {
+    String[] parts = path.split("/");
+    Route route = new Route(routeCount++, parts, callback);
+    routes.computeIfAbsent(method, __ -> new RouteNode()).add(parts, route);
   }
 
   /*
@@ -422,13 +2671,44 @@ public class JExpress {
    * 
    */
   /**
-   * Starts a server on the given port and listen for connections.
+   * Starts a server on the given port and listen for connections. The callbacks are run by the
+   * single dispatcher thread of the server.
    * 
    * @param port a TCP port
    * @throws IOException if an I/O error occurs.
    */
   public void listen(int port) throws IOException {
-    HttpServer server = HttpServer.create(new InetSocketAddress(port), 0);
+    listen(port, 0, null);
+  }
+
+  /**
+   * Starts a server on the given port and listen for connections, the callbacks being run by the
+   * given executor.
+   * 
+   * @param port a TCP port
+   * @param executor the executor running the callbacks, see {@link #boundedExecutor(int)} and
+   *        {@link #virtualThreadExecutor()}.
+   * @throws IOException if an I/O error occurs.
+   */
+  public void listen(int port, Executor executor) throws IOException {
+    listen(port, 0, executor);
+  }
+
+  /**
+   * Starts a server on the given port and listen for connections, the callbacks being run by the
+   * given executor.
+   * 
+   * @param port a TCP port
+   * @param backlog the maximum number of pending connections, 0 for the system default.
+   * @param executor the executor running the callbacks or null to run them on the dispatcher
+   *        thread of the server.
+   * @throws IOException if an I/O error occurs.
+   */
+  public void listen(int port, int backlog, Executor executor) throws IOException {
+    if (server != null || nioServer != null) {
+      throw new IllegalStateException("already listening");
+    }
+    server = HttpServer.create(new InetSocketAddress(port), backlog);
     server.createContext("/", exchange ->
     {
       try {
@@ -439,10 +2719,115 @@ public class JExpress {
         throw e;
       }
     });
-    server.setExecutor(null);
+    server.setExecutor(executor);
+    this.executor = executor;
     server.start();
   }
 
+  /**
+   * Starts a server on the given port and listen for connections using the given backend.
+   * 
+   * @param port a TCP port
+   * @param backend the backend of the server, {@link Backend#JDK} is the same as
+   *        {@link #listen(int)}.
+   * @throws IOException if an I/O error occurs.
+   */
+  public void listen(int port, Backend backend) throws IOException {
+    listen(port, 0, null, backend);
+  }
+
+  /**
+   * Starts a server on the given port and listen for connections using the given backend, the
+   * callbacks being run by the given executor.
+   * 
+   * @param port a TCP port
+   * @param backlog the maximum number of pending connections, 0 for the system default.
+   * @param executor the executor running the callbacks or null to run them on the dispatcher
+   *        thread of the {@link Backend#JDK} server or on a cached pool of threads with the
+   *        {@link Backend#NIO} server.
+   * @param backend the backend of the server.
+   * @throws IOException if an I/O error occurs.
+   */
+  public void listen(int port, int backlog, Executor executor, Backend backend) throws IOException {
+    if (backend == Backend.JDK) {
+      listen(port, backlog, executor);
+      return;
+    }
+    if (server != null || nioServer != null) {
+      throw new IllegalStateException("already listening");
+    }
+    nioServer = new NioServer(port, backlog, executor, pipeline, () -> maxBodySize);
+    nioServer.start();
+  }
+
+  /**
+   * Stops the server. No new connection is accepted and the exchanges in progress are given at
+   * most delay seconds to complete. The executor given to listen is shut down if it is an
+   * {@link ExecutorService}: its callbacks are awaited until the end of the delay, then
+   * interrupted.
+   * 
+   * @param delay the maximum time in seconds to wait for the exchanges in progress.
+   */
+  public void stop(int delay) {
+    long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(delay);
+    if (nioServer != null) {
+      nioServer.stop(delay);
+      nioServer = null;
+      return;
+    }
+    if (server == null) {
+      throw new IllegalStateException("not listening");
+    }
+    server.stop(delay);
+    server = null;
+    if (executor instanceof ExecutorService) {
+      awaitTermination((ExecutorService) executor, deadline);
+    }
+    executor = null;
+  }
+
+  /**
+   * Shuts down executor and waits for its tasks until deadline, then interrupts them.
+   */
+  private static void awaitTermination(ExecutorService executor, long deadline) {
+    executor.shutdown();
+    try {
+      if (!executor.awaitTermination(Math.max(deadline - System.nanoTime(), 0), TimeUnit.NANOSECONDS)) {
+        executor.shutdownNow();
+      }
+    } catch (InterruptedException e) {
+      executor.shutdownNow();
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /**
+   * Creates an executor with a fixed number of platform threads. When all the threads are busy,
+   * the requests wait in a queue of bounded size, then are run by the dispatcher thread which
+   * stops accepting new connections meanwhile.
+   * 
+   * @param threads the number of threads.
+   * @return a new executor.
+   */
+  public static ExecutorService boundedExecutor(int threads) {
+    return new ThreadPoolExecutor(threads, threads, 0, TimeUnit.SECONDS,
+        new ArrayBlockingQueue<>(threads * 64), new ThreadPoolExecutor.CallerRunsPolicy());
+  }
+
+  /**
+   * Creates an executor which starts a new virtual thread per request. On a JDK without virtual
+   * threads, a cached pool of platform threads is used instead.
+   * 
+   * @return a new executor.
+   */
+  public static ExecutorService virtualThreadExecutor() {
+    try {
+      return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+    } catch (ReflectiveOperationException e) {
+      return Executors.newCachedThreadPool();
+    }
+  }
+
 
   private static class Counter {
     private int counter;
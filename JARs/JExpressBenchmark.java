@@ -0,0 +1,150 @@
+package fr.upem.net.tcp.http;
+
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+import fr.upem.net.tcp.http.JExpress.Backend;
+
+/**
+ * Measures the number of requests per second answered by a JExpress application with each
+ * {@link Backend}.
+ *
+ * Each client thread has its own keep-alive connection and sends its requests by batches of depth
+ * pipelined requests. The callbacks of both backends are run by a {@link JExpress#boundedExecutor(int)}.
+ * The sockets of the {@link com.sun.net.httpserver.HttpServer} are configured with TCP_NODELAY too,
+ * unless the property sun.net.httpserver.nodelay is given.
+ */
+public class JExpressBenchmark {
+  private static final String BODY = "Hello world, this is a benchmark response";
+
+  private final int clients;
+  private final int depth;
+  private final int threads;
+
+  public JExpressBenchmark(int clients, int depth, int threads) {
+    if (clients <= 0 || depth <= 0 || threads <= 0) {
+      throw new IllegalArgumentException();
+    }
+    this.clients = clients;
+    this.depth = depth;
+    this.threads = threads;
+  }
+
+  /**
+   * Starts an application with backend and sends requests during the given duration.
+   *
+   * @return the number of responses per second.
+   */
+  public double run(Backend backend, long durationMillis) throws IOException, InterruptedException {
+    int port;
+    try (ServerSocket socket = new ServerSocket(0)) {
+      port = socket.getLocalPort();
+    }
+    JExpress app = JExpress.express();
+    app.compression(null);
+    app.get("/hello", (request, response) -> response.type("text/plain").send(BODY));
+    app.listen(port, 1024, JExpress.boundedExecutor(threads), backend);
+    AtomicLong received = new AtomicLong();
+    try {
+      long end = System.nanoTime() + durationMillis * 1_000_000;
+      ArrayList<Thread> senders = new ArrayList<>();
+      for (int i = 0; i < clients; i++) {
+        Thread thread = new Thread(() -> {
+          try {
+            send(port, end, received);
+          } catch (IOException e) {
+            throw new UncheckedIOException(e);
+          }
+        });
+        senders.add(thread);
+        thread.start();
+      }
+      for (Thread thread : senders) {
+        thread.join();
+      }
+    } finally {
+      app.stop(1);
+    }
+    return received.get() * 1000.0 / durationMillis;
+  }
+
+  private void send(int port, long end, AtomicLong received) throws IOException {
+    byte[] request = "GET /hello HTTP/1.1\r\nHost: localhost\r\n\r\n".repeat(depth).getBytes(StandardCharsets.ISO_8859_1);
+    try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), port)) {
+      socket.setTcpNoDelay(true);
+      OutputStream output = socket.getOutputStream();
+      InputStream input = new BufferedInputStream(socket.getInputStream());
+      while (System.nanoTime() < end) {
+        output.write(request);
+        for (int i = 0; i < depth; i++) {
+          skipResponse(input);
+        }
+        received.addAndGet(depth);
+      }
+    }
+  }
+
+  /**
+   * Reads a response with a Content-Length.
+   */
+  private static void skipResponse(InputStream input) throws IOException {
+    long length = -1;
+    for (String line = readLine(input); !line.isEmpty(); line = readLine(input)) {
+      if (line.regionMatches(true, 0, "Content-Length:", 0, "Content-Length:".length())) {
+        length = Long.parseLong(line.substring("Content-Length:".length()).trim());
+      }
+    }
+    if (length == -1) {
+      throw new IOException("response without Content-Length");
+    }
+    input.skipNBytes(length);
+  }
+
+  private static String readLine(InputStream input) throws IOException {
+    StringBuilder line = new StringBuilder();
+    for (int b = input.read(); b != '\n'; b = input.read()) {
+      if (b == -1) {
+        throw new EOFException();
+      }
+      if (b != '\r') {
+        line.append((char) b);
+      }
+    }
+    return line.toString();
+  }
+
+  private static void usage() {
+    System.out.println("Usage : JExpressBenchmark seconds [clients] [depth] [threads]");
+  }
+
+  public static void main(String[] args) throws IOException, InterruptedException {
+    if (args.length < 1 || args.length > 4) {
+      usage();
+      return;
+    }
+    if (System.getProperty("sun.net.httpserver.nodelay") == null) {
+      System.setProperty("sun.net.httpserver.nodelay", "true"); // read when the first server starts
+    }
+    int seconds = Integer.parseInt(args[0]);
+    int clients = args.length > 1 ? Integer.parseInt(args[1]) : 64;
+    int depth = args.length > 2 ? Integer.parseInt(args[2]) : 1;
+    int threads = args.length > 3 ? Integer.parseInt(args[3]) : 8;
+    JExpressBenchmark benchmark = new JExpressBenchmark(clients, depth, threads);
+    for (Backend backend : Backend.values()) {
+      benchmark.run(backend, 1000); // warm-up
+      double rps = benchmark.run(backend, seconds * 1000L);
+      System.out.printf("%s: %d clients, depth %d, %d threads: %.0f requests/s%n", backend, clients, depth,
+          threads, rps);
+    }
+  }
+}
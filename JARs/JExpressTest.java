@@ -0,0 +1,970 @@
+package fr.upem.net.tcp.http;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.EnumSource;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+
+import fr.upem.net.tcp.http.JExpress.Backend;
+import fr.upem.net.tcp.http.JExpress.LimitedInputStream;
+import fr.upem.net.tcp.http.JExpress.MultipartParser;
+import fr.upem.net.tcp.http.JExpress.Part;
+import fr.upem.net.tcp.http.JExpress.RequestException;
+
+/**
+ * Tests suit for JExpress, the applications being driven through real sockets
+ */
+public class JExpressTest {
+
+    private JExpress app;
+    private int port;
+
+    private void listen(JExpress app, Backend backend) throws IOException {
+        this.app = app;
+        try (var socket = new ServerSocket(0)) {
+            port = socket.getLocalPort();
+        }
+        app.listen(port, backend);
+    }
+
+    @AfterEach
+    public void stop() {
+        if (app != null) {
+            app.stop(0);
+        }
+    }
+
+    /**
+     * A response read from a socket, the names of the header fields in lower case
+     */
+    static final class RawResponse {
+        final int status;
+        final Map<String, String> headers;
+        final byte[] body;
+
+        private RawResponse(int status, Map<String, String> headers, byte[] body) {
+            this.status = status;
+            this.headers = headers;
+            this.body = body;
+        }
+
+        String text() {
+            return new String(body, StandardCharsets.UTF_8);
+        }
+    }
+
+    /**
+     * A HTTP/1.1 client writing raw requests and reading the responses one by one
+     */
+    static final class RawClient implements Closeable {
+        private final Socket socket;
+        private final InputStream input;
+
+        RawClient(int port) throws IOException {
+            socket = new Socket(InetAddress.getLoopbackAddress(), port);
+            socket.setSoTimeout(10_000);
+            input = new BufferedInputStream(socket.getInputStream());
+        }
+
+        RawClient send(String request) throws IOException {
+            return send(request.getBytes(StandardCharsets.ISO_8859_1));
+        }
+
+        RawClient send(byte[] request) throws IOException {
+            socket.getOutputStream().write(request);
+            socket.getOutputStream().flush();
+            return this;
+        }
+
+        RawResponse read() throws IOException {
+            return read(false);
+        }
+
+        /**
+         * @param head true if the response answers a HEAD request and has no body
+         */
+        RawResponse read(boolean head) throws IOException {
+            var statusLine = readLine();
+            var status = Integer.parseInt(statusLine.split(" ")[1]);
+            var headers = new HashMap<String, String>();
+            for (var line = readLine(); !line.isEmpty(); line = readLine()) {
+                var colon = line.indexOf(':');
+                headers.merge(line.substring(0, colon).trim().toLowerCase(), line.substring(colon + 1).trim(),
+                        (first, second) -> first + ", " + second);
+            }
+            if (head || status == 204 || status == 304) {
+                return new RawResponse(status, headers, new byte[0]);
+            }
+            if ("chunked".equalsIgnoreCase(headers.get("transfer-encoding"))) {
+                var body = new ByteArrayOutputStream();
+                for (var size = Integer.parseInt(readLine(), 16); size != 0; size = Integer.parseInt(readLine(), 16)) {
+                    body.write(input.readNBytes(size));
+                    readLine();
+                }
+                readLine(); // no trailer
+                return new RawResponse(status, headers, body.toByteArray());
+            }
+            var length = headers.get("content-length");
+            var body = (length == null) ? input.readAllBytes() : input.readNBytes(Integer.parseInt(length));
+            return new RawResponse(status, headers, body);
+        }
+
+        /**
+         * @return true if the server closed the connection
+         */
+        boolean isClosedByServer() throws IOException {
+            return input.read() == -1;
+        }
+
+        private String readLine() throws IOException {
+            var line = new StringBuilder();
+            for (;;) {
+                var b = input.read();
+                if (b == -1) {
+                    throw new EOFException();
+                }
+                if (b == '\n') {
+                    return line.substring(0, line.length() - 1);
+                }
+                line.append((char) b);
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            socket.close();
+        }
+    }
+
+    private static String get(String path) {
+        return "GET " + path + " HTTP/1.1\r\nHost: localhost\r\n\r\n";
+    }
+
+    private static JExpress echoApp() {
+        var app = JExpress.express();
+        app.get("/echo/:word", (request, response) -> response.send(request.param("word")));
+        app.post("/echo", (request, response) -> response.send(request.bodyText()));
+        return app;
+    }
+
+    @ParameterizedTest
+    @EnumSource(Backend.class)
+    public void testKeepAlive(Backend backend) throws IOException {
+        listen(echoApp(), backend);
+        try (var client = new RawClient(port)) {
+            for (var i = 0; i < 5; i++) {
+                var response = client.send(get("/echo/hello" + i)).read();
+                assertEquals(200, response.status);
+                assertEquals("hello" + i, response.text());
+            }
+        }
+    }
+
+    @ParameterizedTest
+    @EnumSource(Backend.class)
+    public void testConnectionClose(Backend backend) throws IOException {
+        listen(echoApp(), backend);
+        try (var client = new RawClient(port)) {
+            var response = client.send("GET /echo/bye HTTP/1.1\r\nHost: localhost\r\nConnection: close\r\n\r\n").read();
+            assertEquals("bye", response.text());
+            assertTrue(client.isClosedByServer());
+        }
+    }
+
+    @ParameterizedTest
+    @EnumSource(Backend.class)
+    public void testPipelining(Backend backend) throws IOException {
+        listen(echoApp(), backend);
+        try (var client = new RawClient(port)) {
+            var requests = new StringBuilder();
+            for (var i = 0; i < 10; i++) {
+                requests.append(get("/echo/" + i));
+            }
+            requests.append("POST /echo HTTP/1.1\r\nHost: localhost\r\nContent-Length: 4\r\n\r\nlast");
+            client.send(requests.toString());
+            for (var i = 0; i < 10; i++) {
+                assertEquals(Integer.toString(i), client.read().text());
+            }
+            assertEquals("last", client.read().text());
+        }
+    }
+
+    @ParameterizedTest
+    @EnumSource(Backend.class)
+    public void testChunkedRequestBody(Backend backend) throws IOException {
+        listen(echoApp(), backend);
+        try (var client = new RawClient(port)) {
+            client.send("POST /echo HTTP/1.1\r\nHost: localhost\r\nTransfer-Encoding: chunked\r\n\r\n"
+                    + "4\r\nWiki\r\n5;ext=1\r\npedia\r\nE\r\n in\r\n\r\nchunks.\r\n0\r\n\r\n");
+            var response = client.read();
+            assertEquals(200, response.status);
+            assertEquals("Wikipedia in\r\n\r\nchunks.", response.text());
+            assertEquals("next", client.send(get("/echo/next")).read().text());
+        }
+    }
+
+    @ParameterizedTest
+    @EnumSource(Backend.class)
+    public void testHead(Backend backend) throws IOException {
+        var app = JExpress.express();
+        app.get("/", (request, response) -> response.send("0123456789"));
+        listen(app, backend);
+        try (var client = new RawClient(port)) {
+            var response = client.send("HEAD / HTTP/1.1\r\nHost: localhost\r\n\r\n").read(true);
+            assertEquals(200, response.status);
+            assertEquals("10", response.headers.get("content-length"));
+            // the next response starts right after the headers
+            assertEquals("0123456789", client.send(get("/")).read().text());
+        }
+    }
+
+    @ParameterizedTest
+    @EnumSource(Backend.class)
+    public void testNotFound(Backend backend) throws IOException {
+        listen(echoApp(), backend);
+        try (var client = new RawClient(port)) {
+            assertEquals(404, client.send(get("/unknown")).read().status);
+            assertEquals(404, client.send("DELETE /echo HTTP/1.1\r\nHost: localhost\r\n\r\n").read().status);
+        }
+    }
+
+    @ParameterizedTest
+    @EnumSource(Backend.class)
+    public void testLargeResponse(Backend backend) throws IOException {
+        var content = "x".repeat(3 * 1024 * 1024);
+        var app = JExpress.express();
+        app.compression(null);
+        app.get("/", (request, response) -> response.send(content));
+        listen(app, backend);
+        try (var client = new RawClient(port)) {
+            for (var i = 0; i < 2; i++) {
+                assertEquals(content, client.send(get("/")).read().text());
+            }
+        }
+    }
+
+    @Test
+    public void testNioMalformedRequests() throws IOException {
+        listen(echoApp(), Backend.NIO);
+        var requests = Map.of("GARBAGE\r\n\r\n", 400, //
+                "GET /%zz HTTP/1.1\r\n\r\n", 400, //
+                "GET / HTTP/2.0\r\n\r\n", 505, //
+                "GET / HTTP/1.1\r\nno colon\r\n\r\n", 400, //
+                "POST /echo HTTP/1.1\r\nContent-Length: abc\r\n\r\n", 400, //
+                "POST /echo HTTP/1.1\r\nContent-Length: -1\r\n\r\n", 400, //
+                "POST /echo HTTP/1.1\r\nTransfer-Encoding: chunked\r\n\r\nzz\r\n", 400, //
+                "POST /echo HTTP/1.1\r\nTransfer-Encoding: chunked\r\n\r\n2\r\nabc\r\n", 400, //
+                "GET /" + "a".repeat(10_000) + " HTTP/1.1\r\n\r\n", 400);
+        for (var entry : requests.entrySet()) {
+            try (var client = new RawClient(port)) {
+                var response = client.send(entry.getKey()).read();
+                assertEquals(entry.getValue(), response.status, entry.getKey());
+                assertEquals("close", response.headers.get("connection"));
+                assertTrue(client.isClosedByServer());
+            }
+        }
+        try (var client = new RawClient(port)) {
+            assertEquals("alive", client.send(get("/echo/alive")).read().text());
+        }
+    }
+
+    @Test
+    public void testNioMalformedRequestAfterValidOnes() throws IOException {
+        listen(echoApp(), Backend.NIO);
+        try (var client = new RawClient(port)) {
+            client.send(get("/echo/first") + "BAD\r\n\r\n");
+            assertEquals("first", client.read().text());
+            assertEquals(400, client.read().status);
+            assertTrue(client.isClosedByServer());
+        }
+    }
+
+    @Test
+    public void testNioCallbackFailure() throws IOException {
+        var app = JExpress.express();
+        app.get("/throw", (request, response) -> {
+            throw new IllegalStateException("expected by the test");
+        });
+        app.get("/nothing", (request, response) -> {
+            // no response
+        });
+        app.get("/truncated", (request, response) -> {
+            response.set("Content-Length", "100");
+            throw new IOException("expected by the test");
+        });
+        listen(app, Backend.NIO);
+        try (var client = new RawClient(port)) {
+            var response = client.send(get("/throw")).read();
+            assertEquals(500, response.status);
+            assertTrue(client.isClosedByServer());
+        }
+        try (var client = new RawClient(port)) {
+            assertEquals(500, client.send(get("/nothing")).read().status);
+            // the connection is kept alive
+            assertEquals(500, client.send(get("/nothing")).read().status);
+        }
+        try (var client = new RawClient(port)) {
+            assertEquals(500, client.send(get("/truncated")).read().status);
+        }
+    }
+
+    @Test
+    public void testNioExecutor() throws IOException {
+        var executed = new AtomicInteger();
+        ExecutorService pool = Executors.newFixedThreadPool(2);
+        var app = JExpress.express();
+        app.get("/", (request, response) -> response.send(Thread.currentThread().getName()));
+        this.app = app;
+        try (var socket = new ServerSocket(0)) {
+            port = socket.getLocalPort();
+        }
+        app.listen(port, 16, task -> {
+            executed.incrementAndGet();
+            pool.execute(task);
+        }, Backend.NIO);
+        try (var client = new RawClient(port)) {
+            for (var i = 0; i < 3; i++) {
+                assertTrue(client.send(get("/")).read().text().startsWith("pool-"));
+            }
+        } finally {
+            app.stop(1);
+            this.app = null;
+            pool.shutdown();
+        }
+        assertEquals(3, executed.get());
+    }
+
+    @Test
+    public void testNioCallbacksOnSelectorThread() throws IOException {
+        var content = "x".repeat(3 * 1024 * 1024);
+        var app = JExpress.express();
+        app.compression(null);
+        app.get("/", (request, response) -> response.send(content));
+        this.app = app;
+        try (var socket = new ServerSocket(0)) {
+            port = socket.getLocalPort();
+        }
+        app.listen(port, 0, Runnable::run, Backend.NIO); // as an executor running the tasks in the caller
+        try (var client = new RawClient(port)) {
+            client.send(get("/") + get("/"));
+            assertEquals(content, client.read().text());
+            assertEquals(content, client.read().text());
+        }
+    }
+
+    @Test
+    public void testNioStopShutsDownExecutor() throws IOException {
+        ExecutorService pool = Executors.newFixedThreadPool(2);
+        var app = JExpress.express();
+        app.get("/", (request, response) -> response.send("ok"));
+        try (var socket = new ServerSocket(0)) {
+            port = socket.getLocalPort();
+        }
+        app.listen(port, 0, pool, Backend.NIO);
+        try (var client = new RawClient(port)) {
+            assertEquals("ok", client.send(get("/")).read().text());
+        }
+        app.stop(1);
+        assertTrue(pool.isShutdown());
+    }
+
+    @ParameterizedTest
+    @EnumSource(Backend.class)
+    public void testBodyTooLargeRejectedBeforeReading(Backend backend) throws IOException {
+        var called = new AtomicBoolean();
+        var app = echoApp();
+        app.maxBodySize(10);
+        app.post("/called", (request, response) -> {
+            called.set(true);
+            response.send("called");
+        });
+        listen(app, backend);
+        try (var client = new RawClient(port)) {
+            assertEquals("0123456789", client.send("POST /echo HTTP/1.1\r\nHost: localhost\r\nContent-Length: 10\r\n\r\n"
+                    + "0123456789").read().text());
+            // the body is never sent, the server must answer without waiting for it
+            var response = client.send("POST /called HTTP/1.1\r\nHost: localhost\r\nContent-Length: 1000\r\n\r\n")
+                    .read();
+            assertEquals(413, response.status);
+            if (backend == Backend.JDK) { // the HttpServer drains the body before closing
+                client.send("x".repeat(1000));
+            }
+            assertTrue(client.isClosedByServer());
+        }
+        assertFalse(called.get());
+    }
+
+    @ParameterizedTest
+    @EnumSource(Backend.class)
+    public void testChunkedBodyTooLarge(Backend backend) throws IOException {
+        var app = echoApp();
+        app.maxBodySize(10);
+        listen(app, backend);
+        try (var client = new RawClient(port)) {
+            client.send("POST /echo HTTP/1.1\r\nHost: localhost\r\nTransfer-Encoding: chunked\r\n\r\n"
+                    + "6\r\n012345\r\n4\r\n6789\r\n0\r\n\r\n");
+            assertEquals("0123456789", client.read().text());
+            client.send("POST /echo HTTP/1.1\r\nHost: localhost\r\nTransfer-Encoding: chunked\r\n\r\n"
+                    + "6\r\n012345\r\n6\r\n6789AB\r\n0\r\n\r\n");
+            assertEquals(413, client.read().status);
+            assertTrue(client.isClosedByServer());
+        }
+    }
+
+    @ParameterizedTest
+    @EnumSource(Backend.class)
+    public void testMultipartUpload(Backend backend) throws IOException {
+        var app = JExpress.express();
+        app.maxInMemoryPartSize(16);
+        app.post("/upload", (request, response) -> {
+            var summary = new StringBuilder();
+            for (var part : request.parts()) {
+                summary.append(part.name()).append('=').append(part.size()).append(';');
+            }
+            response.send(summary.toString() + request.form().get("title"));
+        });
+        listen(app, backend);
+        var body = multipart("XyZ", "title", null, "a title", "file", "big.txt", "b".repeat(1000));
+        try (var client = new RawClient(port)) {
+            client.send(("POST /upload HTTP/1.1\r\nHost: localhost\r\n"
+                    + "Content-Type: multipart/form-data; boundary=XyZ\r\nContent-Length: " + body.length + "\r\n\r\n")
+                    .getBytes(StandardCharsets.ISO_8859_1));
+            client.send(body);
+            assertEquals("title=7;file=1000;a title", client.read().text());
+        }
+    }
+
+    @Test
+    public void testLimitedInputStream() throws IOException {
+        var bytes = new byte[20];
+        var limited = new LimitedInputStream(new ByteArrayInputStream(bytes), 10);
+        assertEquals(10, limited.readNBytes(10).length);
+        var e = assertThrows(RequestException.class, limited::read);
+        assertEquals(413, e.status());
+
+        limited = new LimitedInputStream(new ByteArrayInputStream(bytes), 10);
+        assertEquals(5, limited.skip(5));
+        e = assertThrows(RequestException.class, () -> new LimitedInputStream(new ByteArrayInputStream(bytes), 10)
+                .skip(Long.MAX_VALUE));
+        assertEquals(413, e.status());
+
+        // a body of exactly the limit is accepted
+        limited = new LimitedInputStream(new ByteArrayInputStream(bytes), 20);
+        assertEquals(20, limited.readAllBytes().length);
+        assertEquals(-1, limited.read());
+        assertEquals(0, limited.skip(10));
+    }
+
+    /**
+     * @param fields triples name, filename (null if not a file), content
+     */
+    private static byte[] multipart(String boundary, String... fields) {
+        var body = new StringBuilder("preamble\r\n");
+        for (var i = 0; i < fields.length; i += 3) {
+            body.append("--").append(boundary).append("\r\n")
+                    .append("Content-Disposition: form-data; name=\"").append(fields[i]).append('"');
+            if (fields[i + 1] != null) {
+                body.append("; filename=\"").append(fields[i + 1]).append("\"\r\nContent-Type: application/octet-stream");
+            }
+            body.append("\r\n\r\n").append(fields[i + 2]).append("\r\n");
+        }
+        body.append("--").append(boundary).append("--\r\nepilogue");
+        return body.toString().getBytes(StandardCharsets.ISO_8859_1);
+    }
+
+    /**
+     * An input stream returning at most a few bytes by read, so that the delimiters are split
+     */
+    private static final class SmallReadsInputStream extends InputStream {
+        private final ByteArrayInputStream in;
+        private final Random random = new Random(0);
+
+        SmallReadsInputStream(byte[] bytes) {
+            in = new ByteArrayInputStream(bytes);
+        }
+
+        @Override
+        public int read() {
+            return in.read();
+        }
+
+        @Override
+        public int read(byte[] bytes, int offset, int length) {
+            return in.read(bytes, offset, Math.min(length, 1 + random.nextInt(3)));
+        }
+    }
+
+    @Test
+    public void testMultipartBoundariesSplitAcrossReads() throws IOException {
+        var body = multipart("boundary", "first", null, "almost\r\n--boundar the delimiter",
+                "empty", null, "",
+                "file", "a.bin", "--boundary\r\n\r\n--bound");
+        var files = new ArrayList<Path>();
+        List<Part> parts = new MultipartParser(new SmallReadsInputStream(body), "boundary", 1024, files).parse();
+        assertEquals(3, parts.size());
+        assertEquals("first", parts.get(0).name());
+        assertEquals("", parts.get(0).filename());
+        assertEquals("text/plain", parts.get(0).contentType());
+        assertEquals("almost\r\n--boundar the delimiter", parts.get(0).text());
+        assertEquals(0, parts.get(1).size());
+        assertEquals("a.bin", parts.get(2).filename());
+        assertEquals("application/octet-stream", parts.get(2).contentType());
+        assertEquals("--boundary\r\n\r\n--bound", parts.get(2).text());
+        assertTrue(files.isEmpty());
+    }
+
+    @Test
+    public void testMultipartMissingFinalBoundary() {
+        var complete = new String(multipart("b", "name", null, "value"), StandardCharsets.ISO_8859_1);
+        for (var truncated : List.of(complete.substring(0, complete.indexOf("\r\n--b--")),
+                complete.substring(0, complete.indexOf("--\r\nepilogue")),
+                complete.substring(0, complete.indexOf("--\r\nepilogue")) + "\r\n",
+                "no delimiter at all")) {
+            var parser = new MultipartParser(new SmallReadsInputStream(truncated.getBytes(StandardCharsets.ISO_8859_1)),
+                    "b", 1024, new ArrayList<>());
+            var e = assertThrows(RequestException.class, parser::parse, truncated);
+            assertEquals(400, e.status());
+        }
+    }
+
+    @Test
+    public void testMultipartSpillsToDisk() throws IOException {
+        var big = "0123456789".repeat(10_000); // larger than the buffer of the parser
+        var body = multipart("b", "small", null, "in memory", "big", "big.txt", big);
+        var files = new ArrayList<Path>();
+        try {
+            var parts = new MultipartParser(new ByteArrayInputStream(body), "b", 16, files).parse();
+            assertEquals("in memory", parts.get(0).text());
+            assertEquals(1, files.size());
+            assertEquals(big.length(), Files.size(files.get(0)));
+            assertEquals(big.length(), parts.get(1).size());
+            assertEquals(big, parts.get(1).text());
+            try (var in = parts.get(1).open()) {
+                assertEquals(big, new String(in.readAllBytes(), StandardCharsets.ISO_8859_1));
+            }
+        } finally {
+            for (var file : files) {
+                Files.deleteIfExists(file);
+            }
+        }
+    }
+
+    private static JExpress.Callback text(String text) {
+        return (request, response) -> response.send(text);
+    }
+
+    @Test
+    public void testRoutePrecedence() throws IOException {
+        var app = JExpress.express();
+        app.get("/users", text("users"));
+        app.get("/users/:id", (request, response) -> response.send("user " + request.param("id")));
+        app.get("/users/me", text("me")); // registered after /users/:id, wins on /users/me
+        app.get("/items/special", text("special"));
+        app.get("/items/:id", text("item")); // registered after /items/special, wins everywhere
+        app.get("/dup", text("first"));
+        app.get("/dup", text("second"));
+        app.get("/a/:x/b/:y", (request, response) -> response.send(request.param("x") + "+" + request.param("y")));
+        app.post("/users/:id", text("post"));
+        listen(app, Backend.NIO);
+        try (var client = new RawClient(port)) {
+            assertEquals("users", client.send(get("/users")).read().text());
+            assertEquals("user 42", client.send(get("/users/42")).read().text());
+            assertEquals("me", client.send(get("/users/me")).read().text());
+            assertEquals("item", client.send(get("/items/special")).read().text());
+            assertEquals("item", client.send(get("/items/7")).read().text());
+            assertEquals("second", client.send(get("/dup")).read().text());
+            assertEquals("1+2", client.send(get("/a/1/b/2")).read().text());
+            assertEquals("post", client.send("POST /users/1 HTTP/1.1\r\nHost: localhost\r\nContent-Length: 0\r\n\r\n")
+                    .read().text());
+            // a route matches the paths starting with its segments
+            assertEquals("user 42", client.send(get("/users/42/unknown")).read().text());
+            assertEquals("users", client.send(get("/users/")).read().text());
+            assertEquals(404, client.send(get("/user")).read().status);
+            assertEquals(404, client.send(get("/a/1/c/2")).read().status);
+        }
+    }
+
+    @Test
+    public void testRootRouteMatchesEverything() throws IOException {
+        var app = JExpress.express();
+        app.get("/", text("root"));
+        app.get("/page", text("page"));
+        listen(app, Backend.NIO);
+        try (var client = new RawClient(port)) {
+            assertEquals("root", client.send(get("/")).read().text());
+            assertEquals("page", client.send(get("/page/1")).read().text());
+            assertEquals("root", client.send(get("/other/1")).read().text());
+        }
+    }
+
+    @TempDir
+    Path directory;
+
+    /**
+     * Creates a file of the temporary directory whose byte i is 'a' + i % 26
+     */
+    private Path file(String name, int size) throws IOException {
+        var content = new byte[size];
+        for (var i = 0; i < size; i++) {
+            content[i] = (byte) ('a' + i % 26);
+        }
+        return Files.write(directory.resolve(name), content);
+    }
+
+    private JExpress fileApp(Path file) {
+        var app = JExpress.express();
+        app.get("/file", (request, response) -> response.sendFile(file));
+        return app;
+    }
+
+    private static String get(String path, String... fields) {
+        var request = new StringBuilder("GET ").append(path).append(" HTTP/1.1\r\nHost: localhost\r\n");
+        for (var field : fields) {
+            request.append(field).append("\r\n");
+        }
+        return request.append("\r\n").toString();
+    }
+
+    @ParameterizedTest
+    @EnumSource(Backend.class)
+    public void testFileConditionalRequests(Backend backend) throws IOException {
+        var file = file("data.bin", 100);
+        listen(fileApp(file), backend);
+        try (var client = new RawClient(port)) {
+            var response = client.send(get("/file")).read();
+            assertEquals(200, response.status);
+            assertArrayEquals(Files.readAllBytes(file), response.body);
+            assertEquals("bytes", response.headers.get("accept-ranges"));
+            var etag = response.headers.get("etag");
+            var lastModified = response.headers.get("last-modified");
+            assertNotNull(etag);
+            assertNotNull(lastModified);
+
+            response = client.send(get("/file", "If-None-Match: " + etag)).read();
+            assertEquals(304, response.status);
+            assertEquals(etag, response.headers.get("etag"));
+            assertEquals(304, client.send(get("/file", "If-None-Match: \"other\", " + etag)).read().status);
+            assertEquals(304, client.send(get("/file", "If-None-Match: *")).read().status);
+            assertEquals(200, client.send(get("/file", "If-None-Match: \"other\"")).read().status);
+            assertEquals(304, client.send(get("/file", "If-Modified-Since: " + lastModified)).read().status);
+            // If-None-Match takes precedence over If-Modified-Since
+            assertEquals(200, client.send(get("/file", "If-None-Match: \"other\"", "If-Modified-Since: " + lastModified))
+                    .read().status);
+            // the connection is still usable after the responses without body
+            assertEquals(100, client.send(get("/file")).read().body.length);
+        }
+    }
+
+    @ParameterizedTest
+    @EnumSource(Backend.class)
+    public void testFileModifiedChangesETag(Backend backend) throws IOException {
+        var file = file("data.bin", 100);
+        listen(fileApp(file), backend);
+        try (var client = new RawClient(port)) {
+            var etag = client.send(get("/file")).read().headers.get("etag");
+            file("data.bin", 101);
+            var response = client.send(get("/file", "If-None-Match: " + etag)).read();
+            assertEquals(200, response.status);
+            assertEquals(101, response.body.length);
+            assertNotEquals(etag, response.headers.get("etag"));
+        }
+    }
+
+    @ParameterizedTest
+    @EnumSource(Backend.class)
+    public void testFileRanges(Backend backend) throws IOException {
+        var file = file("data.bin", 100);
+        var content = new String(Files.readAllBytes(file), StandardCharsets.ISO_8859_1);
+        listen(fileApp(file), backend);
+        try (var client = new RawClient(port)) {
+            var response = client.send(get("/file", "Range: bytes=10-19")).read();
+            assertEquals(206, response.status);
+            assertEquals("bytes 10-19/100", response.headers.get("content-range"));
+            assertEquals(content.substring(10, 20), response.text());
+
+            response = client.send(get("/file", "Range: bytes=90-")).read();
+            assertEquals(206, response.status);
+            assertEquals("bytes 90-99/100", response.headers.get("content-range"));
+            assertEquals(content.substring(90), response.text());
+
+            response = client.send(get("/file", "Range: bytes=-5")).read();
+            assertEquals("bytes 95-99/100", response.headers.get("content-range"));
+            assertEquals(content.substring(95), response.text());
+
+            response = client.send(get("/file", "Range: bytes=95-200")).read();
+            assertEquals("bytes 95-99/100", response.headers.get("content-range"));
+            assertEquals(content.substring(95), response.text());
+
+            response = client.send(get("/file", "Range: bytes=100-")).read();
+            assertEquals(416, response.status);
+            assertEquals("bytes */100", response.headers.get("content-range"));
+            assertEquals(0, response.body.length);
+
+            // the invalid or multiple ranges are answered with the whole file
+            for (var range : List.of("bytes=5-3", "bytes=0-1,5-6", "items=0-1", "bytes=x-y", "bytes=5")) {
+                response = client.send(get("/file", "Range: " + range)).read();
+                assertEquals(200, response.status, range);
+                assertNull(response.headers.get("content-range"), range);
+                assertEquals(content, response.text(), range);
+            }
+        }
+    }
+
+    @ParameterizedTest
+    @EnumSource(Backend.class)
+    public void testRangeOfCompressibleFileIsNotCompressed(Backend backend) throws IOException {
+        var file = file("data.txt", 5000);
+        listen(fileApp(file), backend);
+        try (var client = new RawClient(port)) {
+            var response = client.send(get("/file", "Range: bytes=0-9", "Accept-Encoding: gzip")).read();
+            assertEquals(206, response.status);
+            assertNull(response.headers.get("content-encoding"));
+            assertEquals("abcdefghij", response.text());
+        }
+    }
+
+    /**
+     * An application whose GET routes answer with the number of calls of the callbacks
+     */
+    private static JExpress countingApp(JExpress.ResponseCache cache, AtomicInteger calls) {
+        var app = JExpress.express();
+        app.use(cache);
+        app.get("/:name", (request, response) -> response.set("X-Name", request.param("name"))
+                .send(request.param("name") + " " + calls.incrementAndGet()));
+        app.get("/private", (request, response) -> response.set("Cache-Control", "private")
+                .send("private " + calls.incrementAndGet()));
+        app.get("/missing", (request, response) -> response.status(404).send("missing " + calls.incrementAndGet()));
+        app.post("/:name", (request, response) -> response.send("post " + calls.incrementAndGet()));
+        return app;
+    }
+
+    @Test
+    public void testResponseCacheHitsAndMisses() throws IOException {
+        var calls = new AtomicInteger();
+        var cache = new JExpress.ResponseCache(60_000, 10);
+        listen(countingApp(cache, calls), Backend.NIO);
+        try (var client = new RawClient(port)) {
+            assertEquals("a 1", client.send(get("/a")).read().text());
+            var response = client.send(get("/a")).read();
+            assertEquals("a 1", response.text());
+            assertEquals("a", response.headers.get("x-name"));
+            assertEquals(1, cache.hits());
+            assertEquals(1, cache.misses());
+            assertEquals(1, cache.size());
+
+            // neither the other methods, nor the private responses or the errors are cached
+            var post = "POST /a HTTP/1.1\r\nHost: localhost\r\nContent-Length: 0\r\n\r\n";
+            assertEquals("post 2", client.send(post).read().text());
+            assertEquals("post 3", client.send(post).read().text());
+            assertEquals("private 4", client.send(get("/private")).read().text());
+            assertEquals("private 5", client.send(get("/private")).read().text());
+            assertEquals("missing 6", client.send(get("/missing")).read().text());
+            assertEquals("missing 7", client.send(get("/missing")).read().text());
+            assertEquals(1, cache.hits());
+            assertEquals(5, cache.misses());
+            assertEquals(1, cache.size());
+        }
+    }
+
+    @Test
+    public void testResponseCacheTimeToLive() throws IOException, InterruptedException {
+        var calls = new AtomicInteger();
+        var cache = new JExpress.ResponseCache(200, 10);
+        listen(countingApp(cache, calls), Backend.NIO);
+        try (var client = new RawClient(port)) {
+            assertEquals("a 1", client.send(get("/a")).read().text());
+            assertEquals("a 1", client.send(get("/a")).read().text());
+            Thread.sleep(300);
+            assertEquals("a 2", client.send(get("/a")).read().text());
+            assertEquals("a 2", client.send(get("/a")).read().text());
+            assertEquals(2, cache.hits());
+            assertEquals(2, cache.misses());
+        }
+    }
+
+    @Test
+    public void testResponseCacheEvictsLeastRecentlyUsed() throws IOException {
+        var calls = new AtomicInteger();
+        var cache = new JExpress.ResponseCache(60_000, 2);
+        listen(countingApp(cache, calls), Backend.NIO);
+        try (var client = new RawClient(port)) {
+            assertEquals("a 1", client.send(get("/a")).read().text());
+            assertEquals("b 2", client.send(get("/b")).read().text());
+            assertEquals("a 1", client.send(get("/a")).read().text()); // b is now the least recently used
+            assertEquals("c 3", client.send(get("/c")).read().text());
+            assertEquals(2, cache.size());
+            assertEquals("a 1", client.send(get("/a")).read().text());
+            assertEquals("c 3", client.send(get("/c")).read().text());
+            assertEquals("b 4", client.send(get("/b")).read().text());
+            assertEquals(3, cache.hits());
+            assertEquals(4, cache.misses());
+        }
+    }
+
+    @Test
+    public void testResponseCacheVaryHeaders() throws IOException {
+        var calls = new AtomicInteger();
+        var cache = new JExpress.ResponseCache(60_000, 10, "Accept-Language");
+        listen(countingApp(cache, calls), Backend.NIO);
+        try (var client = new RawClient(port)) {
+            assertEquals("a 1", client.send(get("/a", "Accept-Language: fr")).read().text());
+            assertEquals("a 2", client.send(get("/a", "Accept-Language: en")).read().text());
+            assertEquals("a 3", client.send(get("/a")).read().text());
+            assertEquals("a 1", client.send(get("/a", "Accept-Language: fr")).read().text());
+            assertEquals("a 2", client.send(get("/a", "Accept-Language: en")).read().text());
+            assertEquals(3, cache.size());
+        }
+    }
+
+    /**
+     * @return a compressible text made of random words
+     */
+    private static String words(int count) {
+        var random = new Random(0);
+        var words = List.of("alpha", "beta", "gamma", "delta", "epsilon", "zeta", "eta", "theta");
+        var text = new StringBuilder();
+        for (var i = 0; i < count; i++) {
+            text.append(words.get(random.nextInt(words.size()))).append(random.nextInt(100)).append(' ');
+        }
+        return text.toString();
+    }
+
+    private static String decode(RawResponse response) throws IOException {
+        var coding = response.headers.get("content-encoding");
+        var in = new ByteArrayInputStream(response.body);
+        try (var decoded = (coding == null) ? in
+                : coding.equals("gzip") ? new GZIPInputStream(in) : new InflaterInputStream(in)) {
+            return new String(decoded.readAllBytes(), StandardCharsets.UTF_8);
+        }
+    }
+
+    @Test
+    public void testContentCodingNegotiation() throws IOException {
+        var text = words(500);
+        var app = JExpress.express();
+        app.get("/text", (request, response) -> response.type("text/plain").send(text));
+        app.get("/small", (request, response) -> response.type("text/plain").send("small"));
+        app.get("/png", (request, response) -> response.type("image/png").send(text));
+        listen(app, Backend.NIO);
+        var expected = new LinkedHashMap<String, String>(); // Accept-Encoding -> content coding
+        expected.put("gzip", "gzip");
+        expected.put("deflate", "deflate");
+        expected.put("gzip, deflate", "gzip");
+        expected.put("deflate, gzip", "gzip");
+        expected.put("deflate;q=0.5, gzip;q=0.4", "deflate");
+        expected.put("gzip;q=0, deflate", "deflate");
+        expected.put("gzip;q=0", null);
+        expected.put("gzip;q=0, deflate;q=0.0", null);
+        expected.put("x-gzip", "gzip");
+        expected.put("*", "gzip");
+        expected.put("*;q=0", null);
+        expected.put("gzip;q=0, *", "deflate");
+        expected.put("identity", null);
+        expected.put("br", null);
+        expected.put("gzip;q=invalid", null);
+        try (var client = new RawClient(port)) {
+            for (var entry : expected.entrySet()) {
+                var response = client.send(get("/text", "Accept-Encoding: " + entry.getKey())).read();
+                assertEquals(entry.getValue(), response.headers.get("content-encoding"), entry.getKey());
+                assertEquals("Accept-Encoding", response.headers.get("vary"), entry.getKey());
+                assertEquals(text, decode(response), entry.getKey());
+            }
+            var response = client.send(get("/text")).read();
+            assertNull(response.headers.get("content-encoding"));
+            assertEquals("Accept-Encoding", response.headers.get("vary"));
+
+            // too small to be compressed, but another body of the same type could be
+            response = client.send(get("/small", "Accept-Encoding: gzip")).read();
+            assertNull(response.headers.get("content-encoding"));
+            assertEquals("Accept-Encoding", response.headers.get("vary"));
+            assertEquals("small", response.text());
+
+            // never compressed
+            response = client.send(get("/png", "Accept-Encoding: gzip")).read();
+            assertNull(response.headers.get("content-encoding"));
+            assertNull(response.headers.get("vary"));
+        }
+    }
+
+    @ParameterizedTest
+    @EnumSource(Backend.class)
+    public void testCompressedFile(Backend backend) throws IOException {
+        var text = words(2000);
+        var file = Files.writeString(directory.resolve("words.txt"), text);
+        listen(fileApp(file), backend);
+        try (var client = new RawClient(port)) {
+            var response = client.send(get("/file", "Accept-Encoding: gzip")).read();
+            assertEquals("gzip", response.headers.get("content-encoding"));
+            assertEquals("Accept-Encoding", response.headers.get("vary"));
+            assertTrue(response.body.length < text.length() / 2);
+            assertEquals(text, decode(response));
+            var etag = response.headers.get("etag");
+            assertTrue(etag.endsWith("-gzip\""), etag);
+            assertEquals(304, client.send(get("/file", "Accept-Encoding: gzip", "If-None-Match: " + etag)).read().status);
+
+            response = client.send(get("/file", "Accept-Encoding: gzip;q=0")).read();
+            assertNull(response.headers.get("content-encoding"));
+            assertEquals("Accept-Encoding", response.headers.get("vary"));
+            assertEquals(text, response.text());
+            assertNotEquals(etag, response.headers.get("etag"));
+        }
+    }
+
+    @Test
+    public void testCompressedFileLevelPerApplication() throws IOException {
+        var text = words(5000);
+        var file = Files.writeString(directory.resolve("words.txt"), text);
+        var fast = fileApp(file);
+        fast.compression(new JExpress.Compression(0).level("text/*", 1));
+        var small = fileApp(file);
+        small.compression(new JExpress.Compression(0).level("text/*", 9));
+        listen(fast, Backend.NIO);
+        int smallPort;
+        try (var socket = new ServerSocket(0)) {
+            smallPort = socket.getLocalPort();
+        }
+        small.listen(smallPort, Backend.NIO);
+        try (var fastClient = new RawClient(port); var smallClient = new RawClient(smallPort)) {
+            var request = get("/file", "Accept-Encoding: gzip");
+            // the first application fills the cached variant of the file
+            var fastResponse = fastClient.send(request).read();
+            var smallResponse = smallClient.send(request).read();
+            assertEquals(text, decode(fastResponse));
+            assertEquals(text, decode(smallResponse));
+            assertTrue(smallResponse.body.length < fastResponse.body.length,
+                    smallResponse.body.length + " " + fastResponse.body.length);
+            assertArrayEquals(fastResponse.body, fastClient.send(request).read().body);
+        } finally {
+            small.stop(0);
+        }
+    }
+}
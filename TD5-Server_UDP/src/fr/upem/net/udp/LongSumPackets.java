@@ -0,0 +1,60 @@
+package fr.upem.net.udp;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Packets of the long sum protocol:
+ * <ul>
+ * <li>OP (1) sessionId idPosition totalOperands operand</li>
+ * <li>ACK (2) sessionId idPosition</li>
+ * <li>RESPONSE (3) sessionId sum</li>
+ * <li>CLEAN (4) sessionId</li>
+ * <li>CLEAN_ACK (5) sessionId</li>
+ * </ul>
+ * The answers are written with absolute puts over the buffer of the request,
+ * so writing an answer allocates nothing and does not depend on the position
+ * of the buffer.
+ */
+final class LongSumPackets {
+
+	static final byte OP = 1;
+	static final byte ACK = 2;
+	static final byte RESPONSE = 3;
+	static final byte CLEAN = 4;
+	static final byte CLEAN_ACK = 5;
+	static final int OP_SIZE = Byte.BYTES + 4 * Long.BYTES;
+	static final int CLEAN_SIZE = Byte.BYTES + Long.BYTES;
+	private static final int ANSWER_SIZE = Byte.BYTES + 2 * Long.BYTES;
+
+	private LongSumPackets() {
+		throw new AssertionError();
+	}
+
+	/**
+	 * Replaces the content of buffer by ACK sessionId idPosition, in read-mode
+	 */
+	static ByteBuffer ack(ByteBuffer buffer, long sessionId, long idPosition) {
+		return answer(buffer, ACK, sessionId, idPosition);
+	}
+
+	/**
+	 * Replaces the content of buffer by RESPONSE sessionId sum, in read-mode
+	 */
+	static ByteBuffer response(ByteBuffer buffer, long sessionId, long sum) {
+		return answer(buffer, RESPONSE, sessionId, sum);
+	}
+
+	/**
+	 * Replaces the content of buffer by CLEAN_ACK sessionId, in read-mode
+	 */
+	static ByteBuffer cleanAck(ByteBuffer buffer, long sessionId) {
+		buffer.clear().put(0, CLEAN_ACK).putLong(Byte.BYTES, sessionId).limit(CLEAN_SIZE);
+		return buffer;
+	}
+
+	private static ByteBuffer answer(ByteBuffer buffer, byte type, long sessionId, long value) {
+		buffer.clear().put(0, type).putLong(Byte.BYTES, sessionId).putLong(Byte.BYTES + Long.BYTES, value)
+				.limit(ANSWER_SIZE);
+		return buffer;
+	}
+}
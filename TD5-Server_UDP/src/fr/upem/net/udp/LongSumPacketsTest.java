@@ -0,0 +1,54 @@
+package fr.upem.net.udp;
+
+import org.junit.jupiter.api.Test;
+
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class LongSumPacketsTest {
+
+    @Test
+    public void answersInReadMode() {
+        var buffer = ByteBuffer.allocateDirect(1024);
+        buffer.put(new byte[40]);
+        LongSumPackets.ack(buffer, 42, 7);
+        assertEquals(0, buffer.position());
+        assertEquals(17, buffer.limit());
+        assertEquals(LongSumPackets.ACK, buffer.get());
+        assertEquals(42, buffer.getLong());
+        assertEquals(7, buffer.getLong());
+
+        LongSumPackets.response(buffer, -1, Long.MIN_VALUE);
+        assertEquals(17, buffer.remaining());
+        assertEquals(LongSumPackets.RESPONSE, buffer.get());
+        assertEquals(-1, buffer.getLong());
+        assertEquals(Long.MIN_VALUE, buffer.getLong());
+
+        LongSumPackets.cleanAck(buffer, 3);
+        assertEquals(9, buffer.remaining());
+        assertEquals(LongSumPackets.CLEAN_ACK, buffer.get());
+        assertEquals(3, buffer.getLong());
+    }
+
+    @Test
+    public void answersDoNotAllocate() {
+        var threadBean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        var buffer = ByteBuffer.allocateDirect(1024);
+        for (var i = 0; i < 100_000; i++) { // compiles the methods before measuring
+            LongSumPackets.ack(buffer, i, i);
+            LongSumPackets.response(buffer, i, i);
+            LongSumPackets.cleanAck(buffer, i);
+        }
+        var thread = Thread.currentThread().getId();
+        var before = threadBean.getThreadAllocatedBytes(thread);
+        for (var i = 0; i < 1_000_000; i++) {
+            LongSumPackets.ack(buffer, i, i);
+            LongSumPackets.response(buffer, i, i);
+            LongSumPackets.cleanAck(buffer, i);
+        }
+        var allocated = threadBean.getThreadAllocatedBytes(thread) - before;
+        assertTrue(allocated < 10_000, allocated + " bytes allocated for 3M answers");
+    }
+}
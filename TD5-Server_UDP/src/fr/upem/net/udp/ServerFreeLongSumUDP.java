@@ -3,139 +3,221 @@ package fr.upem.net.udp;
 import java.io.IOException;
 import java.net.BindException;
 import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
 import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
 import java.nio.channels.DatagramChannel;
-import java.util.BitSet;
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.logging.Logger;
 
+import static fr.upem.net.udp.LongSumPackets.*;
+
+/**
+ * Sums the operands of the sessions of the clients, which free their sessions
+ * with CLEAN.
+ * <p>
+ * The sessions are partitioned in shards, each one served by its own thread
+ * with its own channel bound to the same port with SO_REUSEPORT: the system
+ * always gives the packets of a client socket to the same channel, so a shard
+ * owns the sessions of its clients and no lock is needed. Where SO_REUSEPORT
+ * is not supported, a single shard serves all the sessions. Each shard serves
+ * its channel by batches with a {@link DatagramBatcher} and keeps its sessions
+ * in a {@link SessionStore}, so that the sessions of the clients which never
+ * send CLEAN are eventually forgotten. A shard which stops stops the server.
+ */
 public class ServerFreeLongSumUDP {
 	
 	private static final Logger logger = Logger.getLogger(ServerLongSumUDP.class.getName());
 	private static final int BUFFER_SIZE = 1024;
+	private static final int DEFAULT_BATCH = 64;
+	private static final int MAX_SESSIONS = 1 << 16; // per shard
+	private static final long SESSION_TTL = 300_000; // ms
 
-	private final DatagramChannel dc;
-	private final HashMap<InetSocketAddress, HashMap<Long, SumData>> cltData = new HashMap<>();
-	private static final byte ACK = 2;
-	private static final byte RESPONSE = 3;
-	private static final byte CLEAN = 4;
-	private static final byte CLEAN_ACK = 5;
+	private final DatagramChannel[] channels; // one per shard
+	private final int maxBatch;
 
 	
 	public ServerFreeLongSumUDP(int port) throws IOException {
-		this.dc = DatagramChannel.open();
-		this.dc.bind(new InetSocketAddress(port));
-		logger.info("ServerBetterUpperCaseUDP started on port " + port);
+		this(port, 1, DEFAULT_BATCH);
 	}
 
-	private void sendResponsePacket(SumData sumData, long sessionID, InetSocketAddress targetPortIPClient) throws IOException {
-		var sentBuffer = ByteBuffer.allocate(Byte.BYTES + Long.BYTES + Long.BYTES);
-		sentBuffer.put(RESPONSE);
-		sentBuffer.putLong(sessionID);
-		sentBuffer.putLong(sumData.partialSum);
-		sentBuffer.flip();
-		dc.send(sentBuffer, targetPortIPClient);
+	/**
+	 * @param nbShards number of threads, each one owning a part of the sessions
+	 * @param maxBatch maximum number of requests received by a shard before they
+	 *                 are answered, see {@link DatagramBatcher}
+	 */
+	public ServerFreeLongSumUDP(int port, int nbShards, int maxBatch) throws IOException {
+		if (nbShards <= 0 || maxBatch <= 0) {
+			throw new IllegalArgumentException();
+		}
+		this.maxBatch = maxBatch;
+		var first = DatagramChannel.open();
+		var reusePort = nbShards > 1 && first.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT);
+		if (nbShards > 1 && !reusePort) {
+			logger.warning("SO_REUSEPORT is not supported, the sessions are served by a single thread");
+		}
+		channels = new DatagramChannel[reusePort ? nbShards : 1];
+		channels[0] = first;
+		for (var i = 1; i < channels.length; i++) {
+			channels[i] = DatagramChannel.open();
+		}
+		try {
+			for (var dc : channels) {
+				if (reusePort) {
+					dc.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+				}
+				dc.bind(new InetSocketAddress(port));
+			}
+		} catch (IOException e) {
+			close();
+			throw e;
+		}
+		logger.info("ServerFreeLongSumUDP started on port " + port + " with " + channels.length + " shards");
 	}
 
-	private void sendResponsePacket(SumData sumData, long sessionID, int idPositionOperand, InetSocketAddress targetPortIPClient)
-			throws IOException {
-		synchronized (sumData.bitSetOperands) {
-			if (sumData.hasReceivedAllOperands()) {
-				sendResponsePacket(sumData, sessionID, targetPortIPClient);
-			} else {
-				sendACKPacket(idPositionOperand, sessionID, targetPortIPClient);
+	/**
+	 * Serves the sessions until the thread is interrupted. If a shard stops on an
+	 * error, the whole server is stopped: the channel of the shard would otherwise
+	 * stay bound and silently swallow the packets of its clients.
+	 *
+	 * @throws IOException the error which stopped the first failed shard
+	 */
+	public void serve() throws IOException {
+		if (channels.length == 1) {
+			try {
+				serve(channels[0]);
+			} finally {
+				close();
 			}
+			return;
+		}
+		var failure = new AtomicReference<Exception>();
+		var threads = new ArrayList<Thread>();
+		for (var i = 0; i < channels.length; i++) {
+			var dc = channels[i];
+			var thread = new Thread(() -> {
+				try {
+					serve(dc);
+				} catch (IOException | RuntimeException e) {
+					logger.severe(Thread.currentThread().getName() + " failed, the server stops: " + e);
+					failure.compareAndSet(null, e);
+				} finally {
+					close(); // stops the other shards
+				}
+			}, "shard-" + i);
+			threads.add(thread);
+			thread.start();
+		}
+		var interrupted = false;
+		for (var thread : threads) {
+			for (;;) {
+				try {
+					thread.join(); // the shard releases its socket when it exits
+					break;
+				} catch (InterruptedException e) {
+					interrupted = true;
+					threads.forEach(Thread::interrupt);
+				}
+			}
+		}
+		close();
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+		if (failure.get() instanceof IOException e) {
+			throw e;
+		}
+		if (failure.get() instanceof RuntimeException e) {
+			throw e;
 		}
 	}
-	
-	private void sendACKPacket(int idPositionOperand, long sessionID, InetSocketAddress targetPortIPClient) throws IOException {
-		var sentBuffer = ByteBuffer.allocate(Byte.BYTES + Long.BYTES + Long.BYTES);
-		sentBuffer.put(ACK);
-		sentBuffer.putLong(sessionID);
-		sentBuffer.putLong(idPositionOperand);
-		sentBuffer.flip();
-		dc.send(sentBuffer, targetPortIPClient);
+
+	private void serve(DatagramChannel dc) throws IOException {
+		var shard = new Shard();
+		try {
+			new DatagramBatcher(dc, maxBatch, BUFFER_SIZE).serve(shard::process);
+		} catch (ClosedChannelException e) {
+			// the server is stopped
+		}
 	}
 
-	private void clearSession(long sessionID, InetSocketAddress targetPortIPClient) throws IOException {
-		cltData.get(targetPortIPClient).remove(sessionID);
-		var sentBuffer = ByteBuffer.allocate(Byte.BYTES + Long.BYTES);
-		sentBuffer.put(CLEAN_ACK);
-		sentBuffer.putLong(sessionID);
-		sentBuffer.flip();
-		dc.send(sentBuffer, targetPortIPClient);
+	private void close() {
+		for (var dc : channels) {
+			try {
+				if (dc != null) {
+					dc.close();
+				}
+			} catch (IOException e) {
+				// nothing to do
+			}
+		}
 	}
 
+	/**
+	 * Sessions of the clients of one channel, only accessed by its thread
+	 */
+	private static class Shard {
+		private final SessionStore<SumData> sessions = new SessionStore<>(MAX_SESSIONS, SESSION_TTL, now());
 
-	public void serve() throws IOException {
-		var receivedBuffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
-		while (!Thread.interrupted()) {
-			receivedBuffer.clear();
-			var targetPortIPClient = (InetSocketAddress) dc.receive(receivedBuffer);
-			receivedBuffer.flip();
+		private static long now() {
+			return System.nanoTime() / 1_000_000;
+		}
 
-			var OperandID = receivedBuffer.get();
-			var sessionID = receivedBuffer.getLong();
+		/**
+		 * Replaces the request in packet by its answer: ACK or RESPONSE for an
+		 * operand, CLEAN_ACK for CLEAN
+		 */
+		private boolean process(InetSocketAddress targetPortIPClient, ByteBuffer packet) {
+			if (packet.remaining() < CLEAN_SIZE) {
+				return false;
+			}
+			var OperandID = packet.get();
+			var sessionID = packet.getLong();
+			var now = now();
+			sessions.expire(now);
 
 			if (OperandID == CLEAN) {
-				clearSession(sessionID, targetPortIPClient);
-			} else {
-				var idPositionOperand = (int) receivedBuffer.getLong();
-				var totalOperand = receivedBuffer.getLong();
-				var operandValue = receivedBuffer.getLong();
-
-				logger.info(
-						"Received: SessionID ->" + sessionID + 
-						" idPositionOperand -> " + idPositionOperand + 
-						" OperandValue -> " + operandValue
-						);
-
-				var sumData = cltData.computeIfAbsent(targetPortIPClient, key -> new HashMap<>()).computeIfAbsent(sessionID,
-						value -> new SumData(totalOperand));
-				System.out.println("ttOps : " + totalOperand);
-				sumData.update(operandValue, idPositionOperand);
-				sendResponsePacket(sumData, sessionID, idPositionOperand, targetPortIPClient);
+				sessions.remove(targetPortIPClient, sessionID);
+				LongSumPackets.cleanAck(packet, sessionID);
+				return true;
 			}
-		}
-		dc.close();
-	}
-
-	
-	private static class SumData {
-		private final long nbTotalElements;
-		private final BitSet bitSetOperands;
-		private long partialSum;
-
-		SumData(long nbTotalElements) {
-			this.nbTotalElements = nbTotalElements;
-			this.bitSetOperands = new BitSet((int) nbTotalElements);
-		}
-		
-		private boolean hasReceivedAllOperands() {
-			synchronized (bitSetOperands) {
-				return this.bitSetOperands.cardinality() == this.nbTotalElements;
+			if (OperandID != OP || packet.remaining() < OP_SIZE - CLEAN_SIZE) {
+				return false;
 			}
-
-		}
-		public void update(long value, long idPositionOperand) {
-			synchronized (bitSetOperands) {
-				var bitAtIndex = this.bitSetOperands.get((int) idPositionOperand);
-				if (!bitAtIndex) {
-					this.bitSetOperands.set((int) idPositionOperand);
-					this.partialSum += value;
+			var idPositionOperand = packet.getLong();
+			var totalOperand = packet.getLong();
+			var operandValue = packet.getLong();
+
+			var sumData = sessions.get(targetPortIPClient, sessionID, now);
+			if (sumData == null) {
+				if (totalOperand <= 0) {
+					return false;
 				}
+				sumData = new SumData(totalOperand);
+				sessions.put(targetPortIPClient, sessionID, sumData, now);
+			}
+			if (idPositionOperand < 0 || idPositionOperand >= sumData.nbTotalElements()) {
+				return false;
 			}
+			sumData.update(operandValue, idPositionOperand);
 
+			if (sumData.hasReceivedAllOperands()) {
+				LongSumPackets.response(packet, sessionID, sumData.partialSum());
+			} else {
+				LongSumPackets.ack(packet, sessionID, idPositionOperand);
+			}
+			return true;
 		}
 	}
-	
+
 	
 	public static void usage() {
-		System.out.println("Usage : ServerFreeLongSum port");
+		System.out.println("Usage : ServerFreeLongSum port [shards] [batch]");
 	}
 
 	public static void main(String[] args) throws IOException {
-		if (args.length != 1) {
+		if (args.length < 1 || args.length > 3) {
 			usage();
 			return;
 		}
@@ -145,8 +227,10 @@ public class ServerFreeLongSumUDP {
 			logger.severe("The port number must be between 1024 and 65535");
 			return;
 		}
+		var nbShards = args.length > 1 ? Integer.valueOf(args[1]) : Runtime.getRuntime().availableProcessors();
+		var maxBatch = args.length > 2 ? Integer.valueOf(args[2]) : DEFAULT_BATCH;
 		try {
-			server = new ServerFreeLongSumUDP(port);
+			server = new ServerFreeLongSumUDP(port, nbShards, maxBatch);
 		} catch (BindException e) {
 			logger.severe("Server could not bind on " + port + "\nAnother server is probably running on this port.");
 			return;
@@ -0,0 +1,146 @@
+package fr.upem.net.udp;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static fr.upem.net.udp.LongSumPackets.*;
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ServerFreeLongSumUDPTest {
+
+    private static final int NB_CLIENTS = 8;
+    private static final int NB_SESSIONS = 50;
+    private static final int TIMEOUT = 200; // ms
+
+    private static int freePort() throws IOException {
+        try (var dc = DatagramChannel.open()) {
+            dc.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+            return ((InetSocketAddress) dc.getLocalAddress()).getPort();
+        }
+    }
+
+    /**
+     * Client of a session: sends the operands in a random order, resends those
+     * which are not acknowledged and returns the sum given by the server, then
+     * frees the session
+     */
+    private static void session(DatagramSocket socket, InetSocketAddress server, long sessionId, Random random)
+            throws IOException {
+        var total = 1 + random.nextInt(100);
+        var operands = new long[total];
+        var expected = 0L;
+        for (var i = 0; i < total; i++) {
+            operands[i] = random.nextLong();
+            expected += operands[i];
+        }
+        var pending = new HashSet<Long>();
+        for (var i = 0L; i < total; i++) {
+            pending.add(i);
+        }
+        var buffer = ByteBuffer.allocate(OP_SIZE);
+        var answer = new DatagramPacket(new byte[OP_SIZE], OP_SIZE);
+        Long sum = null;
+        while (sum == null) {
+            var order = new ArrayList<>(pending);
+            Collections.shuffle(order, random);
+            for (var position : order) {
+                buffer.clear().put(OP).putLong(sessionId).putLong(position).putLong(total)
+                        .putLong(operands[(int) (long) position]);
+                socket.send(new DatagramPacket(buffer.array(), OP_SIZE, server));
+            }
+            try {
+                while (sum == null && !pending.isEmpty()) {
+                    socket.receive(answer);
+                    var bb = ByteBuffer.wrap(answer.getData(), 0, answer.getLength());
+                    var type = bb.get();
+                    if (bb.getLong() != sessionId) {
+                        continue; // late answer of a previous session
+                    }
+                    if (type == ACK) {
+                        pending.remove(bb.getLong());
+                    } else if (type == RESPONSE) {
+                        sum = bb.getLong();
+                    }
+                }
+            } catch (SocketTimeoutException e) {
+                // resends the operands which are not acknowledged
+            }
+        }
+        assertEquals(expected, sum);
+
+        buffer.clear().put(CLEAN).putLong(sessionId);
+        for (;;) {
+            socket.send(new DatagramPacket(buffer.array(), CLEAN_SIZE, server));
+            try {
+                for (;;) {
+                    socket.receive(answer);
+                    var bb = ByteBuffer.wrap(answer.getData(), 0, answer.getLength());
+                    if (bb.get() == CLEAN_ACK && bb.getLong() == sessionId) {
+                        return;
+                    }
+                }
+            } catch (SocketTimeoutException e) {
+                // resends CLEAN
+            }
+        }
+    }
+
+    @Test
+    public void concurrentClientsOnSeveralShards() throws Exception {
+        var port = freePort();
+        var server = new ServerFreeLongSumUDP(port, 3, 16);
+        var serverThread = new Thread(() -> {
+            try {
+                server.serve();
+            } catch (IOException e) {
+                throw new AssertionError(e);
+            }
+        });
+        serverThread.start();
+        ExecutorService executor = Executors.newFixedThreadPool(NB_CLIENTS);
+        try {
+            var address = new InetSocketAddress(InetAddress.getLoopbackAddress(), port);
+            var futures = new ArrayList<Future<?>>();
+            for (var i = 0; i < NB_CLIENTS; i++) {
+                var seed = i;
+                futures.add(executor.submit(() -> {
+                    var random = new Random(seed);
+                    try (var socket = new DatagramSocket()) {
+                        socket.setSoTimeout(TIMEOUT);
+                        for (var sessionId = 0L; sessionId < NB_SESSIONS; sessionId++) {
+                            session(socket, address, sessionId, random);
+                        }
+                    }
+                    return null;
+                }));
+            }
+            for (var future : futures) {
+                future.get(60, TimeUnit.SECONDS);
+            }
+        } finally {
+            executor.shutdownNow();
+            serverThread.interrupt();
+            serverThread.join(5_000);
+        }
+        assertFalse(serverThread.isAlive());
+        try (var dc = DatagramChannel.open()) {
+            dc.bind(new InetSocketAddress(port)); // all the shards released the port
+        }
+    }
+}
@@ -1,25 +1,76 @@
 package fr.upem.net.udp;
 
+import java.util.ArrayList;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.net.BindException;
 import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
 import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.ClosedChannelException;
 import java.nio.channels.DatagramChannel;
 import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
 
+/**
+ * Answers each request (id, line) with (id, line in upper case).
+ * <p>
+ * With several threads, each thread receives on its own channel bound to the
+ * same port with SO_REUSEPORT, the system spreading the clients over the
+ * channels. Where SO_REUSEPORT is not supported, the threads share one
+ * channel. Each thread serves its channel by batches with a
+ * {@link DatagramBatcher}.
+ */
 public class ServerIdUpperCaseUDP {
 
 	private static final Logger logger = Logger.getLogger(ServerIdUpperCaseUDP.class.getName());
 	private static final int BUFFER_SIZE = 1024;
-	private final DatagramChannel dc;
-	private final ByteBuffer buff = ByteBuffer.allocateDirect(BUFFER_SIZE);
 	private static final Charset UTF8 = Charset.forName("UTF8");
+	private static final int DEFAULT_BATCH = 64;
+	private final DatagramChannel[] channels; // one per thread, or a single shared one
+	private final int nbThreads;
+	private final int maxBatch;
 
 	public ServerIdUpperCaseUDP(int port) throws IOException {
-		dc = DatagramChannel.open();
-		dc.bind(new InetSocketAddress(port));
-		logger.info("ServerBetterUpperCaseUDP started on port " + port);
+		this(port, 1, DEFAULT_BATCH);
+	}
+
+	/**
+	 * @param nbThreads number of threads receiving and answering the requests
+	 * @param maxBatch  maximum number of requests received by a thread before
+	 *                  they are answered, see {@link DatagramBatcher}
+	 */
+	public ServerIdUpperCaseUDP(int port, int nbThreads, int maxBatch) throws IOException {
+		if (nbThreads <= 0 || maxBatch <= 0) {
+			throw new IllegalArgumentException();
+		}
+		this.nbThreads = nbThreads;
+		this.maxBatch = maxBatch;
+		var first = DatagramChannel.open();
+		var reusePort = nbThreads > 1 && first.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT);
+		channels = new DatagramChannel[reusePort ? nbThreads : 1];
+		channels[0] = first;
+		for (var i = 1; i < channels.length; i++) {
+			channels[i] = DatagramChannel.open();
+		}
+		try {
+			for (var dc : channels) {
+				if (reusePort) {
+					dc.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+				}
+				dc.bind(new InetSocketAddress(port));
+			}
+		} catch (IOException e) {
+			close();
+			throw e;
+		}
+		logger.info("ServerIdUpperCaseUDP started on port " + port + " with " + nbThreads + " threads"
+				+ (nbThreads == 1 ? "" : reusePort ? " (SO_REUSEPORT)" : " (shared channel)"));
 	}
 
 	/**
@@ -28,33 +79,139 @@ public class ServerIdUpperCaseUDP {
 	 * @throws IOException
 	 */
 	public void serve() throws IOException {
-		while (!Thread.interrupted()) {
+		if (nbThreads == 1) {
+			serve(channels[0]);
+			close();
+			return;
+		}
+		var threads = new ArrayList<Thread>();
+		for (var i = 0; i < nbThreads; i++) {
+			var dc = channels[i % channels.length];
+			var thread = new Thread(() -> {
+				try {
+					serve(dc);
+				} catch (IOException e) {
+					throw new UncheckedIOException(e);
+				}
+			}, "receiver-" + i);
+			threads.add(thread);
+			thread.start();
+		}
+		try {
+			for (var thread : threads) {
+				thread.join();
+			}
+		} catch (InterruptedException e) {
+			threads.forEach(Thread::interrupt);
+		} finally {
+			close();
+		}
+	}
 
-			this.buff.clear();
-			var exp = (InetSocketAddress) dc.receive(this.buff); // 1) receive request from client
-			this.buff.flip();
+	/**
+	 * Loop of one thread, with its own buffers and converter
+	 */
+	private void serve(DatagramChannel dc) throws IOException {
+		var converter = new Converter();
+		try {
+			new DatagramBatcher(dc, maxBatch, BUFFER_SIZE).serve(converter::process);
+		} catch (ClosedChannelException e) {
+			// the server is stopped
+		}
+	}
+
+	/**
+	 * Converts the requests of one thread, with its own decoder and encoder for
+	 * the messages which are not ASCII
+	 */
+	private static class Converter {
+		private final CharsetDecoder decoder = UTF8.newDecoder().onMalformedInput(CodingErrorAction.REPLACE)
+				.onUnmappableCharacter(CodingErrorAction.REPLACE);
+		private final CharsetEncoder encoder = UTF8.newEncoder().onMalformedInput(CodingErrorAction.REPLACE)
+				.onUnmappableCharacter(CodingErrorAction.REPLACE);
+		private final CharBuffer chars = CharBuffer.allocate(BUFFER_SIZE);
+		private final boolean trace = logger.isLoggable(Level.FINEST);
 
-			var id = this.buff.getLong(); // 2) read id
-			var decodedMsg = UTF8.decode(this.buff).toString(); // 3) decode msg in request
-			var upperCaseMsg = decodedMsg.toUpperCase();
+		/**
+		 * Replaces the request (id, message) in buff by (id, message in upper case)
+		 */
+		private boolean process(InetSocketAddress sender, ByteBuffer buff) {
+			if (buff.remaining() < Long.BYTES) {
+				return false;
+			}
+			// the id stays in place and the message is converted in the buffer
+			if (!upperCaseAscii(buff, Long.BYTES, buff.limit())) {
+				buff.position(Long.BYTES);
+				chars.clear();
+				decoder.reset().decode(buff, chars, true);
+				decoder.flush(chars);
+				var upperCaseMsg = chars.flip().toString().toUpperCase();
+				buff.clear().position(Long.BYTES);
+				encoder.reset().encode(CharBuffer.wrap(upperCaseMsg), buff, true); // truncated if too long
+				encoder.flush(buff);
+				buff.flip();
+			}
+			if (trace) {
+				logger.finest(UTF8.decode(buff.duplicate().position(Long.BYTES)).toString());
+			}
+			buff.position(0);
+			return true;
+		}
+	}
 
-			this.buff.clear();
-			this.buff.putLong(id);
-			this.buff.put(UTF8.encode(upperCaseMsg)); // 4) create packet with id, upperCaseMsg in UTF-8
+	private static final long HIGH_BITS = 0x8080808080808080L;
+	private static final long BELOW_A = 0x1F1F1F1F1F1F1F1FL; // 0x80 - 'a' in each byte
+	private static final long BELOW_Z = 0x0505050505050505L; // 0x80 - 'z' - 1 in each byte
 
-			logger.info(upperCaseMsg);
-			this.dc.send(this.buff.flip(), exp); // 5) send the packet to client
+	/**
+	 * Converts in place the ASCII lower case letters of bb between the absolute
+	 * indexes start and end, 8 bytes at a time. The position and the limit of bb
+	 * are not changed.
+	 * <p>
+	 * For the bytes of a word all below 0x80, adding 0x80 - 'a' to each byte sets
+	 * its high bit if it is at least 'a' and adding 0x80 - 'z' - 1 sets it if it
+	 * is after 'z', without carry to the next byte. The letters are the bytes
+	 * where only the first sum has the high bit, shifted to 0x20 and flipped.
+	 *
+	 * @return false if a byte is not ASCII, the bytes from the word containing it
+	 *         to end are then left unchanged
+	 */
+	static boolean upperCaseAscii(ByteBuffer bb, int start, int end) {
+		var i = start;
+		for (; i + Long.BYTES <= end; i += Long.BYTES) {
+			var word = bb.getLong(i);
+			if ((word & HIGH_BITS) != 0) {
+				return false;
+			}
+			var letters = ((word + BELOW_A) ^ (word + BELOW_Z)) & HIGH_BITS;
+			if (letters != 0) {
+				bb.putLong(i, word ^ (letters >>> 2));
+			}
+		}
+		for (; i < end; i++) {
+			var b = bb.get(i);
+			if (b < 0) {
+				return false;
+			}
+			if (b >= 'a' && b <= 'z') {
+				bb.put(i, (byte) (b - ('a' - 'A')));
+			}
+		}
+		return true;
+	}
 
+	private void close() throws IOException {
+		for (var dc : channels) {
+			dc.close();
 		}
-		dc.close();
 	}
 
 	public static void usage() {
-		System.out.println("Usage : ServerIdUpperCaseUDP port");
+		System.out.println("Usage : ServerIdUpperCaseUDP port [threads] [batch]");
 	}
 
 	public static void main(String[] args) throws IOException {
-		if (args.length != 1) {
+		if (args.length < 1 || args.length > 3) {
 			usage();
 			return;
 		}
@@ -65,7 +222,8 @@ public class ServerIdUpperCaseUDP {
 			return;
 		}
 		try {
-			server = new ServerIdUpperCaseUDP(port);
+			server = new ServerIdUpperCaseUDP(port, args.length > 1 ? Integer.valueOf(args[1]) : 1,
+					args.length > 2 ? Integer.valueOf(args[2]) : DEFAULT_BATCH);
 		} catch (BindException e) {
 			logger.severe("Server could not bind on " + port + "\nAnother server is probably running on this port.");
 			return;
@@ -0,0 +1,134 @@
+package fr.upem.net.udp;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.InetSocketAddress;
+import java.net.PortUnreachableException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Measures the number of packets per second answered by a
+ * ServerIdUpperCaseUDP.
+ * <p>
+ * Each sender thread has its own socket, so that SO_REUSEPORT spreads them
+ * over the threads of the server, and keeps at most window requests without
+ * answer. A request without answer after LOSS_TIMEOUT is considered lost.
+ */
+public class ServerIdUpperCaseUDPBenchmark {
+
+	private static final Charset UTF8 = Charset.forName("UTF8");
+	private static final int BUFFER_SIZE = 1024;
+	private static final long LOSS_TIMEOUT = 50; // ms
+	private static final String LINE = "Hello world, this is a benchmark line";
+
+	private final InetSocketAddress serverAddress;
+	private final int senders;
+	private final int window;
+	private final AtomicLong sent = new AtomicLong();
+	private final AtomicLong received = new AtomicLong();
+
+	public ServerIdUpperCaseUDPBenchmark(InetSocketAddress serverAddress, int senders, int window) {
+		if (senders <= 0 || window <= 0) {
+			throw new IllegalArgumentException();
+		}
+		this.serverAddress = serverAddress;
+		this.senders = senders;
+		this.window = window;
+	}
+
+	/**
+	 * Sends requests during the given duration
+	 *
+	 * @return the number of answers per second
+	 */
+	public double run(long durationMillis) throws InterruptedException {
+		var end = System.nanoTime() + durationMillis * 1_000_000;
+		var threads = new ArrayList<Thread>();
+		for (var i = 0; i < senders; i++) {
+			var thread = new Thread(() -> {
+				try {
+					send(end);
+				} catch (IOException e) {
+					throw new UncheckedIOException(e);
+				}
+			});
+			threads.add(thread);
+			thread.start();
+		}
+		for (var thread : threads) {
+			thread.join();
+		}
+		return received.get() * 1000.0 / durationMillis;
+	}
+
+	private void send(long end) throws IOException {
+		try (var dc = DatagramChannel.open(); var selector = Selector.open()) {
+			dc.connect(serverAddress);
+			dc.configureBlocking(false);
+			var key = dc.register(selector, SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+			var request = ByteBuffer.allocateDirect(BUFFER_SIZE);
+			var answer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+			var line = UTF8.encode(LINE);
+			var id = 0L;
+			var outstanding = 0;
+			var lastAnswer = System.nanoTime();
+			for (var now = lastAnswer; now < end; now = System.nanoTime()) {
+				if (outstanding > 0 && now - lastAnswer > LOSS_TIMEOUT * 1_000_000) {
+					outstanding = 0; // the outstanding requests are lost
+				}
+				key.interestOps(outstanding < window ? SelectionKey.OP_READ | SelectionKey.OP_WRITE : SelectionKey.OP_READ);
+				selector.select(LOSS_TIMEOUT);
+				selector.selectedKeys().clear();
+				try {
+					while (outstanding < window) {
+						request.clear();
+						request.putLong(id).put(line.rewind()).flip();
+						if (dc.write(request) == 0) {
+							break;
+						}
+						id++;
+						outstanding++;
+						sent.incrementAndGet();
+					}
+					for (;;) {
+						answer.clear();
+						if (dc.read(answer) <= 0) {
+							break;
+						}
+						outstanding = Math.max(outstanding - 1, 0);
+						received.incrementAndGet();
+						lastAnswer = System.nanoTime();
+					}
+				} catch (PortUnreachableException e) {
+					// no server yet, the requests are lost
+				}
+			}
+		}
+	}
+
+	private static void usage() {
+		System.out.println("Usage : ServerIdUpperCaseUDPBenchmark host port seconds [senders] [window]");
+	}
+
+	public static void main(String[] args) throws InterruptedException {
+		if (args.length < 3 || args.length > 5) {
+			usage();
+			return;
+		}
+		var serverAddress = new InetSocketAddress(args[0], Integer.parseInt(args[1]));
+		var seconds = Integer.parseInt(args[2]);
+		var senders = args.length > 3 ? Integer.parseInt(args[3]) : 4;
+		var window = args.length > 4 ? Integer.parseInt(args[4]) : 64;
+		var benchmark = new ServerIdUpperCaseUDPBenchmark(serverAddress, senders, window);
+		var pps = benchmark.run(seconds * 1000L);
+		System.out.printf("%d senders, window %d: %d requests, %d answers, %.0f answers/s, %.2f%% lost%n", senders,
+				window, benchmark.sent.get(), benchmark.received.get(), pps,
+				100.0 * (benchmark.sent.get() - benchmark.received.get()) / Math.max(benchmark.sent.get(), 1));
+	}
+}
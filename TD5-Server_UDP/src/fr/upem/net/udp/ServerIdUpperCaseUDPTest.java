@@ -0,0 +1,50 @@
+package fr.upem.net.udp;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import static fr.upem.net.udp.ServerIdUpperCaseUDP.upperCaseAscii;
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ServerIdUpperCaseUDPTest {
+
+    private static String upperCase(String string, boolean expectedAscii) {
+        var bytes = string.getBytes(StandardCharsets.UTF_8);
+        var bb = ByteBuffer.allocateDirect(bytes.length + 3);
+        bb.put(new byte[] { 1, 2, 3 }).put(bytes).flip();
+        assertEquals(expectedAscii, upperCaseAscii(bb, 3, bb.limit()));
+        assertEquals(0, bb.position());
+        assertEquals(bytes.length + 3, bb.limit());
+        assertEquals(1, bb.get(0));
+        return StandardCharsets.UTF_8.decode(bb.position(3)).toString();
+    }
+
+    @Test
+    public void ascii() {
+        assertEquals("HELLO WORLD", upperCase("hello world", true));
+        assertEquals("", upperCase("", true));
+        assertEquals("Z", upperCase("z", true));
+        assertEquals("ABCDEFGHIJKLMNOPQRSTUVWXYZ", upperCase("abcdefghijklmnopqrstuvwxyz", true));
+    }
+
+    @Test
+    public void asciiBoundaries() {
+        var all = new StringBuilder();
+        for (var c = 0; c < 128; c++) {
+            all.append((char) c);
+        }
+        assertEquals(all.toString().toUpperCase(), upperCase(all.toString(), true));
+        assertEquals("@[`{AZ", upperCase("@[`{az", true));
+    }
+
+    @Test
+    public void nonAscii() {
+        var bytes = "abcdefgh\u00e9abc".getBytes(StandardCharsets.UTF_8);
+        var bb = ByteBuffer.wrap(bytes);
+        assertFalse(upperCaseAscii(bb, 0, bb.limit()));
+        assertEquals("ABCDEFGH\u00e9abc", StandardCharsets.UTF_8.decode(bb).toString());
+        upperCase("\u20AC", false);
+    }
+}
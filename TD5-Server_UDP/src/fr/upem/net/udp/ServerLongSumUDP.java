@@ -5,8 +5,6 @@ import java.net.BindException;
 import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
 import java.nio.channels.DatagramChannel;
-import java.util.BitSet;
-import java.util.HashMap;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -14,90 +12,90 @@ public class ServerLongSumUDP {
 
 	private static final Logger LOGGER = Logger.getLogger(ServerLongSumUDP.class.getName());
 	private static final int BUFFER_SIZE = 1024;
+	private static final int DEFAULT_BATCH = 64;
+	private static final int DEFAULT_MAX_SESSIONS = 1 << 16;
+	private static final long DEFAULT_SESSION_TTL = 30_000; // ms
+	private static final long STATS_PERIOD = 10_000; // ms
 	private final DatagramChannel dc;
-	private final ByteBuffer buffRec = ByteBuffer.allocateDirect(BUFFER_SIZE);
-	private final ByteBuffer buffSend = ByteBuffer.allocateDirect(BUFFER_SIZE);
-	private final HashMap<InetSocketAddress, HashMap<Long, SumData>> cltData;
+	private final int maxBatch;
+	private final SessionStore<SumData> sessions;
+	private long lastReport = now();
 
 	public ServerLongSumUDP(int port) throws IOException {
+		this(port, DEFAULT_BATCH);
+	}
+
+	public ServerLongSumUDP(int port, int maxBatch) throws IOException {
+		this(port, maxBatch, DEFAULT_MAX_SESSIONS, DEFAULT_SESSION_TTL);
+	}
+
+	/**
+	 * @param maxBatch    maximum number of requests received before they are
+	 *                    answered, see {@link DatagramBatcher}
+	 * @param maxSessions maximum number of sessions kept, the least recently used
+	 *                    one is forgotten to start a new one
+	 * @param sessionTtl  time in milliseconds after which a session without any
+	 *                    request is forgotten
+	 */
+	public ServerLongSumUDP(int port, int maxBatch, int maxSessions, long sessionTtl) throws IOException {
 		this.dc = DatagramChannel.open();
 		this.dc.bind(new InetSocketAddress(port));
-		this.cltData = new HashMap<InetSocketAddress, HashMap<Long, SumData>>();
+		this.maxBatch = maxBatch;
+		this.sessions = new SessionStore<>(maxSessions, sessionTtl, now());
 		LOGGER.info("ServerLongSum started on port " + port);
 
 	}
 
+	private static long now() {
+		return System.nanoTime() / 1_000_000;
+	}
+
+	/**
+	 * @return the session, null if the operand does not belong to it
+	 */
 	private SumData treatOperands(InetSocketAddress targetPortIPClient, long sessionID, long IDPositionOperand,
 			long operandValue, long totalOperands) {
-
-		var sumData = cltData.computeIfAbsent(targetPortIPClient, value -> new HashMap<>()).computeIfAbsent(sessionID,
-				value -> new SumData(totalOperands));
-		System.out.println("ttOps : " + totalOperands);
+		var now = now();
+		sessions.expire(now);
+		var sumData = sessions.get(targetPortIPClient, sessionID, now);
+		if (sumData == null) {
+			if (totalOperands <= 0) {
+				return null;
+			}
+			sumData = new SumData(totalOperands);
+			sessions.put(targetPortIPClient, sessionID, sumData, now);
+		}
+		if (IDPositionOperand < 0 || IDPositionOperand >= sumData.nbTotalElements()) {
+			return null;
+		}
 		sumData.update(operandValue, IDPositionOperand);
-
+		report(now);
 		return sumData;
 	}
 
-	public ByteBuffer createACK(long sessionID, long IDPositionOperand, long operandValue, long totalOperands) {
-		this.buffSend.clear();
-
-		var num_2 = Byte.valueOf("2");
-		this.buffSend.put(num_2);
-		this.buffSend.putLong(sessionID);
-		this.buffSend.putLong(IDPositionOperand);
-		this.buffSend.flip();
-
-		return this.buffSend;
+	private void report(long now) {
+		if (now - lastReport < STATS_PERIOD) {
+			return;
+		}
+		lastReport = now;
+		var size = sessions.size();
+		var footprint = sessions.footprint(SumData::footprint);
+		LOGGER.info(String.format("%d sessions (%d expired, %d evicted), %d KB, %d bytes per session", size,
+				sessions.expired(), sessions.evicted(), footprint / 1024, size == 0 ? 0 : footprint / size));
 	}
 
-	public ByteBuffer createResponse(SumData sumData, long sessionID, long IDPositionOperand, long operandValue,
-			long totalOperands) {
-		this.buffSend.clear();
+	public ByteBuffer createACK(ByteBuffer buffSend, long sessionID, long IDPositionOperand) {
+		return LongSumPackets.ack(buffSend, sessionID, IDPositionOperand);
+	}
 
-		var num_3 = Byte.valueOf("3");
-		this.buffSend.put(num_3);
-		this.buffSend.putLong(sessionID);
-		this.buffSend.putLong(sumData.partialSum);
-		this.buffSend.flip();
-		return this.buffSend;
+	public ByteBuffer createResponse(ByteBuffer buffSend, SumData sumData, long sessionID) {
+		return LongSumPackets.response(buffSend, sessionID, sumData.partialSum());
 	}
 
 	public void serve() {
 
 		try {
-			while (!Thread.interrupted()) {
-				this.buffRec.clear();
-				InetSocketAddress targetPortIPClient = (InetSocketAddress) dc.receive(this.buffRec);
-
-				this.buffRec.flip();
-
-				// 1) Treat operands
-				var idReq = this.buffRec.get();
-				LOGGER.info("idReq : " + idReq);
-				if (idReq != 1) {
-					LOGGER.warning("The received packet is not correct");
-					continue;
-				}
-
-				var sessionID = this.buffRec.getLong();
-				var IDPositionOperand = this.buffRec.getLong();
-				var operandValue = this.buffRec.getLong();
-				var totalOperands = this.buffRec.getLong();
-
-				var sumData = this.treatOperands(targetPortIPClient, sessionID, IDPositionOperand, totalOperands, operandValue);
-
-				// 3) Response
-				if (sumData.hasReceivedAllOperands()) {
-					System.out.println("All operands are received");
-					dc.send(this.createResponse(sumData, sessionID, IDPositionOperand, operandValue, totalOperands),
-							targetPortIPClient);
-				} else {
-					// 2) send ACK
-					dc.send(this.createACK(sessionID, IDPositionOperand, operandValue, totalOperands),
-							targetPortIPClient);
-				}
-
-			}
+			new DatagramBatcher(dc, maxBatch, BUFFER_SIZE).serve(this::process);
 			dc.close();
 		} catch (IOException e) {
 			LOGGER.log(Level.WARNING, "Some I/O errors was occured", e);
@@ -105,42 +103,49 @@ public class ServerLongSumUDP {
 
 	}
 
-	private static class SumData {
-		private long nbTotalElements;
-		private BitSet bitSetOperands;
-		private long partialSum;
-
-		SumData(long nbOperations) {
-			this.nbTotalElements = nbOperations;
-			this.bitSetOperands = new BitSet((int) nbTotalElements);
+	/**
+	 * Replaces the request in packet by its ACK or by the RESPONSE of the session
+	 */
+	private boolean process(InetSocketAddress targetPortIPClient, ByteBuffer packet) {
+		// 1) Treat operands
+		if (packet.remaining() < LongSumPackets.OP_SIZE) {
+			LOGGER.warning("The received packet is not correct");
+			return false;
 		}
-
-		private boolean hasReceivedAllOperands() {
-			synchronized (bitSetOperands) {
-				return this.bitSetOperands.cardinality() == this.nbTotalElements;
-			}
-
+		var idReq = packet.get();
+		if (idReq != LongSumPackets.OP) {
+			LOGGER.warning("The received packet is not correct");
+			return false;
 		}
 
-		public void update(long value, long idPositionOperand) {
-			synchronized (bitSetOperands) {
-				var bitAtIndex = this.bitSetOperands.get((int) idPositionOperand);
-				if (!bitAtIndex) {
-					this.bitSetOperands.set((int) idPositionOperand);
-					this.partialSum += value;
-				}
-			}
+		var sessionID = packet.getLong();
+		var IDPositionOperand = packet.getLong();
+		var totalOperands = packet.getLong();
+		var operandValue = packet.getLong();
 
+		var sumData = this.treatOperands(targetPortIPClient, sessionID, IDPositionOperand, operandValue, totalOperands);
+		if (sumData == null) {
+			LOGGER.warning("The received operand is not correct");
+			return false;
 		}
 
+		// 3) Response
+		if (sumData.hasReceivedAllOperands()) {
+			LOGGER.finest("All operands are received");
+			createResponse(packet, sumData, sessionID);
+		} else {
+			// 2) send ACK
+			createACK(packet, sessionID, IDPositionOperand);
+		}
+		return true;
 	}
 
 	public static void usage() {
-		System.out.println("Usage : ServerLongSum port");
+		System.out.println("Usage : ServerLongSum port [batch [maxSessions [ttlSeconds]]]");
 	}
 
 	public static void main(String[] args) throws IOException {
-		if (args.length != 1) {
+		if (args.length < 1 || args.length > 4) {
 			usage();
 			return;
 		}
@@ -151,7 +156,9 @@ public class ServerLongSumUDP {
 			return;
 		}
 		try {
-			server = new ServerLongSumUDP(port);
+			server = new ServerLongSumUDP(port, args.length > 1 ? Integer.valueOf(args[1]) : DEFAULT_BATCH,
+					args.length > 2 ? Integer.valueOf(args[2]) : DEFAULT_MAX_SESSIONS,
+					args.length > 3 ? Integer.valueOf(args[3]) * 1000L : DEFAULT_SESSION_TTL);
 		} catch (BindException e) {
 			LOGGER.severe("Server could not bind on " + port + "\nAnother server is probably running on this port.");
 			return;
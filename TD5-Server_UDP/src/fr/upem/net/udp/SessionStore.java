@@ -0,0 +1,292 @@
+package fr.upem.net.udp;
+
+import java.net.InetSocketAddress;
+import java.util.function.ToLongFunction;
+
+/**
+ * Sessions of the clients, keyed by (address, port, session id), for at most
+ * maxSessions sessions.
+ * <p>
+ * The keys are stored as primitives in parallel arrays indexed by an entry
+ * number, found through an open addressing table with linear probing, so a
+ * lookup does not allocate nor keep the InetSocketAddress of the packet. The
+ * entries are also linked from the most to the least recently used one, so
+ * that the least recently used session is evicted to make room for a new one
+ * when the store is full.
+ * <p>
+ * Each access pushes back the deadline of the session by ttl in a timing wheel
+ * and {@link #expire(long)} removes the sessions whose deadline has passed.
+ * Times are in milliseconds and must only increase.
+ */
+class SessionStore<V> {
+
+	private static final int NIL = -1;
+	private static final long TICK = 100; // ms
+	private static final int NB_SLOTS = 1024;
+	private static final long IPV4_MAPPED = 0xFFFFL << 32; // ::ffff:a.b.c.d
+
+	private final int capacity;
+	private final long ttl;
+	private final int mask;
+	private final int[] table; // entry + 1 of each bucket, 0 if empty
+	private final long[] addressHigh;
+	private final long[] addressLow;
+	private final int[] ports;
+	private final long[] sessionIds;
+	private final Object[] values;
+	private final int[] newer; // LRU list, from head (most recent) to tail
+	private final int[] older;
+	private final TimingWheel wheel;
+	private int head = NIL;
+	private int tail = NIL;
+	private int free; // first never used entry
+	private final int[] freeList; // entries released before being reused
+	private int freeCount;
+	private int size;
+	private long lastTick; // of the last call to expire
+	private long expired;
+	private long evicted;
+
+	/**
+	 * @param maxSessions maximum number of sessions
+	 * @param ttlMillis   time after which a session which is not accessed is
+	 *                    removed
+	 * @param now         current time
+	 */
+	SessionStore(int maxSessions, long ttlMillis, long now) {
+		if (maxSessions <= 0 || maxSessions > 1 << 29 || ttlMillis <= 0) {
+			throw new IllegalArgumentException();
+		}
+		this.capacity = maxSessions;
+		this.ttl = ttlMillis;
+		var tableSize = Integer.highestOneBit(maxSessions * 2 - 1) << 1; // load factor at most 0.5
+		this.mask = tableSize - 1;
+		this.table = new int[tableSize];
+		this.addressHigh = new long[maxSessions];
+		this.addressLow = new long[maxSessions];
+		this.ports = new int[maxSessions];
+		this.sessionIds = new long[maxSessions];
+		this.values = new Object[maxSessions];
+		this.newer = new int[maxSessions];
+		this.older = new int[maxSessions];
+		this.freeList = new int[maxSessions];
+		this.wheel = new TimingWheel(maxSessions, TICK, NB_SLOTS, now);
+		this.lastTick = now / TICK;
+	}
+
+	/**
+	 * Returns the session and pushes back its deadline
+	 *
+	 * @return the value of the session, null if there is no such session
+	 */
+	@SuppressWarnings("unchecked")
+	V get(InetSocketAddress client, long sessionId, long now) {
+		var entry = find(client, sessionId);
+		if (entry == NIL) {
+			return null;
+		}
+		touch(entry, now);
+		return (V) values[entry];
+	}
+
+	/**
+	 * Adds a session which is not in the store, evicting the least recently used
+	 * session if the store is full
+	 */
+	void put(InetSocketAddress client, long sessionId, V value, long now) {
+		if (size == capacity) {
+			remove(tail);
+			evicted++;
+		}
+		var bytes = client.getAddress().getAddress();
+		var entry = freeCount > 0 ? freeList[--freeCount] : free++;
+		addressHigh[entry] = high(bytes);
+		addressLow[entry] = low(bytes);
+		ports[entry] = client.getPort();
+		sessionIds[entry] = sessionId;
+		values[entry] = value;
+		var bucket = bucketOf(entry);
+		while (table[bucket] != 0) {
+			bucket = (bucket + 1) & mask;
+		}
+		table[bucket] = entry + 1;
+		newer[entry] = NIL;
+		older[entry] = head;
+		if (head != NIL) {
+			newer[head] = entry;
+		} else {
+			tail = entry;
+		}
+		head = entry;
+		wheel.schedule(entry, now + ttl);
+		size++;
+	}
+
+	/**
+	 * Removes the session if it is in the store
+	 *
+	 * @return true if the session was removed
+	 */
+	boolean remove(InetSocketAddress client, long sessionId) {
+		var entry = find(client, sessionId);
+		if (entry == NIL) {
+			return false;
+		}
+		remove(entry);
+		return true;
+	}
+
+	/**
+	 * Removes the sessions which have not been accessed during ttl, at most one
+	 * tick late: the current slot of the wheel is only scanned once per tick, so
+	 * calling this method for every packet costs nothing between the ticks
+	 *
+	 * @return the number of removed sessions
+	 */
+	int expire(long now) {
+		var tick = now / TICK;
+		if (tick == lastTick) {
+			return 0;
+		}
+		lastTick = tick;
+		var count = wheel.expire(now, this::release);
+		expired += count;
+		return count;
+	}
+
+	int size() {
+		return size;
+	}
+
+	long expired() {
+		return expired;
+	}
+
+	long evicted() {
+		return evicted;
+	}
+
+	/**
+	 * Estimates the memory used by the store, whatever the number of sessions,
+	 * plus the memory used by the values
+	 *
+	 * @param valueFootprint memory used by a value in bytes
+	 */
+	long footprint(ToLongFunction<? super V> valueFootprint) {
+		// per entry: 4 int and 3 long arrays, the values and the 3 int and 1 long
+		// arrays of the timing wheel
+		long bytes = (long) table.length * Integer.BYTES + (long) capacity * (7 * Integer.BYTES + 4 * Long.BYTES + 8)
+				+ NB_SLOTS * Integer.BYTES;
+		for (var entry = head; entry != NIL; entry = older[entry]) {
+			@SuppressWarnings("unchecked")
+			var value = (V) values[entry];
+			bytes += valueFootprint.applyAsLong(value);
+		}
+		return bytes;
+	}
+
+	private int find(InetSocketAddress client, long sessionId) {
+		var bytes = client.getAddress().getAddress();
+		var high = high(bytes);
+		var low = low(bytes);
+		var port = client.getPort();
+		for (var bucket = hash(high, low, port, sessionId) & mask;; bucket = (bucket + 1) & mask) {
+			var entry = table[bucket] - 1;
+			if (entry == NIL || (sessionIds[entry] == sessionId && ports[entry] == port && addressLow[entry] == low
+					&& addressHigh[entry] == high)) {
+				return entry;
+			}
+		}
+	}
+
+	private void touch(int entry, long now) {
+		wheel.schedule(entry, now + ttl);
+		if (entry == head) {
+			return;
+		}
+		unlink(entry);
+		newer[entry] = NIL;
+		older[entry] = head;
+		newer[head] = entry;
+		head = entry;
+	}
+
+	private void remove(int entry) {
+		wheel.cancel(entry);
+		release(entry);
+	}
+
+	/**
+	 * Removes entry from the table and the LRU list, the entry is not scheduled
+	 * anymore in the wheel
+	 */
+	private void release(int entry) {
+		var bucket = bucketOf(entry);
+		while (table[bucket] != entry + 1) {
+			bucket = (bucket + 1) & mask;
+		}
+		// backward shift deletion: moves back the following entries which would
+		// not be found anymore behind the hole
+		for (var next = (bucket + 1) & mask; table[next] != 0; next = (next + 1) & mask) {
+			var home = bucketOf(table[next] - 1);
+			if (((next - home) & mask) >= ((next - bucket) & mask)) {
+				table[bucket] = table[next];
+				bucket = next;
+			}
+		}
+		table[bucket] = 0;
+		unlink(entry);
+		values[entry] = null;
+		freeList[freeCount++] = entry;
+		size--;
+	}
+
+	private void unlink(int entry) {
+		if (newer[entry] == NIL) {
+			head = older[entry];
+		} else {
+			older[newer[entry]] = older[entry];
+		}
+		if (older[entry] == NIL) {
+			tail = newer[entry];
+		} else {
+			newer[older[entry]] = newer[entry];
+		}
+	}
+
+	private int bucketOf(int entry) {
+		return hash(addressHigh[entry], addressLow[entry], ports[entry], sessionIds[entry]) & mask;
+	}
+
+	private static int hash(long high, long low, int port, long sessionId) {
+		var h = sessionId * 0x9E3779B97F4A7C15L;
+		h = (h ^ low ^ (high * 31) ^ port) * 0xBF58476D1CE4E5B9L;
+		return (int) (h ^ (h >>> 31));
+	}
+
+	private static long high(byte[] address) {
+		if (address.length == 4) {
+			return 0;
+		}
+		return bytesToLong(address, 0);
+	}
+
+	private static long low(byte[] address) {
+		if (address.length == 4) {
+			return IPV4_MAPPED | (bytesToLong(address, 0) >>> 32);
+		}
+		return bytesToLong(address, 8);
+	}
+
+	/**
+	 * @return the (at most 8) bytes from start as the high bytes of a long
+	 */
+	private static long bytesToLong(byte[] bytes, int start) {
+		var result = 0L;
+		var end = Math.min(start + Long.BYTES, bytes.length);
+		for (var i = start; i < end; i++) {
+			result = (result << 8) | (bytes[i] & 0xFF);
+		}
+		return result << (8 * (start + Long.BYTES - end));
+	}
+}
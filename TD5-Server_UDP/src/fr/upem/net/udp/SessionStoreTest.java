@@ -0,0 +1,107 @@
+package fr.upem.net.udp;
+
+import org.junit.jupiter.api.Test;
+
+import java.net.InetSocketAddress;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class SessionStoreTest {
+
+    private static InetSocketAddress client(int i) {
+        return new InetSocketAddress("10.0." + (i >> 8 & 0xFF) + "." + (i & 0xFF), 7000 + (i >> 16));
+    }
+
+    @Test
+    public void getPutRemove() {
+        var store = new SessionStore<String>(16, 1000, 0);
+        var v4 = new InetSocketAddress("127.0.0.1", 7777);
+        var v6 = new InetSocketAddress("::1", 7777);
+        store.put(v4, 1, "a", 0);
+        store.put(v4, 2, "b", 0);
+        store.put(new InetSocketAddress("127.0.0.1", 7778), 1, "c", 0);
+        store.put(v6, 1, "d", 0);
+        assertEquals(4, store.size());
+        assertEquals("a", store.get(new InetSocketAddress("127.0.0.1", 7777), 1, 0));
+        assertEquals("b", store.get(v4, 2, 0));
+        assertEquals("c", store.get(new InetSocketAddress("127.0.0.1", 7778), 1, 0));
+        assertEquals("d", store.get(v6, 1, 0));
+        assertNull(store.get(v4, 3, 0));
+        assertNull(store.get(new InetSocketAddress("127.0.0.2", 7777), 1, 0));
+        assertTrue(store.remove(v4, 1));
+        assertFalse(store.remove(v4, 1));
+        assertNull(store.get(v4, 1, 0));
+        assertEquals("b", store.get(v4, 2, 0));
+        assertEquals(3, store.size());
+    }
+
+    @Test
+    public void evictLeastRecentlyUsed() {
+        var store = new SessionStore<Integer>(3, 1000, 0);
+        var client = client(1);
+        store.put(client, 0, 0, 0);
+        store.put(client, 1, 1, 0);
+        store.put(client, 2, 2, 0);
+        store.get(client, 0, 0);
+        store.put(client, 3, 3, 0);
+        assertNull(store.get(client, 1, 0));
+        assertEquals(0, store.get(client, 0, 0));
+        assertEquals(2, store.get(client, 2, 0));
+        assertEquals(3, store.get(client, 3, 0));
+        assertEquals(1, store.evicted());
+        assertEquals(3, store.size());
+    }
+
+    @Test
+    public void expireSessionsNotAccessed() {
+        var store = new SessionStore<Integer>(8, 1000, 0);
+        var client = client(2);
+        store.put(client, 0, 0, 0);
+        store.put(client, 1, 1, 500);
+        store.get(client, 0, 900);
+        assertEquals(0, store.expire(1400));
+        assertEquals(1, store.expire(1600));
+        assertNull(store.get(client, 1, 1600));
+        assertEquals(0, store.get(client, 0, 1600));
+        assertEquals(1, store.expire(2700));
+        assertEquals(0, store.size());
+        assertEquals(2, store.expired());
+    }
+
+    @Test
+    public void collisionsSurviveRemovals() {
+        var store = new SessionStore<Long>(1024, 1000, 0);
+        for (var i = 0; i < 1024; i++) {
+            store.put(client(i % 7), i, (long) i, 0);
+        }
+        for (var i = 0; i < 1024; i += 3) {
+            assertTrue(store.remove(client(i % 7), i));
+        }
+        for (var i = 0; i < 1024; i++) {
+            assertEquals(i % 3 == 0 ? null : (Long) (long) i, store.get(client(i % 7), i, 0));
+        }
+    }
+
+    @Test
+    public void soakMillionsOfShortSessions() {
+        var store = new SessionStore<long[]>(10_000, 50, 0);
+        var runtime = Runtime.getRuntime();
+        var baseline = 0L;
+        for (var i = 0; i < 3_000_000; i++) {
+            var now = i / 1000; // 1000 new sessions per ms
+            store.expire(now);
+            var client = client(i & 0xFFFFF);
+            store.put(client, i, new long[4], now);
+            assertNotNull(store.get(client, i, now));
+            if (i == 1_000_000) {
+                System.gc();
+                baseline = runtime.totalMemory() - runtime.freeMemory();
+            }
+        }
+        System.gc();
+        var used = runtime.totalMemory() - runtime.freeMemory();
+        assertTrue(store.size() <= 10_000);
+        assertEquals(3_000_000, store.size() + store.expired() + store.evicted());
+        assertTrue(used - baseline < 8 << 20, "heap grew by " + (used - baseline) + " bytes");
+    }
+}
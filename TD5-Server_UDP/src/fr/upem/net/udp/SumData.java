@@ -0,0 +1,199 @@
+package fr.upem.net.udp;
+
+import java.util.Arrays;
+
+/**
+ * Sum of the operands of a session, each position being counted once.
+ * <p>
+ * The received positions are counted as they arrive, so knowing whether all
+ * the operands are received is O(1). They are kept in a compressed bitmap, as
+ * roaring bitmaps do: the positions are split in chunks of CHUNK_SIZE
+ * positions, found through an open addressing table and created on their first
+ * position. A chunk holds the sorted offsets of its positions in a char array
+ * until it has MAX_ARRAY positions, then becomes a bitmap. The memory thus
+ * depends on the received positions, not on the total, which may be any
+ * positive long. The last used chunk is kept aside, so that consecutive
+ * positions do not look up the table.
+ */
+class SumData {
+
+	private static final int CHUNK_SHIFT = 16;
+	private static final int CHUNK_SIZE = 1 << CHUNK_SHIFT; // positions per chunk
+	private static final int MAX_ARRAY = 4096; // a char array of MAX_ARRAY offsets is as big as a bitmap
+	private static final int INITIAL_ARRAY = 4;
+	private static final int INITIAL_SLOTS = 4; // a power of two, at most half full
+
+	private final long nbTotalElements;
+	private long nbReceived;
+	private long partialSum;
+	private long[] indexes; // index of the chunk of each slot of the table, -1 if empty
+	private Object[] chunks; // char[] of sorted offsets or long[] bitmap
+	private int[] cardinalities; // number of positions of each chunk
+	private int nbChunks;
+	private long lastIndex = -1;
+	private int lastSlot;
+
+	/**
+	 * @param nbTotalElements number of operands of the session, positive
+	 */
+	SumData(long nbTotalElements) {
+		if (nbTotalElements <= 0) {
+			throw new IllegalArgumentException();
+		}
+		this.nbTotalElements = nbTotalElements;
+		this.indexes = newIndexes(INITIAL_SLOTS);
+		this.chunks = new Object[INITIAL_SLOTS];
+		this.cardinalities = new int[INITIAL_SLOTS];
+	}
+
+	/**
+	 * Adds value if no operand was received at this position
+	 *
+	 * @param idPositionOperand between 0 and the number of operands (excluded)
+	 * @return true if the operand was not already received
+	 */
+	boolean update(long value, long idPositionOperand) {
+		if (idPositionOperand < 0 || idPositionOperand >= nbTotalElements) {
+			throw new IndexOutOfBoundsException(idPositionOperand);
+		}
+		var slot = slot(idPositionOperand >>> CHUNK_SHIFT);
+		var offset = (char) idPositionOperand;
+		if (!add(slot, offset)) {
+			return false;
+		}
+		cardinalities[slot]++;
+		nbReceived++;
+		partialSum += value;
+		return true;
+	}
+
+	boolean hasReceivedAllOperands() {
+		return nbReceived == nbTotalElements;
+	}
+
+	long nbTotalElements() {
+		return nbTotalElements;
+	}
+
+	long nbReceived() {
+		return nbReceived;
+	}
+
+	long partialSum() {
+		return partialSum;
+	}
+
+	/**
+	 * @return an estimation of the memory used in bytes
+	 */
+	long footprint() {
+		// SumData, the 3 arrays of the table and the chunks, with their headers
+		var bytes = 64 + 3 * 16 + (Long.BYTES + 8L + Integer.BYTES) * indexes.length;
+		for (var chunk : chunks) {
+			if (chunk instanceof char[] offsets) {
+				bytes += 16 + (long) Character.BYTES * offsets.length;
+			} else if (chunk instanceof long[] bitmap) {
+				bytes += 16 + (long) Long.BYTES * bitmap.length;
+			}
+		}
+		return bytes;
+	}
+
+	/**
+	 * @return true if offset was not in the chunk of slot
+	 */
+	private boolean add(int slot, char offset) {
+		if (chunks[slot] instanceof long[] bitmap) {
+			var mask = 1L << offset; // only the 6 low bits of offset are used
+			var word = offset >>> 6;
+			if ((bitmap[word] & mask) != 0) {
+				return false;
+			}
+			bitmap[word] |= mask;
+			return true;
+		}
+		var offsets = (char[]) chunks[slot];
+		var cardinality = cardinalities[slot];
+		var position = Arrays.binarySearch(offsets, 0, cardinality, offset);
+		if (position >= 0) {
+			return false;
+		}
+		if (cardinality == MAX_ARRAY) {
+			var bitmap = new long[CHUNK_SIZE / Long.SIZE];
+			for (var i = 0; i < cardinality; i++) {
+				bitmap[offsets[i] >>> 6] |= 1L << offsets[i];
+			}
+			chunks[slot] = bitmap;
+			return add(slot, offset);
+		}
+		position = -position - 1;
+		if (cardinality == offsets.length) {
+			offsets = Arrays.copyOf(offsets, Math.min(cardinality + (cardinality >> 1), MAX_ARRAY));
+			chunks[slot] = offsets;
+		}
+		System.arraycopy(offsets, position, offsets, position + 1, cardinality - position);
+		offsets[position] = offset;
+		return true;
+	}
+
+	/**
+	 * @return the slot of the chunk of index, created if needed
+	 */
+	private int slot(long index) {
+		if (index == lastIndex) {
+			return lastSlot;
+		}
+		var mask = indexes.length - 1;
+		var slot = hash(index) & mask;
+		while (indexes[slot] != index) {
+			if (indexes[slot] == -1) {
+				if (2 * (nbChunks + 1) > indexes.length) {
+					grow();
+					return slot(index);
+				}
+				indexes[slot] = index;
+				chunks[slot] = new char[INITIAL_ARRAY];
+				nbChunks++;
+				break;
+			}
+			slot = (slot + 1) & mask;
+		}
+		lastIndex = index;
+		lastSlot = slot;
+		return slot;
+	}
+
+	private void grow() {
+		var oldIndexes = indexes;
+		var oldChunks = chunks;
+		var oldCardinalities = cardinalities;
+		indexes = newIndexes(oldIndexes.length * 2);
+		chunks = new Object[indexes.length];
+		cardinalities = new int[indexes.length];
+		lastIndex = -1;
+		var mask = indexes.length - 1;
+		for (var i = 0; i < oldIndexes.length; i++) {
+			if (oldIndexes[i] == -1) {
+				continue;
+			}
+			var slot = hash(oldIndexes[i]) & mask;
+			while (indexes[slot] != -1) {
+				slot = (slot + 1) & mask;
+			}
+			indexes[slot] = oldIndexes[i];
+			chunks[slot] = oldChunks[i];
+			cardinalities[slot] = oldCardinalities[i];
+		}
+	}
+
+	private static long[] newIndexes(int capacity) {
+		var indexes = new long[capacity];
+		Arrays.fill(indexes, -1);
+		return indexes;
+	}
+
+	private static int hash(long index) {
+		var h = index * 0x9E3779B97F4A7C15L;
+		return (int) (h ^ (h >>> 32));
+	}
+}
@@ -0,0 +1,125 @@
+package fr.upem.net.udp;
+
+import java.util.BitSet;
+import java.util.Random;
+
+/**
+ * Measures the time to complete a session of n operands, received in order and
+ * in random order, with SumData and with the former BitSet whose cardinality
+ * was computed for each operand.
+ * <p>
+ * The former BitSet costs O(n/64) per operand, so it is only measured up to
+ * MAX_BITSET_OPERANDS operands.
+ */
+public class SumDataBenchmark {
+
+	private static final int MAX_BITSET_OPERANDS = 1_000_000;
+
+	/**
+	 * SumData as it was in ServerLongSumUDP
+	 */
+	private static class BitSetSumData {
+		private final long nbTotalElements;
+		private final BitSet bitSetOperands;
+		private long partialSum;
+
+		BitSetSumData(long nbTotalElements) {
+			this.nbTotalElements = nbTotalElements;
+			this.bitSetOperands = new BitSet((int) nbTotalElements);
+		}
+
+		boolean hasReceivedAllOperands() {
+			return bitSetOperands.cardinality() == nbTotalElements;
+		}
+
+		void update(long value, long idPositionOperand) {
+			if (!bitSetOperands.get((int) idPositionOperand)) {
+				bitSetOperands.set((int) idPositionOperand);
+				partialSum += value;
+			}
+		}
+	}
+
+	private static int[] positions(int n, boolean shuffled) {
+		var positions = new int[n];
+		for (var i = 0; i < n; i++) {
+			positions[i] = i;
+		}
+		if (shuffled) {
+			var random = new Random(0);
+			for (var i = n - 1; i > 0; i--) {
+				var j = random.nextInt(i + 1);
+				var tmp = positions[i];
+				positions[i] = positions[j];
+				positions[j] = tmp;
+			}
+		}
+		return positions;
+	}
+
+	/**
+	 * @return the time in ms to complete the session
+	 */
+	private static double sumData(int[] positions) {
+		var start = System.nanoTime();
+		var sumData = new SumData(positions.length);
+		var completed = 0;
+		for (var position : positions) {
+			sumData.update(position, position);
+			if (sumData.hasReceivedAllOperands()) {
+				completed++;
+			}
+		}
+		if (completed != 1) {
+			throw new AssertionError();
+		}
+		return (System.nanoTime() - start) / 1e6;
+	}
+
+	private static double bitSet(int[] positions) {
+		var start = System.nanoTime();
+		var sumData = new BitSetSumData(positions.length);
+		var completed = 0;
+		for (var position : positions) {
+			sumData.update(position, position);
+			if (sumData.hasReceivedAllOperands()) {
+				completed++;
+			}
+		}
+		if (completed != 1) {
+			throw new AssertionError();
+		}
+		return (System.nanoTime() - start) / 1e6;
+	}
+
+	private static void usage() {
+		System.out.println("Usage : SumDataBenchmark [maxOperands]");
+	}
+
+	public static void main(String[] args) {
+		if (args.length > 1) {
+			usage();
+			return;
+		}
+		var maxOperands = args.length == 1 ? Integer.parseInt(args[0]) : 10_000_000;
+		for (var shuffled : new boolean[] { false, true }) {
+			for (var n = 10_000; n <= maxOperands; n *= 10) {
+				var positions = positions(n, shuffled);
+				sumData(positions); // warm up
+				var line = String.format("%-8s %,12d operands: SumData %9.1f ms", shuffled ? "random" : "in order", n,
+						sumData(positions));
+				if (n <= MAX_BITSET_OPERANDS) {
+					line += String.format(", BitSet %10.1f ms", bitSet(positions));
+				}
+				System.out.println(line);
+			}
+		}
+		var sparse = new SumData(Long.MAX_VALUE);
+		var random = new Random(0);
+		for (var i = 0; i < 100_000; i++) {
+			sparse.update(1, random.nextLong() & Long.MAX_VALUE);
+		}
+		System.out.printf("sparse: 100,000 random operands out of %,d: %,d bytes%n", Long.MAX_VALUE,
+				sparse.footprint());
+	}
+}
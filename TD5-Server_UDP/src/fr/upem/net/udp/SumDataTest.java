@@ -0,0 +1,55 @@
+package fr.upem.net.udp;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class SumDataTest {
+
+    @Test
+    public void countEachPositionOnce() {
+        var sumData = new SumData(3);
+        assertTrue(sumData.update(5, 2));
+        assertFalse(sumData.update(100, 2));
+        assertTrue(sumData.update(7, 0));
+        assertFalse(sumData.hasReceivedAllOperands());
+        assertTrue(sumData.update(-2, 1));
+        assertTrue(sumData.hasReceivedAllOperands());
+        assertEquals(10, sumData.partialSum());
+        assertEquals(3, sumData.nbReceived());
+    }
+
+    @Test
+    public void positionsOutOfSession() {
+        var sumData = new SumData(10);
+        assertThrows(IndexOutOfBoundsException.class, () -> sumData.update(1, 10));
+        assertThrows(IndexOutOfBoundsException.class, () -> sumData.update(1, -1));
+        assertThrows(IllegalArgumentException.class, () -> new SumData(0));
+    }
+
+    @Test
+    public void manyChunks() {
+        var n = 1_000_003;
+        var sumData = new SumData(n);
+        for (var i = n - 1; i >= 0; i -= 2) {
+            assertTrue(sumData.update(i, i));
+        }
+        for (var i = 0; i < n; i++) {
+            assertEquals(i % 2 != 0, sumData.update(i, i));
+        }
+        assertTrue(sumData.hasReceivedAllOperands());
+        assertEquals((long) n * (n - 1) / 2, sumData.partialSum());
+    }
+
+    @Test
+    public void sparseHugeSession() {
+        var sumData = new SumData(Long.MAX_VALUE);
+        for (var i = 0; i < 1000; i++) {
+            assertTrue(sumData.update(1, Long.MAX_VALUE - 1 - i * 1_000_000_000_000L));
+        }
+        assertFalse(sumData.update(1, Long.MAX_VALUE - 1));
+        assertEquals(1000, sumData.partialSum());
+        assertFalse(sumData.hasReceivedAllOperands());
+        assertTrue(sumData.footprint() < 1 << 20);
+    }
+}
@@ -0,0 +1,175 @@
+package fr.upem.net.udp.nonblocking;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.logging.Logger;
+
+/**
+ * Serves the datagrams of a channel by batches: at each wake-up of the
+ * selector, all the pending datagrams (up to maxBatch) are received without
+ * blocking, then processed, then their answers are sent in a burst.
+ * <p>
+ * Java has no system call receiving several datagrams at once, so each
+ * datagram still costs one receive and one send, but the selector wake-up and
+ * the loop are paid once per batch. A bigger batch gives more throughput under
+ * load and delays the answer to the first datagram of the batch until the
+ * whole batch is processed: the average and maximum delays between the first
+ * receive and the last send of a batch are reported with the throughput every
+ * STATS_PERIOD.
+ * <p>
+ * When the socket cannot send, the remaining answers are kept and nothing is
+ * received until they are sent.
+ */
+public class DatagramBatcher {
+
+	private static final Logger logger = Logger.getLogger(DatagramBatcher.class.getName());
+	private static final long STATS_PERIOD = 10_000; // ms
+
+	/**
+	 * Processes a datagram
+	 */
+	@FunctionalInterface
+	public interface Handler {
+		/**
+		 * @param sender the address of the sender
+		 * @param packet the datagram in read-mode, to be replaced by the answer in
+		 *               read-mode
+		 * @return true if the content of packet must be sent back to sender
+		 */
+		boolean process(InetSocketAddress sender, ByteBuffer packet) throws IOException;
+	}
+
+	private final DatagramChannel dc;
+	private final Selector selector;
+	private final SelectionKey key;
+	private final int maxBatch;
+	private final ByteBuffer[] packets;
+	private final InetSocketAddress[] senders;
+	private int toSend; // first answer not sent
+	private int nbAnswers;
+	private long batchStart;
+
+	private long batches;
+	private long datagrams;
+	private long wakeups;
+	private long sendStalls;
+	private long totalLatency; // ns
+	private long maxLatency;
+	private int maxBatchSize;
+	private long lastReport = System.nanoTime();
+
+	/**
+	 * Configures dc in non-blocking mode and registers it to a new selector
+	 *
+	 * @param maxBatch   maximum number of datagrams received before they are
+	 *                   processed
+	 * @param packetSize maximum size of a datagram
+	 */
+	public DatagramBatcher(DatagramChannel dc, int maxBatch, int packetSize) throws IOException {
+		if (maxBatch <= 0 || packetSize <= 0) {
+			throw new IllegalArgumentException();
+		}
+		this.dc = dc;
+		this.maxBatch = maxBatch;
+		this.packets = new ByteBuffer[maxBatch];
+		this.senders = new InetSocketAddress[maxBatch];
+		var memory = ByteBuffer.allocateDirect(maxBatch * packetSize);
+		for (var i = 0; i < maxBatch; i++) {
+			packets[i] = memory.slice(i * packetSize, packetSize);
+		}
+		dc.configureBlocking(false);
+		this.selector = Selector.open();
+		this.key = dc.register(selector, SelectionKey.OP_READ);
+	}
+
+	/**
+	 * Serves the datagrams until the thread is interrupted or the channel closed
+	 */
+	public void serve(Handler handler) throws IOException {
+		try {
+			while (!Thread.interrupted() && dc.isOpen()) {
+				selector.select(STATS_PERIOD);
+				selector.selectedKeys().clear();
+				wakeups++;
+				if (toSend < nbAnswers) {
+					flush();
+				} else {
+					receiveBatch(handler);
+				}
+				key.interestOps(toSend < nbAnswers ? SelectionKey.OP_WRITE : SelectionKey.OP_READ);
+				report();
+			}
+		} finally {
+			selector.close();
+		}
+	}
+
+	private void receiveBatch(Handler handler) throws IOException {
+		var start = System.nanoTime();
+		var size = 0;
+		while (size < maxBatch) {
+			var packet = packets[size].clear();
+			var sender = (InetSocketAddress) dc.receive(packet);
+			if (sender == null) {
+				break;
+			}
+			packet.flip();
+			senders[size++] = sender;
+		}
+		if (size == 0) {
+			return;
+		}
+		// the answers are moved to the beginning of the arrays
+		nbAnswers = 0;
+		for (var i = 0; i < size; i++) {
+			if (handler.process(senders[i], packets[i])) {
+				var packet = packets[nbAnswers];
+				packets[nbAnswers] = packets[i];
+				packets[i] = packet;
+				senders[nbAnswers] = senders[i];
+				nbAnswers++;
+			}
+		}
+		toSend = 0;
+		batchStart = start;
+		batches++;
+		datagrams += size;
+		maxBatchSize = Math.max(maxBatchSize, size);
+		flush();
+	}
+
+	private void flush() throws IOException {
+		while (toSend < nbAnswers) {
+			if (dc.send(packets[toSend], senders[toSend]) == 0) {
+				sendStalls++;
+				return; // the socket buffer is full, wait for OP_WRITE
+			}
+			senders[toSend] = null;
+			toSend++;
+		}
+		var latency = System.nanoTime() - batchStart;
+		totalLatency += latency;
+		maxLatency = Math.max(maxLatency, latency);
+	}
+
+	private void report() {
+		var now = System.nanoTime();
+		var elapsed = now - lastReport;
+		if (elapsed < STATS_PERIOD * 1_000_000) {
+			return;
+		}
+		if (batches > 0) {
+			logger.info(String.format(
+					"%.0f datagrams/s, %.1f per batch (max %d), %d wake-ups, batch latency avg %.1f us max %.1f us, %d send stalls",
+					datagrams * 1e9 / elapsed, (double) datagrams / batches, maxBatchSize, wakeups,
+					totalLatency / 1e3 / batches, maxLatency / 1e3, sendStalls));
+		}
+		batches = datagrams = wakeups = sendStalls = totalLatency = maxLatency = 0;
+		maxBatchSize = 0;
+		lastReport = now;
+	}
+}
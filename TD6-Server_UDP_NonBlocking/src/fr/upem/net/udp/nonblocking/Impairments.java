@@ -0,0 +1,121 @@
+package fr.upem.net.udp.nonblocking;
+
+import java.util.SplittableRandom;
+
+/**
+ * Decides the fate of the packets of one direction of {@link UDPProxy}: lost,
+ * duplicated, delayed, reordered or dropped because the link is full.
+ * <p>
+ * The decisions only depend on the seed and on the sequence of the packets
+ * (arrival times and sizes), so a run can be replayed. With a bandwidth, the
+ * packets first wait to be sent one after the other at that rate, and those
+ * which would make more than queueLimit bytes wait are dropped. A packet is
+ * then delayed by delay plus a random jitter and, if it is reordered, by a
+ * random time in the reordering window.
+ */
+class Impairments {
+
+	enum Distribution {
+		UNIFORM, EXPONENTIAL
+	}
+
+	/**
+	 * Parameters shared by the two directions, the times are in milliseconds
+	 */
+	static class Settings {
+		double loss;
+		double duplication;
+		double reorder;
+		long reorderWindow = 300;
+		long delay;
+		long jitter;
+		Distribution distribution = Distribution.UNIFORM;
+		long bandwidth; // bytes per second, 0 for unlimited
+		int queueLimit = 64 * 1024; // bytes
+		long seed;
+
+		void check() {
+			if (!isProbability(loss) || !isProbability(duplication) || !isProbability(reorder) || reorderWindow < 0
+					|| delay < 0 || jitter < 0 || bandwidth < 0 || queueLimit <= 0) {
+				throw new IllegalArgumentException();
+			}
+		}
+
+		private static boolean isProbability(double p) {
+			return p >= 0 && p <= 1;
+		}
+	}
+
+	private static final long MILLIS = 1_000_000; // ns
+
+	private final Settings settings;
+	private final SplittableRandom random;
+	private long linkFree; // time at which the link has sent all the accepted packets
+
+	long received;
+	long lost;
+	long duplicated;
+	long reordered;
+	long queueDropped;
+
+	Impairments(Settings settings, long seed) {
+		settings.check();
+		this.settings = settings;
+		this.random = new SplittableRandom(seed);
+	}
+
+	/**
+	 * Decides when the copies of a packet received at now must be sent
+	 *
+	 * @param now        time in ns
+	 * @param size       size of the packet in bytes
+	 * @param departures receives the times in ns at which the copies must be
+	 *                   sent, at least 2 elements
+	 * @return the number of copies to send: 0 if the packet is dropped, 2 if it
+	 *         is duplicated
+	 */
+	int schedule(long now, int size, long[] departures) {
+		received++;
+		if (random.nextDouble() < settings.loss) {
+			lost++;
+			return 0;
+		}
+		var copies = 1;
+		if (random.nextDouble() < settings.duplication) {
+			duplicated++;
+			copies = 2;
+		}
+		var count = 0;
+		for (var i = 0; i < copies; i++) {
+			var departure = now;
+			if (settings.bandwidth > 0) {
+				var backlog = Math.max(linkFree - now, 0) / 1e9 * settings.bandwidth; // bytes
+				if (backlog + size > settings.queueLimit) {
+					queueDropped++;
+					continue;
+				}
+				linkFree = Math.max(now, linkFree) + size * 1_000_000_000L / settings.bandwidth;
+				departure = linkFree;
+			}
+			departure += settings.delay * MILLIS + jitter();
+			if (random.nextDouble() < settings.reorder) {
+				reordered++;
+				departure += (long) (random.nextDouble() * settings.reorderWindow * MILLIS);
+			}
+			departures[count++] = departure;
+		}
+		return count;
+	}
+
+	private long jitter() {
+		if (settings.jitter == 0) {
+			return 0;
+		}
+		var jitter = settings.jitter * MILLIS;
+		return switch (settings.distribution) {
+		case UNIFORM -> (long) (random.nextDouble() * jitter);
+		// mean jitter, capped to 10 times the mean
+		case EXPONENTIAL -> (long) Math.min(-Math.log(1 - random.nextDouble()) * jitter, 10.0 * jitter);
+		};
+	}
+}
@@ -0,0 +1,76 @@
+package fr.upem.net.udp.nonblocking;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ImpairmentsTest {
+
+    private static ArrayList<Long> run(Impairments impairments, int packets) {
+        var departures = new long[2];
+        var result = new ArrayList<Long>();
+        for (var i = 0; i < packets; i++) {
+            var copies = impairments.schedule(i * 1_000_000L, 100, departures);
+            result.add((long) copies);
+            for (var j = 0; j < copies; j++) {
+                result.add(departures[j]);
+            }
+        }
+        return result;
+    }
+
+    private static Impairments.Settings settings() {
+        var settings = new Impairments.Settings();
+        settings.loss = 0.1;
+        settings.duplication = 0.05;
+        settings.reorder = 0.2;
+        settings.jitter = 5;
+        settings.distribution = Impairments.Distribution.EXPONENTIAL;
+        return settings;
+    }
+
+    @Test
+    public void sameSeedSameFate() {
+        assertEquals(run(new Impairments(settings(), 42), 10_000), run(new Impairments(settings(), 42), 10_000));
+        assertNotEquals(run(new Impairments(settings(), 42), 10_000), run(new Impairments(settings(), 43), 10_000));
+    }
+
+    @Test
+    public void rates() {
+        var impairments = new Impairments(settings(), 7);
+        run(impairments, 100_000);
+        assertEquals(100_000, impairments.received);
+        assertEquals(10_000, impairments.lost, 500);
+        assertEquals(4_500, impairments.duplicated, 300);
+        assertEquals(19_000, impairments.reordered, 600);
+    }
+
+    @Test
+    public void nothingByDefault() {
+        var impairments = new Impairments(new Impairments.Settings(), 0);
+        var departures = new long[2];
+        for (var i = 0; i < 1000; i++) {
+            assertEquals(1, impairments.schedule(i, 100, departures));
+            assertEquals(i, departures[0]);
+        }
+    }
+
+    @Test
+    public void bandwidthSpacesAndDrops() {
+        var settings = new Impairments.Settings();
+        settings.bandwidth = 100_000; // 1 ms per packet of 100 bytes
+        settings.queueLimit = 1000;
+        var impairments = new Impairments(settings, 0);
+        var departures = new long[2];
+        for (var i = 0; i < 10; i++) {
+            assertEquals(1, impairments.schedule(0, 100, departures));
+            assertEquals((i + 1) * 1_000_000L, departures[0]);
+        }
+        assertEquals(0, impairments.schedule(0, 100, departures));
+        assertEquals(1, impairments.queueDropped);
+        assertEquals(1, impairments.schedule(5_000_000, 100, departures));
+        assertEquals(11_000_000L, departures[0]);
+    }
+}
@@ -1,99 +1,54 @@
 package fr.upem.net.udp.nonblocking;
 
 import java.io.IOException;
-import java.io.UncheckedIOException;
 import java.net.InetSocketAddress;
-import java.net.SocketAddress;
-import java.nio.ByteBuffer;
 import java.nio.channels.DatagramChannel;
-import java.nio.channels.SelectionKey;
-import java.nio.channels.Selector;
 import java.util.logging.Logger;
 
 public class ServerEcho {
 
     private static final Logger logger = Logger.getLogger(ServerEcho.class.getName());
+    private static final int DEFAULT_BATCH = 64;
 
     private final DatagramChannel dc; 
-    private final Selector selector;
     private final int BUFFER_SIZE = 1024;
-    private final ByteBuffer buff = ByteBuffer.allocateDirect(BUFFER_SIZE); // pour les rception
-    private SocketAddress exp; // expediteur , connaitre la client qui nous a contact
+    private final DatagramBatcher batcher; // reoit les paquets par lots et renvoie les rponses en rafale
     private int port;
 
     public ServerEcho(int port) throws IOException {
+        this(port, DEFAULT_BATCH);
+    }
+
+    /**
+     * @param maxBatch nombre maximum de paquets reus avant de renvoyer les rponses
+     */
+    public ServerEcho(int port, int maxBatch) throws IOException {
         this.port=port;
-        selector = Selector.open();
         dc = DatagramChannel.open();
         dc.bind(new InetSocketAddress(port));
-        dc.configureBlocking(false);
-        dc.register(selector, SelectionKey.OP_READ); // On attend la rception de paquets
- 		  // TODO set dc in non-blocking mode and register it to the selector
+        batcher = new DatagramBatcher(dc, maxBatch, BUFFER_SIZE); // passe dc en non bloquant et l'enregistre
    }
 
     /**
-     * Bloque jusqu'a l'arrive d'un paquet
-     * Ds qu'un paquet arrive le selecteur va rempli l'ensemble Selected Keys
-     * avec la cl de notre selecteur -> Appel de la mthode tratKey
+     * Bloque jusqu'a l'arrive de paquets
+     * Tous les paquets en attente sont reus puis renvoys tels quels  leur expditeur
      * @throws IOException
      */
     public void serve() throws IOException {
         logger.info("ServerEcho started on port "+port);
-        try { // on rattrapage l'uncheck exception  la sortir de la boucle et on la retransforme en une IOException
-        	while (!Thread.interrupted()) {
-                selector.select(this::treatKey);
-            }
-        } catch (UncheckedIOException e) {
-        	throw e.getCause();
-        }
-        
+        batcher.serve((exp, packet) -> true); // le paquet reu est sa propre rponse
     }
 
-    private void treatKey(SelectionKey key) {
-        try{
-	        if (key.isValid() && key.isWritable()) {
-	            doWrite(key);
-	        }
-	        if (key.isValid() && key.isReadable()) {
-	            doRead(key);
-	        }
-        } catch (IOException e) {
-            throw new UncheckedIOException(e); // on encapulse  l'intrieur la cause l'exception qui aurai t lev par doRead()  et doWrite()
-        }
-
-    }
-
-    
-    private void doRead(SelectionKey key) throws IOException {
-    	buff.clear(); // toujours av le receive
-    	exp = dc.receive(buff);
-    	if(exp == null) { // Si le selecteur s'est tromp et si  l'adresse renvoye par receive est null
-    		return; // La rception n'a pas march
-    	}
-    	buff.flip(); // flip  la rception 
-    	key.interestOps(SelectionKey.OP_WRITE); // je soihaite tre notifi quand un envoi est possible
-
-
-	 }
-
-    private void doWrite(SelectionKey key) throws IOException {
-   		dc.send(buff, exp);
-   		if(buff.hasRemaining()) { // Si il reste des donnes dans le buffer (l'envoi ne s'est pas pass)
-   			return; // On attend que le selecteur nous repropose une cl, nous re-propose d'envoyer
-   		}
-   		key.interestOps(SelectionKey.OP_READ);
-	}
-
     public static void usage() {
-        System.out.println("Usage : ServerEcho port");
+        System.out.println("Usage : ServerEcho port [batch]");
     }
 
     public static void main(String[] args) throws IOException {
-        if (args.length != 1) {
+        if (args.length != 1 && args.length != 2) {
             usage();
             return;
         }
-        ServerEcho server= new ServerEcho(Integer.valueOf(args[0]));
+        ServerEcho server= new ServerEcho(Integer.valueOf(args[0]), args.length == 2 ? Integer.valueOf(args[1]) : DEFAULT_BATCH);
         server.serve();
     }
 
@@ -7,13 +7,25 @@ import java.nio.ByteBuffer;
 import java.nio.channels.DatagramChannel;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
 
 /**
- * Classe qui possde plusieurs datagramChannel qui vont tre "binds" sur une
+ * Classe qui possde plusieurs datagramChannel qui vont tre "binds" sur une
  * plage de ports, impliquant une suveillance de plusieurs datagramChannel par le
  * Selecteur.
+ * <p>
+ * Les ports sont rpartis entre plusieurs threads, chacun avec son propre
+ * slecteur. Un paquet reu est renvoy tout de suite quand c'est possible,
+ * sinon il est mis dans le petit anneau de rponses en attente du port, et le
+ * port continue  recevoir tant que l'anneau n'est pas plein. Un port ne lit
+ * pas plus de MAX_READS paquets par rveil du slecteur, pour que les ports
+ * chargs n'affament pas les autres. Les statistiques par port (reus, envoys,
+ * mis en attente, envois bloqus) sont journalises toutes les STATS_PERIOD, en
+ * dtail au niveau FINE.
  * 
  * @author jonat
  *
@@ -21,26 +33,50 @@ import java.util.logging.Logger;
 public class ServerEchoMultiPort {
 	private static final Logger logger = Logger.getLogger(ServerEcho.class.getName());
 
-	private final Selector selector;
-	private final int BUFFER_SIZE = 1024;
+	private static final int BUFFER_SIZE = 1024;
+	static final int RING_SIZE = 8; // rponses en attente par port
+	static final int MAX_READS = 16; // paquets lus par port et par rveil
+	private static final long STATS_PERIOD = 10_000; // ms
+	private final Selector[] selectors; // un par thread
+	private final ArrayList<DatagramChannel> channels = new ArrayList<>();
+	private volatile boolean closed; // les erreurs qui suivent la fermeture sont attendues
 	private int portDebutPlage;
 	private int portFinPlage;
 
 	public ServerEchoMultiPort(int portDebutPlage, int portFinPlage) throws IOException {
+		this(portDebutPlage, portFinPlage, 1);
+	}
+
+	/**
+	 * @param nbThreads nombre de threads, chacun avec son slecteur, entre
+	 *                  lesquels les ports sont rpartis
+	 */
+	public ServerEchoMultiPort(int portDebutPlage, int portFinPlage, int nbThreads) throws IOException {
 
 		this.portDebutPlage = checkIfPortIsInvalid(portDebutPlage);
 		this.portFinPlage = checkIfPortIsInvalid(portFinPlage);
-		selector = Selector.open(); // Cration du selecteur
+		if (nbThreads <= 0) {
+			throw new IllegalArgumentException();
+		}
+		selectors = new Selector[Math.min(nbThreads, portFinPlage - portDebutPlage + 1)];
+		try {
+			for (var i = 0; i < selectors.length; i++) {
+				selectors[i] = Selector.open(); // Cration des selecteurs
+			}
 
-		for (var i = portDebutPlage; i <= portFinPlage; i++) { // Attention port de fin de plage inclus! Autant de dc que de ports
-			var dc = DatagramChannel.open();
-			dc.bind(new InetSocketAddress(i)); 
-			dc.configureBlocking(false);
-			var key = dc.register(selector, SelectionKey.OP_READ); // On attend la rception de paquets
-			key.attach(new Context(key));
-			
+			for (var i = portDebutPlage; i <= portFinPlage; i++) { // Attention port de fin de plage inclus! Autant de dc que de ports
+				var dc = DatagramChannel.open();
+				channels.add(dc);
+				dc.bind(new InetSocketAddress(i)); 
+				dc.configureBlocking(false);
+				// les ports voisins vont sur des slecteurs diffrents
+				var key = dc.register(selectors[(i - portDebutPlage) % selectors.length], SelectionKey.OP_READ);
+				key.attach(new Context(key, i));
+			}
+		} catch (IOException | RuntimeException e) {
+			close(); // libre les ports dj binds
+			throw e;
 		}
-		
 	}
 
 	/**
@@ -57,97 +93,276 @@ public class ServerEchoMultiPort {
 	}
 
 	/**
-	 * Classe interne pour stocker pour chaque SelectionKey un ByteBuffer et une
-	 * InetSocketAdress
+	 * Classe interne pour stocker pour chaque SelectionKey les rponses en attente
+	 * et les statistiques du port
 	 * Pour chaque key on va attacher un objet Context
 	 * @author jonat
 	 *
 	 */
-	private class Context {
-		private final ByteBuffer buff = ByteBuffer.allocateDirect(BUFFER_SIZE);
-		private InetSocketAddress exp;
-		private SelectionKey key;
-		private DatagramChannel dc;
+	static class Context {
+		private final SelectionKey key;
+		private final DatagramChannel dc;
+		private final int port;
+		private ByteBuffer[] ring; // allou au premier envoi bloqu
+		private final InetSocketAddress[] exps = new InetSocketAddress[RING_SIZE];
+		private int head;
+		private int count;
+		private long received;
+		private long sent;
+		private long queued;
+		private long stalls;
 		
-		Context(SelectionKey key) {
+		Context(SelectionKey key, int port) {
 			this.dc = (DatagramChannel) key.channel(); // selectionKey.channel = getter pour le lire le dc associ  la cl
 			this.key = key;
+			this.port = port;
 		}
 		
-		public void doRead() throws IOException {
-
-			buff.clear(); // toujours av le receive
-			exp = (InetSocketAddress) dc.receive(buff);
-			buff.flip(); // flip  la rception
-			
-			if(exp != null) {
-				key.interestOps(SelectionKey.OP_WRITE); // getter pour l'envoi
-			} else {
-				logger.warning("The selector gave a wrong hint (OP_READ)."); //Le selecteur s'est tromp
+		/**
+		 * Reoit les paquets dans buff, commun aux ports du thread, et les renvoie
+		 * tout de suite si rien n'est en attente
+		 */
+		void doRead(ByteBuffer buff) throws IOException {
+			for (var i = 0; i < MAX_READS && count < RING_SIZE; i++) {
+				buff.clear(); // toujours av le receive
+				var exp = (InetSocketAddress) dc.receive(buff);
+				if (exp == null) {
+					break; // plus rien  lire
+				}
+				buff.flip(); // flip  la rception
+				received++;
+				if (count == 0 && dc.send(buff, exp) != 0) {
+					sent++;
+					continue;
+				}
+				enqueue(buff, exp);
 			}
+			updateInterestOps();
 		}
 		
-		public void doWrite() throws IOException {
-
-			dc.send(buff, exp);
-			
-			if(!buff.hasRemaining()) {
-				key.interestOps(SelectionKey.OP_READ);
-			} else {
-				logger.warning("The selector gave a wrong hint (OP_WRITE)."); //Le selecteur s'est tromp
+		void doWrite() throws IOException {
+			while (count > 0) {
+				if (dc.send(ring[head], exps[head]) == 0) {
+					stalls++;
+					break; // le buffer d'envoi du systme est plein
+				}
+				sent++;
+				exps[head] = null;
+				head = (head + 1) % RING_SIZE;
+				count--;
+			}
+			updateInterestOps();
+		}
+
+		private void enqueue(ByteBuffer buff, InetSocketAddress exp) {
+			if (ring == null) {
+				ring = new ByteBuffer[RING_SIZE];
+				var memory = ByteBuffer.allocateDirect(RING_SIZE * BUFFER_SIZE);
+				for (var i = 0; i < RING_SIZE; i++) {
+					ring[i] = memory.slice(i * BUFFER_SIZE, BUFFER_SIZE);
+				}
+			}
+			queued++;
+			var tail = (head + count) % RING_SIZE;
+			ring[tail].clear().put(buff).flip();
+			exps[tail] = exp;
+			count++;
+		}
+
+		/**
+		 * Lit tant que l'anneau n'est pas plein et crit tant qu'il n'est pas vide
+		 */
+		private void updateInterestOps() {
+			var ops = (count < RING_SIZE ? SelectionKey.OP_READ : 0) | (count > 0 ? SelectionKey.OP_WRITE : 0);
+			if (key.interestOps() != ops) {
+				key.interestOps(ops);
 			}
-			
 		}
-		
-		
 		
 	}
 
 	/**
-	 * Bloque jusqu'a l'arrive d'un paquet Ds qu'un paquet arrive le selecteur va
-	 * rempli l'ensemble Selected Keys avec la cl de notre selecteur -> Appel de la
-	 * mthode treatKey
-	 * 
-	 * @throws IOException
+	 * Boucle d'un thread sur son slecteur, avec son buffer de rception
 	 */
-	public void serve() throws IOException {
-		logger.info("ServerEchoMultiPort started with plage [" + portDebutPlage + " " + portFinPlage + "]");
-		try {
-			while (!Thread.interrupted()) {
-				selector.select(this::treatKey); // consumer
+	private class Worker {
+		private final Selector selector;
+		private final int id;
+		private final ByteBuffer buff = ByteBuffer.allocateDirect(BUFFER_SIZE);
+		private long lastReport = System.nanoTime();
+
+		Worker(Selector selector, int id) {
+			this.selector = selector;
+			this.id = id;
+		}
+
+		/**
+		 * Sert les ports du slecteur jusqu' l'interruption du thread, dont le
+		 * statut d'interruption est conserv
+		 */
+		void serve() throws IOException {
+			try {
+				while (!Thread.currentThread().isInterrupted()) {
+					selector.select(this::treatKey, STATS_PERIOD); // consumer
+					report();
+				}
+			} catch (UncheckedIOException tunneled) {
+				throw tunneled.getCause();
 			}
-		} catch (UncheckedIOException tunneled) {
-			throw tunneled.getCause();
 		}
 
+		private void treatKey(SelectionKey key) {
+			try {
+				var context = (Context) key.attachment();//Je rcupre le contexte attach  ma cl 
+				if (key.isValid() && key.isWritable()) { // Est-ce qu'on peut faire un write sur cette cl ?
+					context.doWrite();
+				}
+				if (key.isValid() && key.isReadable()) { // Est-ce que la cl peut recevoir ?
+					context.doRead(buff);
+				}
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+
+		}
+
+		/**
+		 * Journalise le dbit des ports du thread et remet leurs compteurs  zro
+		 */
+		private void report() {
+			var now = System.nanoTime();
+			var elapsed = now - lastReport;
+			if (elapsed < STATS_PERIOD * 1_000_000) {
+				return;
+			}
+			lastReport = now;
+			long received = 0, sent = 0, queued = 0, stalls = 0;
+			long min = Long.MAX_VALUE, max = 0;
+			var queueing = 0;
+			var keys = selector.keys();
+			for (var key : keys) {
+				var context = (Context) key.attachment();
+				if (logger.isLoggable(Level.FINE) && context.received > 0) {
+					logger.fine("port " + context.port + ": " + context.received + " received, " + context.sent
+							+ " sent, " + context.queued + " queued, " + context.stalls + " stalls");
+				}
+				received += context.received;
+				sent += context.sent;
+				queued += context.queued;
+				stalls += context.stalls;
+				min = Math.min(min, context.received);
+				max = Math.max(max, context.received);
+				if (context.count > 0) {
+					queueing++;
+				}
+				context.received = context.sent = context.queued = context.stalls = 0;
+			}
+			if (received == 0) {
+				return;
+			}
+			logger.info(String.format(
+					"thread %d: %d ports, %.0f datagrams/s, per port min %d avg %.1f max %d, %d sent, %d queued, %d stalls, %d ports queueing",
+					id, keys.size(), received * 1e9 / elapsed, min, (double) received / keys.size(), max, sent, queued,
+					stalls, queueing));
+		}
 	}
 
-	private void treatKey(SelectionKey key) {
-		try {
-			if (key.isValid() && key.isWritable()) { // Est-ce qu'on peut faire un write sur cette cl ?
-				var context = (Context) key.attachment();//Je rcupre le contexte attach  ma cl 
-				context.doWrite();
+	/**
+	 * Sert les ports jusqu' l'interruption du thread, puis ferme les slecteurs
+	 * et libre les ports. Si le thread d'un slecteur s'arrte sur une erreur,
+	 * tout le serveur est arrt : ses ports resteraient sinon binds sans tre
+	 * servis.
+	 * 
+	 * @throws IOException l'erreur qui a arrt le premier thread en chec
+	 */
+	public void serve() throws IOException {
+		logger.info("ServerEchoMultiPort started with plage [" + portDebutPlage + " " + portFinPlage + "] on "
+				+ selectors.length + " threads");
+		if (selectors.length == 1) {
+			try {
+				new Worker(selectors[0], 0).serve();
+			} finally {
+				close();
 			}
-			if (key.isValid() && key.isReadable()) { // Est-ce que la cl peut recevoir ?
-				var context = (Context) key.attachment();//Je rcupre le contexte attach  ma cl 
-				context.doRead();
+			return;
+		}
+		var failure = new AtomicReference<Exception>();
+		var threads = new ArrayList<Thread>();
+		for (var i = 0; i < selectors.length; i++) {
+			var worker = new Worker(selectors[i], i);
+			var thread = new Thread(() -> {
+				try {
+					worker.serve();
+				} catch (IOException | RuntimeException e) {
+					if (!closed) { // sinon le serveur est dj arrt par un autre thread
+						logger.severe(Thread.currentThread().getName() + " failed, the server stops: " + e);
+						failure.compareAndSet(null, e);
+					}
+				} finally {
+					close(); // arrte les autres threads
+				}
+			}, "selector-" + i);
+			threads.add(thread);
+			thread.start();
+		}
+		var interrupted = false;
+		for (var thread : threads) {
+			for (;;) {
+				try {
+					thread.join();
+					break;
+				} catch (InterruptedException e) {
+					interrupted = true;
+					threads.forEach(Thread::interrupt);
+				}
 			}
-		} catch (IOException e) {
-			throw new UncheckedIOException(e);
 		}
+		close();
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+		if (failure.get() instanceof IOException e) {
+			throw e;
+		}
+		if (failure.get() instanceof RuntimeException e) {
+			throw e;
+		}
+	}
 
+	/**
+	 * Ferme les slecteurs et les channels, ce qui arrte les threads qui les
+	 * servent
+	 */
+	private void close() {
+		closed = true;
+		for (var selector : selectors) {
+			try {
+				if (selector != null) {
+					selector.close();
+				}
+			} catch (IOException e) {
+				// rien  faire
+			}
+		}
+		for (var dc : channels) {
+			try {
+				dc.close();
+			} catch (IOException e) {
+				// rien  faire
+			}
+		}
 	}
 	
 	public static void usage() {
-		System.out.println("Usage : ServerEchoMultiPort port_debut_plage  port_fin_plage");
+		System.out.println("Usage : ServerEchoMultiPort port_debut_plage  port_fin_plage [threads]");
 	}
 
 	public static void main(String[] args) throws IOException {
-		if (args.length != 2 || Integer.valueOf(args[0]) > Integer.valueOf(args[1])) {
+		if ((args.length != 2 && args.length != 3) || Integer.valueOf(args[0]) > Integer.valueOf(args[1])) {
 			usage();
 			return;
 		}
-		ServerEchoMultiPort server = new ServerEchoMultiPort(Integer.valueOf(args[0]), Integer.valueOf(args[1]));
+		var nbThreads = args.length == 3 ? Integer.valueOf(args[2]) : 1;
+		ServerEchoMultiPort server = new ServerEchoMultiPort(Integer.valueOf(args[0]), Integer.valueOf(args[1]), nbThreads);
 		server.serve();
 	}
 	
@@ -0,0 +1,364 @@
+package fr.upem.net.udp.nonblocking;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.net.BindException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.net.SocketAddress;
+import java.net.SocketOption;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.MembershipKey;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.spi.SelectorProvider;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ServerEchoMultiPortTest {
+
+    private static final InetSocketAddress CLIENT = new InetSocketAddress(InetAddress.getLoopbackAddress(), 7777);
+
+    /**
+     * Channel receiving the packets of its queue and whose sends fail while it
+     * is blocked, as when the send buffer of the system is full
+     */
+    private static class FakeChannel extends DatagramChannel {
+        private final ArrayDeque<String> incoming = new ArrayDeque<>();
+        private final List<String> sent = new ArrayList<>();
+        private boolean blocked;
+
+        FakeChannel() {
+            super(SelectorProvider.provider());
+        }
+
+        void receiveLater(int first, int last) {
+            for (var i = first; i <= last; i++) {
+                incoming.add(Integer.toString(i));
+            }
+        }
+
+        @Override
+        public SocketAddress receive(ByteBuffer dst) {
+            var packet = incoming.poll();
+            if (packet == null) {
+                return null;
+            }
+            dst.put(StandardCharsets.UTF_8.encode(packet));
+            return CLIENT;
+        }
+
+        @Override
+        public int send(ByteBuffer src, SocketAddress target) {
+            if (blocked) {
+                return 0;
+            }
+            assertEquals(CLIENT, target);
+            var size = src.remaining();
+            sent.add(StandardCharsets.UTF_8.decode(src).toString());
+            return size;
+        }
+
+        @Override
+        public DatagramChannel bind(SocketAddress local) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public <T> DatagramChannel setOption(SocketOption<T> name, T value) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public <T> T getOption(SocketOption<T> name) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public Set<SocketOption<?>> supportedOptions() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public DatagramSocket socket() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public boolean isConnected() {
+            return false;
+        }
+
+        @Override
+        public DatagramChannel connect(SocketAddress remote) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public DatagramChannel disconnect() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public SocketAddress getRemoteAddress() {
+            return null;
+        }
+
+        @Override
+        public int read(ByteBuffer dst) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public long read(ByteBuffer[] dsts, int offset, int length) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public int write(ByteBuffer src) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public long write(ByteBuffer[] srcs, int offset, int length) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public SocketAddress getLocalAddress() {
+            return null;
+        }
+
+        @Override
+        public MembershipKey join(InetAddress group, NetworkInterface interf) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public MembershipKey join(InetAddress group, NetworkInterface interf, InetAddress source) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        protected void implCloseSelectableChannel() {
+            // nothing to release
+        }
+
+        @Override
+        protected void implConfigureBlocking(boolean block) {
+            // always non-blocking
+        }
+    }
+
+    private static class FakeKey extends SelectionKey {
+        private final FakeChannel channel;
+        private int interestOps = OP_READ;
+
+        FakeKey(FakeChannel channel) {
+            this.channel = channel;
+        }
+
+        @Override
+        public SelectableChannel channel() {
+            return channel;
+        }
+
+        @Override
+        public Selector selector() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public boolean isValid() {
+            return true;
+        }
+
+        @Override
+        public void cancel() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public int interestOps() {
+            return interestOps;
+        }
+
+        @Override
+        public SelectionKey interestOps(int ops) {
+            interestOps = ops;
+            return this;
+        }
+
+        @Override
+        public int readyOps() {
+            return interestOps;
+        }
+    }
+
+    private static List<String> range(int first, int last) {
+        var list = new ArrayList<String>();
+        for (var i = first; i <= last; i++) {
+            list.add(Integer.toString(i));
+        }
+        return list;
+    }
+
+    @Test
+    public void ringKeepsTheRepliesInOrder() throws IOException {
+        var channel = new FakeChannel();
+        var key = new FakeKey(channel);
+        var context = new ServerEchoMultiPort.Context(key, 7);
+        var buff = ByteBuffer.allocateDirect(1024);
+
+        channel.blocked = true;
+        channel.receiveLater(0, 2);
+        context.doRead(buff);
+        assertEquals(List.of(), channel.sent);
+        assertEquals(SelectionKey.OP_READ | SelectionKey.OP_WRITE, key.interestOps());
+
+        // the ring is not empty: the new packets are queued behind, even if they could be sent
+        channel.blocked = false;
+        channel.receiveLater(3, 4);
+        context.doRead(buff);
+        assertEquals(List.of(), channel.sent);
+        context.doWrite();
+        assertEquals(range(0, 4), channel.sent);
+        assertEquals(SelectionKey.OP_READ, key.interestOps());
+    }
+
+    @Test
+    public void fullRingStopsReading() throws IOException {
+        var channel = new FakeChannel();
+        var key = new FakeKey(channel);
+        var context = new ServerEchoMultiPort.Context(key, 7);
+        var buff = ByteBuffer.allocateDirect(1024);
+        var packets = ServerEchoMultiPort.RING_SIZE + 4;
+
+        channel.blocked = true;
+        channel.receiveLater(0, packets - 1);
+        context.doRead(buff);
+        assertEquals(4, channel.incoming.size()); // the ring is full
+        assertEquals(SelectionKey.OP_WRITE, key.interestOps());
+
+        channel.blocked = false;
+        context.doWrite();
+        assertEquals(range(0, ServerEchoMultiPort.RING_SIZE - 1), channel.sent);
+        assertEquals(SelectionKey.OP_READ, key.interestOps());
+        context.doRead(buff);
+        assertEquals(range(0, packets - 1), channel.sent);
+    }
+
+    @Test
+    public void readsAtMostMaxReadsPackets() throws IOException {
+        var channel = new FakeChannel();
+        var key = new FakeKey(channel);
+        var context = new ServerEchoMultiPort.Context(key, 7);
+        var buff = ByteBuffer.allocateDirect(1024);
+        var packets = 2 * ServerEchoMultiPort.MAX_READS + 5;
+
+        channel.receiveLater(0, packets - 1);
+        context.doRead(buff);
+        assertEquals(range(0, ServerEchoMultiPort.MAX_READS - 1), channel.sent);
+        assertEquals(SelectionKey.OP_READ, key.interestOps()); // the other ports get their turn
+        context.doRead(buff);
+        context.doRead(buff);
+        assertEquals(range(0, packets - 1), channel.sent);
+    }
+
+    /**
+     * @return the first of nbPorts consecutive free UDP ports
+     */
+    private static int freePorts(int nbPorts) throws IOException {
+        var random = new Random(0);
+        for (;;) {
+            var first = 40_000 + random.nextInt(20_000);
+            var channels = new ArrayList<DatagramChannel>();
+            try {
+                for (var port = first; port < first + nbPorts; port++) {
+                    var dc = DatagramChannel.open();
+                    channels.add(dc);
+                    dc.bind(new InetSocketAddress(port));
+                }
+                return first;
+            } catch (BindException e) {
+                // tries another range
+            } finally {
+                for (var dc : channels) {
+                    dc.close();
+                }
+            }
+        }
+    }
+
+    private static void assertBindable(int first, int last) throws IOException {
+        for (var port = first; port <= last; port++) {
+            try (var dc = DatagramChannel.open()) {
+                dc.bind(new InetSocketAddress(port));
+            }
+        }
+    }
+
+    @Test
+    public void echoesOnEveryPortWithSeveralThreads() throws Exception {
+        var nbPorts = 7;
+        var first = freePorts(nbPorts);
+        var last = first + nbPorts - 1;
+        var server = new ServerEchoMultiPort(first, last, 3);
+        var serverThread = new Thread(() -> {
+            try {
+                server.serve();
+            } catch (IOException e) {
+                throw new AssertionError(e);
+            }
+        });
+        serverThread.start();
+        try (var client = new DatagramSocket()) {
+            client.setSoTimeout(200);
+            for (var port = first; port <= last; port++) {
+                var message = ("port " + port).getBytes(StandardCharsets.UTF_8);
+                var answer = new DatagramPacket(new byte[1024], 1024);
+                for (var attempt = 0;; attempt++) {
+                    client.send(new DatagramPacket(message, message.length, InetAddress.getLoopbackAddress(),
+                            port));
+                    try {
+                        client.receive(answer);
+                        break;
+                    } catch (SocketTimeoutException e) {
+                        assertTrue(attempt < 10, "no echo on port " + port);
+                    }
+                }
+                assertEquals(port, answer.getPort());
+                assertEquals("port " + port, new String(answer.getData(), 0, answer.getLength(), StandardCharsets.UTF_8));
+            }
+        } finally {
+            serverThread.interrupt();
+            serverThread.join(5_000);
+        }
+        assertFalse(serverThread.isAlive());
+        assertBindable(first, last);
+    }
+
+    @Test
+    public void constructorReleasesThePortsOnFailure() throws IOException {
+        var nbPorts = 5;
+        var first = freePorts(nbPorts);
+        try (var taken = DatagramChannel.open()) {
+            taken.bind(new InetSocketAddress(first + 3));
+            assertThrows(BindException.class, () -> new ServerEchoMultiPort(first, first + nbPorts - 1, 2));
+        }
+        assertBindable(first, first + nbPorts - 1);
+    }
+}
@@ -12,21 +12,30 @@ import java.util.logging.Logger;
 
 /**
  * Classe reprsentant un serveur avec le protocole EchoPlus monitor par une seule
- * DataGramChannel par le selecteur, ont est d'abord en OP_READ ou on attend d'tre 
- * notifi quand un paquet arrive, on effectue le read, on vrifie qu'il a fonctionner
- * et on passe au write.
+ * DatagramChannel par le slecteur. Les paquets sont reus directement dans une
+ * file circulaire de QUEUE_SIZE buffers, transforms sur place 8 octets  la
+ * fois, puis envoys dans l'ordre ds que possible.
+ * <p>
+ * La cl est en OP_READ tant que la file n'est pas pleine et en OP_WRITE tant
+ * qu'elle n'est pas vide, on continue donc  recevoir mme quand des envois
+ * sont en attente.
  * @author jonat
  *
  */
 public class ServerEchoPlus {
 	private static final Logger logger = Logger.getLogger(ServerEcho.class.getName());
 
+	private static final int QUEUE_SIZE = 64;
+	private static final long LOW_BITS = 0x0101010101010101L;
+	private static final long HIGH_BITS = 0x8080808080808080L;
 	private final DatagramChannel dc;
 	private final Selector selector;
+	private final SelectionKey key;
 	private final int BUFFER_SIZE = 1024;
-	private final ByteBuffer buffRec = ByteBuffer.allocateDirect(BUFFER_SIZE); // pour les rception
-	private final ByteBuffer buffSend = ByteBuffer.allocateDirect(BUFFER_SIZE); // pour les envoi
-	private SocketAddress exp; // expediteur , connaitre la client qui nous a contact
+	private final ByteBuffer[] queue = new ByteBuffer[QUEUE_SIZE]; // paquets reus puis transforms,  envoyer
+	private final SocketAddress[] exps = new SocketAddress[QUEUE_SIZE]; // expediteur de chaque paquet de la file
+	private int head; // premier paquet  envoyer
+	private int count; // nombre de paquets  envoyer
 	private int port;
 
 	public ServerEchoPlus(int port) throws IOException {
@@ -35,12 +44,16 @@ public class ServerEchoPlus {
 		dc = DatagramChannel.open();
 		dc.bind(new InetSocketAddress(port));
 		dc.configureBlocking(false);
-		dc.register(selector, SelectionKey.OP_READ); // On attend la rception de paquets
+		key = dc.register(selector, SelectionKey.OP_READ); // On attend la rception de paquets
+		var memory = ByteBuffer.allocateDirect(QUEUE_SIZE * BUFFER_SIZE);
+		for (var i = 0; i < QUEUE_SIZE; i++) {
+			queue[i] = memory.slice(i * BUFFER_SIZE, BUFFER_SIZE);
+		}
 
 	}
 
 	/**
-	 * Bloque jusqu'a l'arrive d'un paquet Ds qu'un paquet arrive le selecteur va
+	 * Bloque jusqu'a l'arrive d'un paquet Ds qu'un paquet arrive le selecteur va
 	 * rempli l'ensemble Selected Keys avec la cl de notre selecteur -> Appel de la
 	 * mthode tratKey
 	 * 
@@ -61,55 +74,82 @@ public class ServerEchoPlus {
 	private void treatKey(SelectionKey key) {
 		try {
 			if (key.isValid() && key.isWritable()) {
-				doWrite(key);
+				doWrite();
 			}
 			if (key.isValid() && key.isReadable()) {
-				doRead(key);
+				doRead();
 			}
+			updateInterestOps();
 		} catch (IOException e) {
 			throw new UncheckedIOException(e);
 		}
 
 	}
 
-	private void doRead(SelectionKey key) throws IOException {
-		buffRec.clear(); // toujours av le receive
-		exp = dc.receive(buffRec);
-		if (exp == null) { // on vrifie que l'expediteur est pas null
-			logger.info("The selector gave a wrong hint."); // Le selecteur s'est tromp
-			return;
-		}
-		buffRec.flip(); // on flip() le buffer de rception et on rempli le buffer d'envoi ensuite
-		buffSend.clear();
-		while(buffRec.hasRemaining()) { // on parcours le buffer de rception jusqu'a avoir puis la zone de travail
-			buffSend.put((byte) (buffRec.get() + 1 %255)); // On put dans le bufferSend des donnes incrmentes 1 modulo 255
-		}
-		buffSend.flip();
-		key.interestOps(SelectionKey.OP_WRITE);
-		
-		/*
-		var i = buff.position();
-		while (i < buff.limit()) {
-			var incementedData = ((buff.get(i) + 1) % 255);
-			buff.put((byte) incementedData); 
-			i++;
+	/**
+	 * Reoit les paquets disponibles tant que la file n'est pas pleine, puis
+	 * essaye de les envoyer
+	 */
+	private void doRead() throws IOException {
+		while (count < QUEUE_SIZE) {
+			var tail = (head + count) % QUEUE_SIZE;
+			var buff = queue[tail];
+			buff.clear(); // toujours av le receive
+			var exp = dc.receive(buff);
+			if (exp == null) { // plus rien  recevoir
+				break;
+			}
+			buff.flip();
+			increment(buff, 0, buff.limit()); // on transforme sur place
+			exps[tail] = exp;
+			count++;
 		}
-		buff.flip();
-		*/
+		doWrite();
 	}
 	
 	/**
-	 * Traiter le paquet reu
-	 * @param key
+	 * Envoie les paquets de la file dans l'ordre jusqu' ce que le systme ne
+	 * puisse plus envoyer
 	 * @throws IOException
 	 */
-	private void doWrite(SelectionKey key) throws IOException {
-		dc.send(buffSend, exp); // Envoyer les donnes qui sont dans le bufferSend  l'expediteur concern
-		if (buffSend.hasRemaining()) { // si le send a bien fonctionner
-			logger.info("The selector gave a wrong hint."); // Le selecteur s'est tromp
-			return;
+	private void doWrite() throws IOException {
+		while (count > 0) {
+			if (dc.send(queue[head], exps[head]) == 0) { // le buffer d'envoi du systme est plein
+				return; // on attend que le selecteur nous repropose d'envoyer
+			}
+			exps[head] = null;
+			head = (head + 1) % QUEUE_SIZE;
+			count--;
+		}
+	}
+
+	/**
+	 * On lit tant que la file n'est pas pleine et on crit tant qu'elle n'est pas vide
+	 */
+	private void updateInterestOps() {
+		var ops = (count < QUEUE_SIZE ? SelectionKey.OP_READ : 0) | (count > 0 ? SelectionKey.OP_WRITE : 0);
+		if (key.interestOps() != ops) {
+			key.interestOps(ops);
+		}
+	}
+
+	/**
+	 * Ajoute 1 (modulo 256)  chaque octet de bb entre start et end, sans changer
+	 * sa position ni sa limite.
+	 * <p>
+	 * Les octets sont traits 8 par 8 dans un long : ajouter 1 aux 7 bits de poids
+	 * faible de chaque octet ne dborde pas sur l'octet suivant, puis le bit de
+	 * poids fort de chaque octet est ajout par un ou exclusif.
+	 */
+	static void increment(ByteBuffer bb, int start, int end) {
+		var i = start;
+		for (; i + Long.BYTES <= end; i += Long.BYTES) {
+			var word = bb.getLong(i);
+			bb.putLong(i, ((word & ~HIGH_BITS) + LOW_BITS) ^ (word & HIGH_BITS));
+		}
+		for (; i < end; i++) {
+			bb.put(i, (byte) (bb.get(i) + 1));
 		}
-		key.interestOps(SelectionKey.OP_READ);
 	}
 
 	public static void usage() {
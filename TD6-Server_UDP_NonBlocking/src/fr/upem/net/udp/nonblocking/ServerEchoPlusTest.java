@@ -0,0 +1,38 @@
+package fr.upem.net.udp.nonblocking;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ServerEchoPlusTest {
+
+    @Test
+    public void incrementEveryByte() {
+        for (var length = 0; length < 40; length++) {
+            var bytes = new byte[length];
+            for (var i = 0; i < length; i++) {
+                bytes[i] = (byte) (i * 37 - 3);
+            }
+            var bb = ByteBuffer.allocateDirect(length + 2);
+            bb.put((byte) 9).put(bytes).put((byte) 9).flip();
+            ServerEchoPlus.increment(bb, 1, length + 1);
+            assertEquals(0, bb.position());
+            assertEquals(length + 2, bb.limit());
+            assertEquals(9, bb.get(0));
+            assertEquals(9, bb.get(length + 1));
+            for (var i = 0; i < length; i++) {
+                assertEquals((byte) (bytes[i] + 1), bb.get(i + 1), "byte " + i + " of " + length);
+            }
+        }
+    }
+
+    @Test
+    public void incrementWrapsEachByteAlone() {
+        var bb = ByteBuffer.allocate(8);
+        bb.putLong(0, 0xFF7F80FE00010FFFL);
+        ServerEchoPlus.increment(bb, 0, 8);
+        assertEquals(0x008081FF01021000L, bb.getLong(0));
+    }
+}
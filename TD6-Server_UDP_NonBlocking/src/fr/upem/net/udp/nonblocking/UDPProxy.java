@@ -0,0 +1,349 @@
+package fr.upem.net.udp.nonblocking;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.InetSocketAddress;
+import java.net.PortUnreachableException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.PriorityQueue;
+import java.util.logging.Logger;
+
+/**
+ * Proxy listening on a UDP port which forwards the packets of each client to a
+ * server and the answers of the server back to the client, through
+ * {@link Impairments} simulating packet loss, duplication, delays, reordering
+ * and a limited bandwidth. It replaces UDPProxy.jar to benchmark the clients
+ * and the servers on one machine.
+ * <p>
+ * Each client gets its own channel connected to the server, so the server sees
+ * one address per client. A client which sends nothing during CLIENT_TIMEOUT
+ * is forgotten. All the channels are served by one selector; the packets wait
+ * in a priority queue ordered by their departure time.
+ * <p>
+ * With the same seed, the same options and the same packets in the same order,
+ * the same packets are lost, duplicated and reordered. The two directions draw
+ * from two generators so that the answers do not change the fate of the
+ * requests. Unlike UDPProxy.jar, nothing is lost nor reordered by default.
+ * <p>
+ * The counters of both directions are logged every STATS_PERIOD and, with
+ * -stats, written to a file as name=value lines.
+ */
+public class UDPProxy {
+
+	private static final Logger logger = Logger.getLogger(UDPProxy.class.getName());
+	private static final int BUFFER_SIZE = 65_536;
+	private static final long CLIENT_TIMEOUT = 60_000; // ms
+	private static final long STATS_PERIOD = 10_000; // ms
+	private static final long RETRY_DELAY = 1; // ms, when the system cannot send
+
+	/**
+	 * A copy of a packet waiting for its departure time
+	 */
+	private static class Pending {
+		private final long departure; // ns
+		private final long sequence; // orders the packets with the same departure
+		private final ByteBuffer data;
+		private final Direction direction;
+		private final Client client;
+
+		Pending(long departure, long sequence, ByteBuffer data, Direction direction, Client client) {
+			this.departure = departure;
+			this.sequence = sequence;
+			this.data = data;
+			this.direction = direction;
+			this.client = client;
+		}
+	}
+
+	/**
+	 * Impairments and counters of the packets in one direction
+	 */
+	private static class Direction {
+		private final String name;
+		private final Impairments impairments;
+		private long sent;
+		private long bytes;
+		private long sendErrors;
+
+		Direction(String name, Impairments impairments) {
+			this.name = name;
+			this.impairments = impairments;
+		}
+	}
+
+	private static class Client {
+		private final SocketAddress address;
+		private final DatagramChannel upstream; // connected to the server
+		private long lastSeen; // ns
+
+		Client(SocketAddress address, DatagramChannel upstream) {
+			this.address = address;
+			this.upstream = upstream;
+		}
+	}
+
+	private final DatagramChannel listen;
+	private final InetSocketAddress serverAddress;
+	private final Selector selector;
+	private final Direction toServer;
+	private final Direction toClient;
+	private final Path statsFile;
+	private final HashMap<SocketAddress, Client> clients = new HashMap<>();
+	private final PriorityQueue<Pending> pendings = new PriorityQueue<>(
+			Comparator.<Pending>comparingLong(p -> p.departure).thenComparingLong(p -> p.sequence));
+	private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+	private final long[] departures = new long[2];
+	private long sequence;
+	private long lastReport = System.nanoTime();
+
+	/**
+	 * @param statsFile file where the counters are written, null for none
+	 */
+	public UDPProxy(int port, InetSocketAddress serverAddress, Impairments.Settings settings, Path statsFile)
+			throws IOException {
+		this.serverAddress = serverAddress;
+		this.statsFile = statsFile;
+		this.toServer = new Direction("toServer", new Impairments(settings, settings.seed));
+		this.toClient = new Direction("toClient", new Impairments(settings, settings.seed + 1));
+		selector = Selector.open();
+		listen = DatagramChannel.open();
+		listen.bind(new InetSocketAddress(port));
+		listen.configureBlocking(false);
+		listen.register(selector, SelectionKey.OP_READ);
+	}
+
+	public void serve() throws IOException {
+		logger.info("UDPProxy forwards port " + ((InetSocketAddress) listen.getLocalAddress()).getPort() + " to "
+				+ serverAddress);
+		try {
+			while (!Thread.interrupted()) {
+				selector.select(this::treatKey, timeout());
+				sendDuePackets();
+				report();
+			}
+		} catch (UncheckedIOException e) {
+			throw e.getCause();
+		}
+	}
+
+	/**
+	 * @return the time to wait for the next departure in ms, at most STATS_PERIOD
+	 */
+	private long timeout() {
+		var next = pendings.peek();
+		if (next == null) {
+			return STATS_PERIOD;
+		}
+		return Math.min(Math.max((next.departure - System.nanoTime() + 999_999) / 1_000_000, 1), STATS_PERIOD);
+	}
+
+	private void treatKey(SelectionKey key) {
+		try {
+			if (key.isValid() && key.isReadable()) {
+				if (key.channel() == listen) {
+					receiveFromClients();
+				} else {
+					receiveFromServer((Client) key.attachment());
+				}
+			}
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	private void receiveFromClients() throws IOException {
+		for (;;) {
+			buffer.clear();
+			var address = listen.receive(buffer);
+			if (address == null) {
+				return;
+			}
+			buffer.flip();
+			var client = clients.get(address);
+			if (client == null) {
+				client = connect(address);
+			}
+			var now = System.nanoTime();
+			client.lastSeen = now;
+			schedule(now, toServer, client);
+		}
+	}
+
+	private Client connect(SocketAddress address) throws IOException {
+		var upstream = DatagramChannel.open();
+		upstream.configureBlocking(false);
+		upstream.connect(serverAddress);
+		var client = new Client(address, upstream);
+		upstream.register(selector, SelectionKey.OP_READ, client);
+		clients.put(address, client);
+		return client;
+	}
+
+	private void receiveFromServer(Client client) throws IOException {
+		for (;;) {
+			buffer.clear();
+			try {
+				if (client.upstream.receive(buffer) == null) {
+					return;
+				}
+			} catch (PortUnreachableException e) {
+				// no server yet, an ICMP error for a previous packet
+				continue;
+			}
+			buffer.flip();
+			schedule(System.nanoTime(), toClient, client);
+		}
+	}
+
+	/**
+	 * Queues the copies of the packet in buffer decided by the impairments of
+	 * direction
+	 */
+	private void schedule(long now, Direction direction, Client client) {
+		var copies = direction.impairments.schedule(now, buffer.remaining(), departures);
+		if (copies == 0) {
+			return;
+		}
+		var data = ByteBuffer.allocate(buffer.remaining()).put(buffer).flip();
+		for (var i = 0; i < copies; i++) {
+			var copy = i == 0 ? data : data.duplicate();
+			pendings.add(new Pending(departures[i], sequence++, copy, direction, client));
+		}
+	}
+
+	private void sendDuePackets() throws IOException {
+		var now = System.nanoTime();
+		for (var pending = pendings.peek(); pending != null && pending.departure <= now; pending = pendings.peek()) {
+			var client = pending.client;
+			int written;
+			try {
+				if (pending.direction == toServer) {
+					written = client.upstream.isOpen() ? client.upstream.write(pending.data) : -1;
+				} else {
+					written = listen.send(pending.data, client.address);
+				}
+			} catch (PortUnreachableException e) {
+				written = -1; // the server is not running
+			}
+			if (written == 0) {
+				// the system cannot send now, the packet is retried after RETRY_DELAY
+				pendings.remove();
+				pendings.add(new Pending(now + RETRY_DELAY * 1_000_000, pending.sequence, pending.data,
+						pending.direction, client));
+				return;
+			}
+			pendings.remove();
+			if (written < 0) {
+				pending.direction.sendErrors++;
+				continue;
+			}
+			pending.direction.sent++;
+			pending.direction.bytes += written;
+		}
+	}
+
+	/**
+	 * Forgets the idle clients and exports the counters every STATS_PERIOD
+	 */
+	private void report() throws IOException {
+		var now = System.nanoTime();
+		if (now - lastReport < STATS_PERIOD * 1_000_000) {
+			return;
+		}
+		lastReport = now;
+		var iterator = clients.values().iterator();
+		while (iterator.hasNext()) {
+			var client = iterator.next();
+			if (now - client.lastSeen > CLIENT_TIMEOUT * 1_000_000) {
+				client.upstream.close();
+				iterator.remove();
+			}
+		}
+		var stats = new StringBuilder();
+		stats.append("clients=").append(clients.size()).append('\n');
+		stats.append("pending=").append(pendings.size()).append('\n');
+		for (var direction : new Direction[] { toServer, toClient }) {
+			var impairments = direction.impairments;
+			logger.info(String.format(
+					"%s: %d received, %d lost, %d duplicated, %d reordered, %d queue dropped, %d sent (%d bytes), %d errors",
+					direction.name, impairments.received, impairments.lost, impairments.duplicated,
+					impairments.reordered, impairments.queueDropped, direction.sent, direction.bytes,
+					direction.sendErrors));
+			var prefix = direction.name + '.';
+			stats.append(prefix).append("received=").append(impairments.received).append('\n');
+			stats.append(prefix).append("lost=").append(impairments.lost).append('\n');
+			stats.append(prefix).append("duplicated=").append(impairments.duplicated).append('\n');
+			stats.append(prefix).append("reordered=").append(impairments.reordered).append('\n');
+			stats.append(prefix).append("queueDropped=").append(impairments.queueDropped).append('\n');
+			stats.append(prefix).append("sent=").append(direction.sent).append('\n');
+			stats.append(prefix).append("bytes=").append(direction.bytes).append('\n');
+			stats.append(prefix).append("errors=").append(direction.sendErrors).append('\n');
+		}
+		if (statsFile != null) {
+			Files.writeString(statsFile, stats);
+		}
+	}
+
+	private static void usage() {
+		System.out.println("Usage : UDPProxy [options] port1 address port2");
+		System.out.println("The proxy listens on UDP port1 and forwards to address:port2");
+		System.out.println("Options");
+		System.out.println("-l float probability to drop a packet (default 0)");
+		System.out.println("-d float probability to duplicate a packet (default 0)");
+		System.out.println("-r float probability to reorder a packet, by delaying it in the window (default 0)");
+		System.out.println("-w int reordering window in ms (default 300)");
+		System.out.println("-delay int delay of every packet in ms (default 0)");
+		System.out.println("-jitter int random delay added to every packet in ms (default 0)");
+		System.out.println("-dist uniform|exponential distribution of the jitter: between 0 and jitter,");
+		System.out.println("      or exponential of mean jitter (default uniform)");
+		System.out.println("-bw int bandwidth of each direction in bytes/s (default unlimited)");
+		System.out.println("-queue int bytes waiting for the bandwidth before dropping (default 65536)");
+		System.out.println("-seed long seed of the random choices (default 0)");
+		System.out.println("-stats file where the counters are written every 10 s");
+	}
+
+	public static void main(String[] args) throws IOException {
+		var settings = new Impairments.Settings();
+		Path statsFile = null;
+		var i = 0;
+		try {
+			for (; i < args.length && args[i].startsWith("-"); i += 2) {
+				var value = args[i + 1];
+				switch (args[i]) {
+				case "-l" -> settings.loss = Double.parseDouble(value);
+				case "-d" -> settings.duplication = Double.parseDouble(value);
+				case "-r" -> settings.reorder = Double.parseDouble(value);
+				case "-w" -> settings.reorderWindow = Long.parseLong(value);
+				case "-delay" -> settings.delay = Long.parseLong(value);
+				case "-jitter" -> settings.jitter = Long.parseLong(value);
+				case "-dist" -> settings.distribution = Impairments.Distribution.valueOf(value.toUpperCase(Locale.ROOT));
+				case "-bw" -> settings.bandwidth = Long.parseLong(value);
+				case "-queue" -> settings.queueLimit = Integer.parseInt(value);
+				case "-seed" -> settings.seed = Long.parseLong(value);
+				case "-stats" -> statsFile = Path.of(value);
+				default -> throw new IllegalArgumentException("unknown option " + args[i]);
+				}
+			}
+			settings.check();
+		} catch (IllegalArgumentException | ArrayIndexOutOfBoundsException e) {
+			usage();
+			return;
+		}
+		if (args.length - i != 3) {
+			usage();
+			return;
+		}
+		var port = Integer.parseInt(args[i]);
+		var serverAddress = new InetSocketAddress(args[i + 1], Integer.parseInt(args[i + 2]));
+		new UDPProxy(port, serverAddress, settings, statsFile).serve();
+	}
+}
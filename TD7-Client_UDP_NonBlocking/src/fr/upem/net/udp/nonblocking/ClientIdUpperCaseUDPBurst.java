@@ -3,10 +3,12 @@ package fr.upem.net.udp.nonblocking;
 import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
 import java.nio.channels.DatagramChannel;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
 import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
 import java.nio.file.Files;
 import java.nio.file.Paths;
 import java.nio.file.StandardOpenOption;
@@ -17,17 +19,28 @@ import java.util.Set;
 import java.util.logging.Logger;
 
 
+/**
+ * Sends all the lines at once and retransmits each unacknowledged line when its
+ * own deadline expires.
+ * <p>
+ * The deadlines are kept in a {@link TimingWheel} and computed from the
+ * round-trip times of the answers, doubled at each retransmission of the same
+ * line, so a loss only costs the retransmission of the lost line and the
+ * selector sleeps until the next deadline.
+ */
 public class ClientIdUpperCaseUDPBurst {
 
 	private static Logger logger = Logger.getLogger(ClientIdUpperCaseUDPBurst.class.getName());
 	private static final Charset UTF8 = Charset.forName("UTF8");
 	private static final int BUFFER_SIZE = 1024;
-
-	private enum State {SENDING, RECEIVING, FINISHED};
+	private static final long TICK = 1; // ms
+	private static final int NB_SLOTS = 1024;
+	private static final long MIN_RTO = 5;
+	private static final long MAX_RTO = 5_000;
+	private static final int MAX_BURST = 256; // packets sent between two receptions
 
 	private final List<String> lines;
 	private final String[] upperCaseLines;
-	private final int timeout;
 	private final InetSocketAddress serverAddress;
 	private final DatagramChannel dc;
 	private final Selector selector;
@@ -35,22 +48,34 @@ public class ClientIdUpperCaseUDPBurst {
 	
 	private final ByteBuffer senderBuffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
 	private final ByteBuffer receivedBuffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
-	private long lastSend;
+	private final CharsetEncoder encoder = UTF8.newEncoder();
 	private final BitSet receivedSet; // BitSet marking received requests
 	private int numberOfLinesReceived;
 	private final int nbLines;
 
-	private State state;
+	private final TimingWheel wheel;
+	private final RttEstimator rtt;
+	private final long[] sendTimes;
+	private final int[] retransmissions;
+	private final int[] toSend; // ring of the ids waiting to be sent
+	private int toSendHead;
+	private int toSendCount;
+	private long packetsSent;
+	private long retransmitted;
 
 	private static void usage() {
 		System.out.println("Usage : ClientIdUpperCaseUDPBurst in-filename out-filename timeout host port ");
 	}
 
+	/**
+	 * @param timeout initial retransmission timeout in milliseconds, before the
+	 *                first round-trip time is measured
+	 */
 	public ClientIdUpperCaseUDPBurst(List<String> lines, int timeout, InetSocketAddress serverAddress) throws IOException {
 		nbLines = lines.size();
 		this.lines = lines;
+		checkLines();
 		upperCaseLines = new String[nbLines];
-		this.timeout = timeout;
 		this.serverAddress = serverAddress;
 		this.dc = DatagramChannel.open();
 		dc.configureBlocking(false);
@@ -58,7 +83,15 @@ public class ClientIdUpperCaseUDPBurst {
 		this.selector = Selector.open();
 		this.uniqueKey = dc.register(selector, SelectionKey.OP_WRITE);
 		this.receivedSet = new BitSet(nbLines);
-		this.state = State.SENDING;
+		this.wheel = new TimingWheel(nbLines, TICK, NB_SLOTS, now());
+		this.rtt = new RttEstimator(timeout, MIN_RTO, MAX_RTO);
+		this.sendTimes = new long[nbLines];
+		this.retransmissions = new int[nbLines];
+		this.toSend = new int[nbLines];
+		for (var i = 0; i < nbLines; i++) {
+			toSend[i] = i;
+		}
+		toSendCount = nbLines;
 	}
 
 
@@ -84,7 +117,8 @@ public class ClientIdUpperCaseUDPBurst {
 				StandardOpenOption.CREATE,
 				StandardOpenOption.WRITE,
 				StandardOpenOption.TRUNCATE_EXISTING);
-
+		logger.info(client.packetsSent + " packets sent for " + lines.size() + " lines, " + client.retransmitted
+				+ " retransmissions, final rto " + client.rtt.rto() + " ms");
 	}
 
 
@@ -100,93 +134,132 @@ public class ClientIdUpperCaseUDPBurst {
 					doRead();
 				}
 			}
-
 			selectedKeys.clear();
+			wheel.expire(now(), this::retransmit);
 		}
 		dc.close();
 		return upperCaseLines;
 	}
 
+	private static long now() {
+		return System.nanoTime() / 1_000_000;
+	}
+
 	/**
 	 * Updates the interestOps on key based on state of the context
 	 *
 	 * @return the timeout for the next select (0 means no timeout)
 	 */
 
-	private int updateInterestOps() {
-		var time = System.currentTimeMillis();
-		// Si l'etat vaut SENDING ou que le temps est suprieur  l'heure du dernier envoi + le timeout alors
-		if (this.state == State.SENDING || time > this.lastSend + this.timeout) { 
-			this.uniqueKey.interestOps(SelectionKey.OP_WRITE); // On passe en OP_WRITE
-			return 0; // si select(0), alors on attend que l'envoi soit fait
+	private long updateInterestOps() {
+		if (toSendCount > 0) {
+			uniqueKey.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+			return 0; // OP_WRITE wakes the selector as soon as the socket can send
 		}
-		if (state == State.RECEIVING) { // Rception
-			uniqueKey.interestOps(SelectionKey.OP_READ);
+		uniqueKey.interestOps(SelectionKey.OP_READ);
+		var deadline = wheel.nextDeadline();
+		if (deadline == -1) {
+			return 0;
 		}
-		var delay = (int) (this.lastSend + this.timeout - time); // dlai  retourner
-		return delay;
+		return Math.max(deadline - now(), 1);
 	}
 
 	private boolean isFinished() {
-		return state == State.FINISHED;
+		return numberOfLinesReceived == nbLines;
 	}
 
 	/**
-	 * Performs the receptions of packets
+	 * Called by the timing wheel when the deadline of a line expires
+	 */
+	private void retransmit(int idLine) {
+		retransmissions[idLine]++;
+		retransmitted++;
+		toSend[(toSendHead + toSendCount) % nbLines] = idLine;
+		toSendCount++;
+	}
+
+	/**
+	 * Performs the receptions of all the available packets, without waiting
 	 *
 	 * @throws IOException
 	 */
 	private void doRead() throws IOException {
-		var time = System.currentTimeMillis();
-		
-		while (System.currentTimeMillis() < time + timeout) {
-			this.receivedBuffer.clear(); // toujours av le receive
-			var exp = this.dc.receive(this.receivedBuffer);
-		
-			if (exp == null) {
-				logger.info("expeditor is null");
+		for (;;) {
+			receivedBuffer.clear();
+			if (dc.receive(receivedBuffer) == null) {
+				return;
+			}
+			receivedBuffer.flip();
+			if (receivedBuffer.remaining() < Long.BYTES) {
+				logger.info("Ignoring a packet too short");
 				continue;
 			}
-			this.receivedBuffer.flip();
-			var idLine = (int) receivedBuffer.getLong();
-
-			if (!this.receivedSet.get(idLine)) {
-				var decodedData = UTF8.decode(this.receivedBuffer).toString();
-				this.upperCaseLines[idLine] = decodedData;
-				this.receivedSet.set(idLine);
-				this.numberOfLinesReceived++;
-			}			
+			var id = receivedBuffer.getLong();
+			if (id < 0 || id >= nbLines || receivedSet.get((int) id)) {
+				continue; // unknown id or duplicate
+			}
+			var idLine = (int) id;
+			upperCaseLines[idLine] = UTF8.decode(receivedBuffer).toString();
+			receivedSet.set(idLine);
+			numberOfLinesReceived++;
+			wheel.cancel(idLine);
+			if (retransmissions[idLine] == 0) {
+				rtt.sample(now() - sendTimes[idLine]);
+			}
 		}
-		
-		// Statuer sur l'etat du client
-		if (this.nbLines == this.numberOfLinesReceived) {
-			this.state = State.FINISHED;
-		} else {
-			this.state = State.SENDING;
+	}
+
+	/**
+	 * Encodes line at the position of buffer
+	 *
+	 * @return false if the line does not fit in the buffer or cannot be encoded in
+	 *         UTF-8, in which case it would be sent truncated
+	 */
+	private boolean encode(String line, ByteBuffer buffer) {
+		return encoder.reset().encode(CharBuffer.wrap(line), buffer, true).isUnderflow()
+				&& encoder.flush(buffer).isUnderflow();
+	}
+
+	/**
+	 * @throws IllegalArgumentException if a line cannot be sent in a packet
+	 */
+	private void checkLines() {
+		for (var i = 0; i < lines.size(); i++) {
+			senderBuffer.clear().putLong(i);
+			if (!encode(lines.get(i), senderBuffer)) {
+				throw new IllegalArgumentException("Line " + i + " is longer than " + (BUFFER_SIZE - Long.BYTES)
+						+ " bytes in UTF-8 or cannot be encoded");
+			}
 		}
-			
 	}
 
 	/**
-	 * Tries to send the packets
+	 * Sends the lines waiting to be sent until the socket cannot send more or
+	 * MAX_BURST packets are sent, so that the answers are received while the
+	 * file is sent and their round-trip times are not overestimated
 	 *
 	 * @throws IOException
 	 */
 	private void doWrite() throws IOException {
-		
-		var idLine = 0;
-		while(idLine < this.nbLines) {
-			if (!this.receivedSet.get(idLine)) {
-				this.senderBuffer.clear(); // On nettoie le buffer d'envoi
-				this.senderBuffer.putLong(idLine); // on met dans le buffer l'ID  courant
-				var encodedData = UTF8.encode(lines.get(idLine)); //on encode les lignes en fonction de la ligne rcupre (ID)
-				this.senderBuffer.put(encodedData); // On met les donnes encodes dans le buffer d'envoi
-				
-				this.dc.send(this.senderBuffer.flip(), this.serverAddress);
-				this.lastSend = System.currentTimeMillis();
+		for (var sent = 0; toSendCount > 0 && sent < MAX_BURST; sent++) {
+			var idLine = toSend[toSendHead];
+			if (!receivedSet.get(idLine)) {
+				senderBuffer.clear();
+				senderBuffer.putLong(idLine);
+				if (!encode(lines.get(idLine), senderBuffer)) {
+					throw new IllegalStateException("line " + idLine + " modified since it was checked");
+				}
+				senderBuffer.flip();
+				if (dc.send(senderBuffer, serverAddress) == 0) {
+					return; // the socket buffer is full, wait for OP_WRITE
+				}
+				var now = now();
+				sendTimes[idLine] = now;
+				wheel.schedule(idLine, now + rtt.timeout(retransmissions[idLine]));
+				packetsSent++;
 			}
-			idLine++;
+			toSendHead = (toSendHead + 1) % nbLines;
+			toSendCount--;
 		}
-		this.state = State.RECEIVING;
 	}
-}
\ No newline at end of file
+}
@@ -0,0 +1,323 @@
+package fr.upem.net.udp.nonblocking;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Set;
+import java.util.logging.Logger;
+
+/**
+ * Sends the lines with a sliding window of outstanding ids, between the one by
+ * one client (a window of 1) and the burst client (a window of the whole file).
+ * <p>
+ * The window is either fixed or adapted as TCP does (AIMD): it grows by one
+ * line per answer up to the slow start threshold, then by one line per window,
+ * and it is halved at most once per round-trip time when a deadline expires.
+ * Only the lines whose deadline expired and which are not in the BitSet of
+ * received ids are retransmitted.
+ * <p>
+ * The answers are written in the output file in order as soon as all the
+ * previous ones are received, so at most MAX_SPAN lines are kept in memory.
+ */
+public class ClientIdUpperCaseUDPWindow {
+
+	private static Logger logger = Logger.getLogger(ClientIdUpperCaseUDPWindow.class.getName());
+	private static final Charset UTF8 = Charset.forName("UTF8");
+	private static final int BUFFER_SIZE = 1024;
+	private static final long TICK = 1; // ms
+	private static final int NB_SLOTS = 1024;
+	private static final long MIN_RTO = 5;
+	private static final long MAX_RTO = 5_000;
+	private static final int MAX_SPAN = 1 << 16; // ids between the first missing answer and the next id to send
+	private static final double MIN_WINDOW = 2;
+	private static final double INITIAL_WINDOW = 10;
+
+	private final List<String> lines;
+	private final int nbLines;
+	private final BufferedWriter writer;
+	private final InetSocketAddress serverAddress;
+	private final DatagramChannel dc;
+	private final Selector selector;
+	private final SelectionKey uniqueKey;
+
+	private final ByteBuffer senderBuffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+	private final ByteBuffer receivedBuffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+	private final CharsetEncoder encoder = UTF8.newEncoder();
+	private final BitSet receivedSet; // BitSet marking received requests
+	private final String[] upperCaseLines = new String[MAX_SPAN]; // answers not written yet, by id % MAX_SPAN
+	private int base; // first id not written in the output
+	private int nextId; // next id never sent
+
+	private final TimingWheel wheel;
+	private final RttEstimator rtt;
+	private final long[] sendTimes;
+	private final int[] retransmissions;
+	private final int[] toResend = new int[MAX_SPAN]; // ring of the expired ids
+	private int toResendHead;
+	private int toResendCount;
+	private int inFlight;
+
+	private final boolean adaptive;
+	private double window;
+	private double threshold = Double.MAX_VALUE;
+	private long lastDecrease;
+	private long packetsSent;
+	private long retransmitted;
+
+	private static void usage() {
+		System.out.println("Usage : ClientIdUpperCaseUDPWindow in-filename out-filename timeout host port [window]");
+		System.out.println("        without window, the window is adapted to the losses");
+	}
+
+	/**
+	 * @param timeout initial retransmission timeout in milliseconds
+	 * @param window  number of outstanding lines, 0 to adapt it to the losses
+	 */
+	public ClientIdUpperCaseUDPWindow(List<String> lines, BufferedWriter writer, int timeout, int window,
+			InetSocketAddress serverAddress) throws IOException {
+		if (window < 0) {
+			throw new IllegalArgumentException();
+		}
+		this.lines = lines;
+		this.nbLines = lines.size();
+		checkLines();
+		this.writer = writer;
+		this.serverAddress = serverAddress;
+		this.dc = DatagramChannel.open();
+		dc.configureBlocking(false);
+		dc.bind(null);
+		this.selector = Selector.open();
+		this.uniqueKey = dc.register(selector, SelectionKey.OP_WRITE);
+		this.receivedSet = new BitSet(nbLines);
+		this.wheel = new TimingWheel(nbLines, TICK, NB_SLOTS, now());
+		this.rtt = new RttEstimator(timeout, MIN_RTO, MAX_RTO);
+		this.sendTimes = new long[nbLines];
+		this.retransmissions = new int[nbLines];
+		this.adaptive = window == 0;
+		this.window = adaptive ? INITIAL_WINDOW : window;
+	}
+
+	public static void main(String[] args) throws IOException {
+		if (args.length != 5 && args.length != 6) {
+			usage();
+			return;
+		}
+
+		String inFilename = args[0];
+		String outFilename = args[1];
+		int timeout = Integer.valueOf(args[2]);
+		String host = args[3];
+		int port = Integer.valueOf(args[4]);
+		int window = args.length == 6 ? Integer.valueOf(args[5]) : 0;
+		InetSocketAddress serverAddress = new InetSocketAddress(host, port);
+
+		List<String> lines = Files.readAllLines(Paths.get(inFilename), UTF8);
+		var start = System.nanoTime();
+		try (var writer = Files.newBufferedWriter(Path.of(outFilename), UTF8)) {
+			var client = new ClientIdUpperCaseUDPWindow(lines, writer, timeout, window, serverAddress);
+			client.launch();
+			var seconds = (System.nanoTime() - start) / 1_000_000_000.0;
+			logger.info(String.format("%d lines in %.2f s (%.0f lines/s), %d packets sent, %d retransmissions, "
+					+ "final window %.1f, rto %d ms", lines.size(), seconds, lines.size() / seconds, client.packetsSent,
+					client.retransmitted, client.window, client.rtt.rto()));
+		}
+	}
+
+	void launch() throws IOException {
+		Set<SelectionKey> selectedKeys = selector.selectedKeys();
+		while (!isFinished()) {
+			selector.select(updateInterestOps());
+			for (SelectionKey key : selectedKeys) {
+				if (key.isValid() && key.isWritable()) {
+					doWrite();
+				}
+				if (key.isValid() && key.isReadable()) {
+					doRead();
+				}
+			}
+			selectedKeys.clear();
+			wheel.expire(now(), this::expired);
+		}
+		dc.close();
+	}
+
+	private static long now() {
+		return System.nanoTime() / 1_000_000;
+	}
+
+	private boolean isFinished() {
+		return base == nbLines;
+	}
+
+	/**
+	 * @return true if a line can be sent without exceeding the window
+	 */
+	private boolean canSend() {
+		if (inFlight >= (int) window) {
+			return false;
+		}
+		return toResendCount > 0 || (nextId < nbLines && nextId - base < MAX_SPAN);
+	}
+
+	/**
+	 * Updates the interestOps on key based on state of the context
+	 *
+	 * @return the timeout for the next select (0 means no timeout)
+	 */
+	private long updateInterestOps() {
+		if (canSend()) {
+			uniqueKey.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+			return 0;
+		}
+		uniqueKey.interestOps(SelectionKey.OP_READ);
+		var deadline = wheel.nextDeadline();
+		if (deadline == -1) {
+			return 0;
+		}
+		return Math.max(deadline - now(), 1);
+	}
+
+	/**
+	 * Called by the timing wheel when the deadline of a line expires
+	 */
+	private void expired(int idLine) {
+		inFlight--;
+		retransmissions[idLine]++;
+		retransmitted++;
+		toResend[(toResendHead + toResendCount) % MAX_SPAN] = idLine;
+		toResendCount++;
+		var now = now();
+		if (adaptive && now - lastDecrease >= Math.max(rtt.srtt(), TICK)) {
+			// one decrease per round-trip, the other losses of this window are the same congestion
+			threshold = Math.max(window / 2, MIN_WINDOW);
+			window = threshold;
+			lastDecrease = now;
+		}
+	}
+
+	/**
+	 * Performs the receptions of all the available packets, without waiting
+	 *
+	 * @throws IOException
+	 */
+	private void doRead() throws IOException {
+		for (;;) {
+			receivedBuffer.clear();
+			if (dc.receive(receivedBuffer) == null) {
+				break;
+			}
+			receivedBuffer.flip();
+			if (receivedBuffer.remaining() < Long.BYTES) {
+				logger.info("Ignoring a packet too short");
+				continue;
+			}
+			var id = receivedBuffer.getLong();
+			if (id < base || id >= nextId || receivedSet.get((int) id)) {
+				continue; // unknown id or duplicate
+			}
+			var idLine = (int) id;
+			upperCaseLines[idLine % MAX_SPAN] = UTF8.decode(receivedBuffer).toString();
+			receivedSet.set(idLine);
+			if (wheel.isScheduled(idLine)) {
+				wheel.cancel(idLine);
+				inFlight--;
+			}
+			if (retransmissions[idLine] == 0) {
+				rtt.sample(now() - sendTimes[idLine]);
+			}
+			if (adaptive) {
+				window += (window < threshold) ? 1 : 1 / window;
+			}
+		}
+		writeInOrder();
+	}
+
+	/**
+	 * Writes the answers following the last written one
+	 */
+	private void writeInOrder() throws IOException {
+		var end = Math.min(receivedSet.nextClearBit(base), nbLines);
+		for (; base < end; base++) {
+			writer.write(upperCaseLines[base % MAX_SPAN]);
+			writer.newLine();
+			upperCaseLines[base % MAX_SPAN] = null;
+		}
+	}
+
+	/**
+	 * Encodes line at the position of buffer
+	 *
+	 * @return false if the line does not fit in the buffer or cannot be encoded in
+	 *         UTF-8, in which case it would be sent truncated
+	 */
+	private boolean encode(String line, ByteBuffer buffer) {
+		return encoder.reset().encode(CharBuffer.wrap(line), buffer, true).isUnderflow()
+				&& encoder.flush(buffer).isUnderflow();
+	}
+
+	/**
+	 * @throws IllegalArgumentException if a line cannot be sent in a packet
+	 */
+	private void checkLines() {
+		for (var i = 0; i < lines.size(); i++) {
+			senderBuffer.clear().putLong(i);
+			if (!encode(lines.get(i), senderBuffer)) {
+				throw new IllegalArgumentException("Line " + i + " is longer than " + (BUFFER_SIZE - Long.BYTES)
+						+ " bytes in UTF-8 or cannot be encoded");
+			}
+		}
+	}
+
+	/**
+	 * Sends the expired lines first, then new lines, while the window allows it
+	 *
+	 * @throws IOException
+	 */
+	private void doWrite() throws IOException {
+		while (canSend()) {
+			int idLine;
+			if (toResendCount > 0) {
+				idLine = toResend[toResendHead];
+				if (receivedSet.get(idLine)) { // answered after its deadline
+					toResendHead = (toResendHead + 1) % MAX_SPAN;
+					toResendCount--;
+					continue;
+				}
+			} else {
+				idLine = nextId;
+			}
+			senderBuffer.clear();
+			senderBuffer.putLong(idLine);
+			if (!encode(lines.get(idLine), senderBuffer)) {
+				throw new IllegalStateException("line " + idLine + " modified since it was checked");
+			}
+			senderBuffer.flip();
+			if (dc.send(senderBuffer, serverAddress) == 0) {
+				return; // the socket buffer is full, wait for OP_WRITE
+			}
+			if (toResendCount > 0) {
+				toResendHead = (toResendHead + 1) % MAX_SPAN;
+				toResendCount--;
+			} else {
+				nextId++;
+			}
+			var now = now();
+			sendTimes[idLine] = now;
+			wheel.schedule(idLine, now + rtt.timeout(retransmissions[idLine]));
+			inFlight++;
+			packetsSent++;
+		}
+	}
+}
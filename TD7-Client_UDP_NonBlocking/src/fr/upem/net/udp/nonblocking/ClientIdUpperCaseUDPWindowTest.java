@@ -0,0 +1,131 @@
+package fr.upem.net.udp.nonblocking;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ClientIdUpperCaseUDPWindowTest {
+
+    /**
+     * Upper case server losing and duplicating packets, with a seed so that the
+     * runs are reproducible
+     */
+    private static class LossyServer implements AutoCloseable {
+        private final DatagramChannel dc = DatagramChannel.open();
+        private final Thread thread;
+
+        LossyServer(double loss, double duplication, long seed) throws IOException {
+            dc.bind(new InetSocketAddress("localhost", 0));
+            var random = new Random(seed);
+            thread = new Thread(() -> {
+                var buffer = ByteBuffer.allocate(1024);
+                try {
+                    for (;;) {
+                        buffer.clear();
+                        SocketAddress client = dc.receive(buffer);
+                        if (random.nextDouble() < loss) {
+                            continue;
+                        }
+                        buffer.flip();
+                        var id = buffer.getLong();
+                        var line = StandardCharsets.UTF_8.decode(buffer).toString().toUpperCase();
+                        var answer = ByteBuffer.allocate(1024).putLong(id).put(StandardCharsets.UTF_8.encode(line)).flip();
+                        var copies = random.nextDouble() < duplication ? 2 : 1;
+                        for (var i = 0; i < copies; i++) {
+                            if (random.nextDouble() >= loss) {
+                                dc.send(answer.duplicate(), client);
+                            }
+                        }
+                    }
+                } catch (ClosedChannelException e) {
+                    // closed by the test
+                } catch (IOException e) {
+                    throw new AssertionError(e);
+                }
+            });
+            thread.start();
+        }
+
+        InetSocketAddress address() throws IOException {
+            return (InetSocketAddress) dc.getLocalAddress();
+        }
+
+        @Override
+        public void close() throws IOException {
+            dc.close();
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private static List<String> lines(int count) {
+        var lines = new ArrayList<String>();
+        for (var i = 0; i < count; i++) {
+            lines.add("line " + i + " \u00e9");
+        }
+        return lines;
+    }
+
+    private static void checkWindow(Path directory, int window) throws Exception {
+        var lines = lines(3000);
+        var output = directory.resolve("out" + window);
+        try (var server = new LossyServer(0.1, 0.1, 42)) {
+            try (var writer = Files.newBufferedWriter(output, StandardCharsets.UTF_8)) {
+                new ClientIdUpperCaseUDPWindow(lines, writer, 20, window, server.address()).launch();
+            }
+        }
+        var expected = lines.stream().map(String::toUpperCase).collect(Collectors.toList());
+        assertEquals(expected, Files.readAllLines(output, StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void fixedWindowAnswersEveryLineOnceInOrder(@TempDir Path directory) throws Exception {
+        checkWindow(directory, 16);
+    }
+
+    @Test
+    public void adaptiveWindowAnswersEveryLineOnceInOrder(@TempDir Path directory) throws Exception {
+        checkWindow(directory, 0);
+    }
+
+    @Test
+    public void rejectsTheLinesNotFittingInAPacket(@TempDir Path directory) throws Exception {
+        var address = new InetSocketAddress("localhost", 7777);
+        try (var writer = Files.newBufferedWriter(directory.resolve("out"), StandardCharsets.UTF_8)) {
+            for (var line : List.of("\u00e9".repeat(509), "x".repeat(2000), "unpaired \ud800")) {
+                assertThrows(IllegalArgumentException.class,
+                        () -> new ClientIdUpperCaseUDPWindow(List.of("a", line), writer, 20, 16, address));
+            }
+        }
+    }
+
+    @Test
+    public void sendsALineFillingAPacket(@TempDir Path directory) throws Exception {
+        var lines = List.of("a", "\u00e9".repeat(508)); // 1016 bytes after the id
+        var output = directory.resolve("out");
+        try (var server = new LossyServer(0, 0, 42)) {
+            try (var writer = Files.newBufferedWriter(output, StandardCharsets.UTF_8)) {
+                new ClientIdUpperCaseUDPWindow(lines, writer, 20, 16, server.address()).launch();
+            }
+        }
+        assertEquals(List.of("A", "\u00c9".repeat(508)), Files.readAllLines(output, StandardCharsets.UTF_8));
+    }
+}
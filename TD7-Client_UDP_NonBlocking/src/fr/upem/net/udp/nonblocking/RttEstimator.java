@@ -0,0 +1,61 @@
+package fr.upem.net.udp.nonblocking;
+
+/**
+ * Retransmission timeout computed from the round-trip times measured on the
+ * answers, as TCP does (RFC 6298): rto = srtt + 4 * rttvar, bounded by
+ * minRto and maxRto.
+ * <p>
+ * Only the answers to packets sent once must be measured (Karn's algorithm),
+ * the answer to a retransmitted packet may answer any of its copies.
+ */
+class RttEstimator {
+
+	private final long minRto;
+	private final long maxRto;
+	private double srtt = -1;
+	private double rttvar;
+	private long rto;
+
+	/**
+	 * @param initialRto timeout in milliseconds used before the first measure
+	 */
+	RttEstimator(long initialRto, long minRto, long maxRto) {
+		if (minRto <= 0 || minRto > maxRto) {
+			throw new IllegalArgumentException();
+		}
+		this.minRto = minRto;
+		this.maxRto = maxRto;
+		this.rto = Math.min(Math.max(initialRto, minRto), maxRto);
+	}
+
+	/**
+	 * Takes a new round-trip time measure into account
+	 */
+	void sample(long rttMillis) {
+		if (srtt < 0) {
+			srtt = rttMillis;
+			rttvar = rttMillis / 2.0;
+		} else {
+			rttvar = 0.75 * rttvar + 0.25 * Math.abs(srtt - rttMillis);
+			srtt = 0.875 * srtt + 0.125 * rttMillis;
+		}
+		rto = Math.min(Math.max((long) Math.ceil(srtt + 4 * rttvar), minRto), maxRto);
+	}
+
+	/**
+	 * @param retransmissions number of times the packet has already been
+	 *                        retransmitted
+	 * @return the timeout of a packet, doubled at each retransmission
+	 */
+	long timeout(int retransmissions) {
+		return Math.min(rto << Math.min(retransmissions, 30), maxRto);
+	}
+
+	long rto() {
+		return rto;
+	}
+
+	double srtt() {
+		return srtt;
+	}
+}
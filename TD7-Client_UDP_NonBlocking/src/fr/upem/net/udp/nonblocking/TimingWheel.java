@@ -0,0 +1,150 @@
+package fr.upem.net.udp.nonblocking;
+
+import java.util.Arrays;
+import java.util.function.IntConsumer;
+
+/**
+ * Hashed timing wheel of retransmission deadlines for the ids 0 to capacity-1.
+ * <p>
+ * Each slot covers one tick of time and holds an intrusive doubly linked list
+ * of ids (stored in int arrays), so scheduling and cancelling an id are O(1)
+ * and do not allocate. A deadline further than one turn of the wheel stays in
+ * its slot until the right turn. An id is scheduled at most once: scheduling it
+ * again replaces its previous deadline.
+ * <p>
+ * Times are in milliseconds and must only increase between the calls to
+ * expire.
+ */
+class TimingWheel {
+
+	private static final int NIL = -1;
+
+	private final long tick;
+	private final int mask;
+	private final int[] heads; // first id of each slot
+	private final int[] next;
+	private final int[] previous;
+	private final int[] slots; // slot of each id, NIL if not scheduled
+	private final long[] deadlines;
+	private long cursor; // current tick, all the ticks before have been expired
+	private int size;
+
+	/**
+	 * @param capacity    number of ids
+	 * @param tickMillis  duration of a slot
+	 * @param nbSlots     number of slots, a power of two
+	 * @param now         current time
+	 */
+	TimingWheel(int capacity, long tickMillis, int nbSlots, long now) {
+		if (tickMillis <= 0 || nbSlots <= 0 || Integer.bitCount(nbSlots) != 1) {
+			throw new IllegalArgumentException();
+		}
+		this.tick = tickMillis;
+		this.mask = nbSlots - 1;
+		this.heads = new int[nbSlots];
+		this.next = new int[capacity];
+		this.previous = new int[capacity];
+		this.slots = new int[capacity];
+		this.deadlines = new long[capacity];
+		Arrays.fill(heads, NIL);
+		Arrays.fill(slots, NIL);
+		this.cursor = now / tick;
+	}
+
+	/**
+	 * Schedules id at deadline, replacing its previous deadline if any
+	 */
+	void schedule(int id, long deadline) {
+		cancel(id);
+		var slot = (int) (Math.max(deadline / tick, cursor) & mask);
+		var head = heads[slot];
+		next[id] = head;
+		previous[id] = NIL;
+		if (head != NIL) {
+			previous[head] = id;
+		}
+		heads[slot] = id;
+		slots[id] = slot;
+		deadlines[id] = deadline;
+		size++;
+	}
+
+	/**
+	 * Removes the deadline of id, does nothing if id is not scheduled
+	 */
+	void cancel(int id) {
+		var slot = slots[id];
+		if (slot == NIL) {
+			return;
+		}
+		if (previous[id] == NIL) {
+			heads[slot] = next[id];
+		} else {
+			next[previous[id]] = next[id];
+		}
+		if (next[id] != NIL) {
+			previous[next[id]] = previous[id];
+		}
+		slots[id] = NIL;
+		size--;
+	}
+
+	boolean isScheduled(int id) {
+		return slots[id] != NIL;
+	}
+
+	int size() {
+		return size;
+	}
+
+	/**
+	 * Removes the ids whose deadline is before or at now and gives them to action.
+	 * The action may schedule the expired id again.
+	 *
+	 * @return the number of expired ids
+	 */
+	int expire(long now, IntConsumer action) {
+		var target = now / tick;
+		var expired = 0;
+		// a full turn visits every slot, there is no need to do more
+		for (var t = Math.max(cursor, target - mask); t <= target; t++) {
+			var id = heads[(int) (t & mask)];
+			while (id != NIL) {
+				var following = next[id];
+				if (deadlines[id] <= now) {
+					cancel(id);
+					action.accept(id);
+					expired++;
+				}
+				id = following;
+			}
+		}
+		cursor = Math.max(cursor, target);
+		return expired;
+	}
+
+	/**
+	 * Finds the earliest deadline among the ids scheduled in the first non empty
+	 * slot of the current turn.
+	 *
+	 * @return a time at which expire should be called, -1 if nothing is scheduled
+	 */
+	long nextDeadline() {
+		if (size == 0) {
+			return -1;
+		}
+		for (var t = cursor; t <= cursor + mask; t++) {
+			var earliest = Long.MAX_VALUE;
+			var end = (t + 1) * tick; // deadlines after end are for a later turn
+			for (var id = heads[(int) (t & mask)]; id != NIL; id = next[id]) {
+				if (deadlines[id] < end) {
+					earliest = Math.min(earliest, deadlines[id]);
+				}
+			}
+			if (earliest != Long.MAX_VALUE) {
+				return earliest;
+			}
+		}
+		return (cursor + mask + 1) * tick; // everything is at least one turn ahead
+	}
+}
@@ -0,0 +1,70 @@
+package fr.upem.net.udp.nonblocking;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class TimingWheelTest {
+
+    private static List<Integer> expire(TimingWheel wheel, long now) {
+        var expired = new ArrayList<Integer>();
+        wheel.expire(now, expired::add);
+        return expired;
+    }
+
+    @Test
+    public void expireOnlyPastDeadlines() {
+        var wheel = new TimingWheel(10, 1, 8, 0);
+        wheel.schedule(0, 5);
+        wheel.schedule(1, 3);
+        wheel.schedule(2, 7);
+        assertEquals(List.of(), expire(wheel, 2));
+        assertEquals(List.of(1), expire(wheel, 3));
+        assertEquals(List.of(0), expire(wheel, 6));
+        assertEquals(1, wheel.size());
+        assertTrue(wheel.isScheduled(2));
+        assertEquals(List.of(2), expire(wheel, 7));
+        assertEquals(0, wheel.size());
+        assertEquals(-1, wheel.nextDeadline());
+    }
+
+    @Test
+    public void cancelAndReschedule() {
+        var wheel = new TimingWheel(10, 1, 8, 0);
+        wheel.schedule(0, 2);
+        wheel.schedule(1, 2);
+        wheel.schedule(2, 2);
+        wheel.cancel(1);
+        wheel.cancel(1);
+        wheel.schedule(2, 4);
+        assertEquals(2, wheel.size());
+        assertEquals(List.of(0), expire(wheel, 3));
+        assertEquals(List.of(2), expire(wheel, 4));
+    }
+
+    @Test
+    public void deadlineAfterSeveralTurns() {
+        var wheel = new TimingWheel(10, 10, 4, 0);
+        wheel.schedule(0, 105);
+        wheel.schedule(1, 15);
+        assertEquals(15, wheel.nextDeadline());
+        assertEquals(List.of(1), expire(wheel, 20));
+        assertEquals(List.of(), expire(wheel, 60));
+        assertEquals(List.of(), expire(wheel, 104));
+        assertEquals(List.of(0), expire(wheel, 1000));
+    }
+
+    @Test
+    public void rescheduleFromAction() {
+        var wheel = new TimingWheel(10, 1, 8, 0);
+        wheel.schedule(0, 1);
+        var count = wheel.expire(1, id -> wheel.schedule(id, 9));
+        assertEquals(1, count);
+        assertTrue(wheel.isScheduled(0));
+        assertEquals(9, wheel.nextDeadline());
+        assertEquals(List.of(0), expire(wheel, 9));
+    }
+}
@@ -6,13 +6,39 @@ import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class FakeHTTPServer {
 
+    /**
+     * Faults which can be injected in the responses of a concurrent FakeHTTPServer
+     */
+    public enum Fault {
+        /** the connection is closed after half of the response */
+        EARLY_CLOSE,
+        /** a chunked response with an invalid chunk size is sent */
+        MALFORMED_CHUNK
+    }
+
+    private static final byte[] MALFORMED_CHUNK_RESPONSE =
+            "HTTP/1.1 200 OK\r\nTransfer-Encoding: chunked\r\n\r\nZZ\r\nmalformed\r\n0\r\n\r\n".getBytes();
+
     private final ServerSocketChannel ss;
     private final int port;
     private final ByteBuffer content;
     private final Thread t;
+    private final ExecutorService workers;
+    private final int max;
+    private final long latency;
+    private final long bytesPerSecond;
+    private volatile Fault fault;
+    private volatile int faultPeriod;
+    private final AtomicLong connections = new AtomicLong();
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong bytesSent = new AtomicLong();
+    private final AtomicLong faults = new AtomicLong();
 
 
     public FakeHTTPServer(String s, int max) throws IOException {
@@ -21,6 +47,10 @@ public class FakeHTTPServer {
         InetSocketAddress address = (InetSocketAddress) ss.getLocalAddress();
         port = address.getPort();
         content = ByteBuffer.wrap(s.getBytes("UTF-8"));
+        this.workers = null;
+        this.max = max;
+        this.latency = 0;
+        this.bytesPerSecond = 0;
         this.t = new Thread(() ->
         {
             SocketChannel sc = null;
@@ -33,6 +63,11 @@ public class FakeHTTPServer {
                     Thread.sleep(100);
                     content.limit(oldlimit);
                 }
+                // discards the request, so that closing does not reset a body delimited by the close
+                sc.configureBlocking(false);
+                while (sc.read(ByteBuffer.allocate(1024)) > 0) {
+                    //
+                }
             } catch (Exception e) {
                 //
             } finally {
@@ -52,6 +87,10 @@ public class FakeHTTPServer {
         InetSocketAddress address = (InetSocketAddress) ss.getLocalAddress();
         port = address.getPort();
         content=null;
+        this.workers = null;
+        this.max = 0;
+        this.latency = 0;
+        this.bytesPerSecond = 0;
         this.t = new Thread(() ->
         {
             SocketChannel sc = null;
@@ -79,18 +118,156 @@ public class FakeHTTPServer {
         });
     }
 
+    /**
+     * Creates a server accepting any number of concurrent connections. Each
+     * request (terminated by an empty line, pipelined requests are supported) is
+     * answered with response, the connection being kept alive until the client
+     * closes it.
+     *
+     * @param response the complete HTTP response sent for each request
+     * @param max maximal number of bytes per write, 0 to write the response at once
+     * @param latency delay in milliseconds before each response
+     * @param bytesPerSecond maximal throughput of each connection, 0 for no limit
+     */
+    public FakeHTTPServer(String response, int max, long latency, long bytesPerSecond) throws IOException {
+        if (max < 0 || latency < 0 || bytesPerSecond < 0) {
+            throw new IllegalArgumentException();
+        }
+        ss = ServerSocketChannel.open();
+        ss.bind(null, 1024);
+        InetSocketAddress address = (InetSocketAddress) ss.getLocalAddress();
+        port = address.getPort();
+        content = ByteBuffer.wrap(response.getBytes("UTF-8"));
+        this.workers = Executors.newCachedThreadPool();
+        this.max = max;
+        this.latency = latency;
+        this.bytesPerSecond = bytesPerSecond;
+        this.t = new Thread(() ->
+        {
+            try {
+                while (!Thread.interrupted()) {
+                    var sc = ss.accept();
+                    connections.incrementAndGet();
+                    workers.execute(() -> serveConnection(sc));
+                }
+            } catch (Exception e) {
+                //
+            } finally {
+                try {
+                    ss.close();
+                } catch (Exception e) {
+                    //
+                }
+            }
+        });
+    }
+
+    /**
+     * Injects fault in one response out of period, for a server created with
+     * the concurrent constructor. Must be called before serve.
+     */
+    public void injectFault(Fault fault, int period) {
+        if (workers == null || period <= 0) {
+            throw new IllegalStateException();
+        }
+        this.fault = fault;
+        this.faultPeriod = period;
+    }
+
+    private void serveConnection(SocketChannel sc) {
+        var bb = ByteBuffer.allocate(4096);
+        var matched = 0; // number of bytes of "\r\n\r\n" matched so far
+        try (sc) {
+            while (!Thread.interrupted() && sc.read(bb) != -1) {
+                bb.flip();
+                while (bb.hasRemaining()) {
+                    var b = bb.get();
+                    matched = (b == (matched % 2 == 0 ? '\r' : '\n')) ? matched + 1 : (b == '\r' ? 1 : 0);
+                    if (matched == 4) {
+                        matched = 0;
+                        if (!respond(sc, requests.incrementAndGet())) {
+                            return;
+                        }
+                    }
+                }
+                bb.clear();
+            }
+        } catch (Exception e) {
+            //
+        }
+    }
+
+    /**
+     * @return false if the connection must be closed
+     */
+    private boolean respond(SocketChannel sc, long request) throws IOException, InterruptedException {
+        if (latency > 0) {
+            Thread.sleep(latency);
+        }
+        var currentFault = fault;
+        var faulty = currentFault != null && request % faultPeriod == 0;
+        var response = content.duplicate();
+        if (faulty) {
+            faults.incrementAndGet();
+            if (currentFault == Fault.EARLY_CLOSE) {
+                response.limit(response.limit() / 2);
+            } else {
+                response = ByteBuffer.wrap(MALFORMED_CHUNK_RESPONSE);
+            }
+        }
+        var start = System.nanoTime();
+        var sent = 0L;
+        while (response.hasRemaining()) {
+            var oldlimit = response.limit();
+            if (max > 0) {
+                response.limit(Math.min(response.position() + max, oldlimit));
+            }
+            sent += sc.write(response);
+            response.limit(oldlimit);
+            if (bytesPerSecond > 0) {
+                var ahead = sent * 1_000_000_000L / bytesPerSecond - (System.nanoTime() - start);
+                if (ahead > 0) {
+                    Thread.sleep(ahead / 1_000_000, (int) (ahead % 1_000_000));
+                }
+            }
+        }
+        bytesSent.addAndGet(sent);
+        return !(faulty && currentFault == Fault.EARLY_CLOSE);
+    }
+
     public void serve() {
         t.start();
     }
 
     public void shutdown() {
         t.interrupt();
+        if (workers != null) {
+            try {
+                ss.close();
+            } catch (IOException e) {
+                //
+            }
+            workers.shutdownNow();
+        }
     }
 
-
-
     public int getPort() {
         return port;
     }
-}
 
+    public long getConnections() {
+        return connections.get();
+    }
+
+    public long getRequests() {
+        return requests.get();
+    }
+
+    public long getBytesSent() {
+        return bytesSent.get();
+    }
+
+    public long getFaults() {
+        return faults.get();
+    }
+}
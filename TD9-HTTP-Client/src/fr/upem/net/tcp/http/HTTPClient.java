@@ -6,6 +6,7 @@ import java.nio.ByteBuffer;
 import java.nio.channels.SocketChannel;
 import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
 
 public class HTTPClient {
 
@@ -66,10 +67,15 @@ public class HTTPClient {
 
 	private static void usage() {
 		System.out.println("Usage : HTTPClient address_server resource");
+		System.out.println("        HTTPClient -crawl urls_file output_directory [threads] [max_per_host]");
 	}
 
-	public static void main(String[] args) throws IOException {
+	public static void main(String[] args) throws IOException, InterruptedException {
 		
+		if(args.length >= 1 && args[0].equals("-crawl")) {
+			HTTPCrawler.main(Arrays.copyOfRange(args, 1, args.length));
+			return;
+		}
 		if(args.length != 2) {
 			usage();
 			return;
@@ -0,0 +1,310 @@
+package fr.upem.net.tcp.http;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+/**
+ * Fetches a list of URLs with a bounded pool of threads, at most maxPerHost
+ * connections being opened at the same time on each host.
+ * <p>
+ * The body of the i-th URL is written in the file named i of the output
+ * directory. Redirections are followed, up to MAX_REDIRECTS, each one being a
+ * new request queued for its host.
+ */
+public class HTTPCrawler {
+
+	private static final Logger logger = Logger.getLogger(HTTPCrawler.class.getName());
+	private static final Charset ASCII_CHARSET = Charset.forName("ASCII");
+	private static final int SIZE_BUFFER = 8192;
+	private static final int DEFAULT_PORT = 80;
+	private static final int MAX_PORT = 65535;
+	public static final int MAX_REDIRECTS = 10;
+
+	private final int nbThreads;
+	private final int maxPerHost;
+	private final Path outputDirectory;
+	private final ConcurrentHashMap<String, Host> hosts = new ConcurrentHashMap<>();
+
+	public HTTPCrawler(int nbThreads, int maxPerHost, Path outputDirectory) {
+		if (nbThreads <= 0 || maxPerHost <= 0) {
+			throw new IllegalArgumentException();
+		}
+		this.nbThreads = nbThreads;
+		this.maxPerHost = maxPerHost;
+		this.outputDirectory = outputDirectory;
+	}
+
+	/**
+	 * Summary of a crawl: number of fetched and failed URLs, bytes written,
+	 * elapsed time and latency of each successful fetch
+	 */
+	public static class Report {
+		private final int fetched;
+		private final int failed;
+		private final long bytes;
+		private final long elapsedNanos;
+		private final long[] latencies; // nanoseconds, sorted
+
+		private Report(int fetched, int failed, long bytes, long elapsedNanos, long[] latencies) {
+			this.fetched = fetched;
+			this.failed = failed;
+			this.bytes = bytes;
+			this.elapsedNanos = elapsedNanos;
+			this.latencies = latencies;
+		}
+
+		public int getFetched() {
+			return fetched;
+		}
+
+		public int getFailed() {
+			return failed;
+		}
+
+		public long getBytes() {
+			return bytes;
+		}
+
+		/**
+		 * @param percentile between 0 and 100
+		 * @return the latency in milliseconds of the given percentile, 0 if nothing
+		 *         was fetched
+		 */
+		public double latencyMillis(double percentile) {
+			if (latencies.length == 0) {
+				return 0;
+			}
+			var index = (int) Math.ceil(percentile / 100 * latencies.length) - 1;
+			return latencies[Math.max(index, 0)] / 1_000_000.0;
+		}
+
+		@Override
+		public String toString() {
+			var seconds = elapsedNanos / 1_000_000_000.0;
+			return String.format(
+					"%d fetched, %d failed, %d bytes in %.3f s (%.1f req/s, %.1f KB/s)%nlatency ms: p50=%.2f p90=%.2f p99=%.2f max=%.2f",
+					fetched, failed, bytes, seconds, fetched / seconds, bytes / 1024.0 / seconds, latencyMillis(50),
+					latencyMillis(90), latencyMillis(99), latencyMillis(100));
+		}
+	}
+
+	/**
+	 * Fetches all the urls and waits for the end of the crawl
+	 *
+	 * @param urls
+	 * @return the report of the crawl
+	 * @throws InterruptedException
+	 * @throws IOException if the output directory cannot be created
+	 */
+	public Report crawl(List<String> urls) throws InterruptedException, IOException {
+		Files.createDirectories(outputDirectory);
+		var crawl = new Crawl(urls);
+		var start = System.nanoTime();
+		try {
+			for (var i = 0; i < urls.size(); i++) {
+				try {
+					crawl.submit(i, new URI(urls.get(i).trim()), 0, System.nanoTime());
+				} catch (URISyntaxException e) {
+					crawl.fail(i, e);
+				}
+			}
+			crawl.remaining.await();
+		} finally {
+			crawl.executor.shutdown();
+		}
+		var elapsed = System.nanoTime() - start;
+		var successes = Arrays.stream(crawl.latencies).filter(latency -> latency >= 0).sorted().toArray();
+		return new Report(successes.length, crawl.failed.get(), crawl.bytes.get(), elapsed, successes);
+	}
+
+	/**
+	 * Connections opened on a host and fetches waiting for one of them to end
+	 */
+	private static class Host {
+		private int connections;
+		private final ArrayDeque<Runnable> waiting = new ArrayDeque<>();
+	}
+
+	/**
+	 * State of a call to crawl. Each request is a task of the pool; a request to
+	 * a host which already has maxPerHost connections waits in the queue of the
+	 * host instead of blocking a thread, and is given to the pool when one of
+	 * these connections ends.
+	 */
+	private class Crawl {
+		private final List<String> urls;
+		private final ExecutorService executor = Executors.newFixedThreadPool(nbThreads);
+		private final long[] latencies;
+		private final AtomicInteger failed = new AtomicInteger();
+		private final AtomicLong bytes = new AtomicLong();
+		private final CountDownLatch remaining; // urls not yet fetched nor failed
+
+		private Crawl(List<String> urls) {
+			this.urls = urls;
+			this.latencies = new long[urls.size()];
+			this.remaining = new CountDownLatch(urls.size());
+		}
+
+		/**
+		 * Requests uri for the index-th url as soon as its host accepts one more
+		 * connection
+		 */
+		private void submit(int index, URI uri, int redirects, long begin) {
+			if (!"http".equals(uri.getScheme()) || uri.getHost() == null) {
+				fail(index, new HTTPException("Unsupported URL: " + uri));
+				return;
+			}
+			if (port(uri) <= 0 || port(uri) > MAX_PORT) {
+				fail(index, new HTTPException("Invalid port: " + uri));
+				return;
+			}
+			var host = hosts.computeIfAbsent(uri.getHost() + ":" + port(uri), key -> new Host());
+			Runnable request = () -> request(host, index, uri, redirects, begin);
+			synchronized (host) {
+				if (host.connections == maxPerHost) {
+					host.waiting.add(request);
+					return;
+				}
+				host.connections++;
+			}
+			executor.execute(request);
+		}
+
+		private void request(Host host, int index, URI uri, int redirects, long begin) {
+			var file = outputDirectory.resolve(Integer.toString(index));
+			URI redirection;
+			long size = 0;
+			try {
+				redirection = fetch(uri, file);
+				if (redirection == null) {
+					size = Files.size(file);
+				}
+			} catch (IOException | RuntimeException e) {
+				// UnresolvedAddressException for an unknown host
+				fail(index, e);
+				return;
+			} finally {
+				release(host);
+			}
+			if (redirection == null) {
+				bytes.addAndGet(size);
+				latencies[index] = System.nanoTime() - begin;
+				remaining.countDown();
+			} else if (redirects == MAX_REDIRECTS) {
+				fail(index, new HTTPException("Too many redirections"));
+			} else {
+				submit(index, redirection, redirects + 1, begin);
+			}
+		}
+
+		/**
+		 * Gives the connection to the first request waiting for host, if any
+		 */
+		private void release(Host host) {
+			Runnable next;
+			synchronized (host) {
+				next = host.waiting.poll();
+				if (next == null) {
+					host.connections--;
+				}
+			}
+			if (next != null) {
+				executor.execute(next);
+			}
+		}
+
+		private void fail(int index, Exception e) {
+			logger.info("Failed to fetch " + urls.get(index) + ": " + e);
+			latencies[index] = -1;
+			failed.incrementAndGet();
+			remaining.countDown();
+		}
+	}
+
+	private static int port(URI uri) {
+		return uri.getPort() == -1 ? DEFAULT_PORT : uri.getPort();
+	}
+
+	/**
+	 * Requests uri and writes its body in file, the file is deleted if the body
+	 * cannot be entirely read. A body with neither Content-Length nor chunked
+	 * transfer encoding ends with the connection.
+	 *
+	 * @return the absolute URI of the redirection, null if the body was written
+	 * @throws IOException HTTPException if the server answers with an error
+	 */
+	URI fetch(URI uri, Path file) throws IOException {
+		try (var sc = SocketChannel.open(new InetSocketAddress(uri.getHost(), port(uri)))) {
+			var path = uri.getRawPath() == null || uri.getRawPath().isEmpty() ? "/" : uri.getRawPath();
+			if (uri.getRawQuery() != null) {
+				path += "?" + uri.getRawQuery();
+			}
+			var request = "GET " + path + " HTTP/1.1\r\n" + "Host: " + uri.getHost() + "\r\n"
+					+ "Connection: close\r\n" + "\r\n";
+			sc.write(ASCII_CHARSET.encode(request));
+			var reader = new HTTPReader(sc, ByteBuffer.allocate(SIZE_BUFFER));
+			var header = reader.readHeader();
+			var location = header.getFields().get("location");
+			if (header.getCode() / 100 == 3 && location != null) {
+				try {
+					return uri.resolve(location);
+				} catch (IllegalArgumentException e) {
+					throw new HTTPException("Invalid Location: " + location);
+				}
+			}
+			if (header.getCode() != 200) {
+				throw new HTTPException("Unexpected response: " + header.getResponse());
+			}
+			try (var fc = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+					StandardOpenOption.TRUNCATE_EXISTING)) {
+				if (header.isChunkedTransfer()) {
+					reader.readChunks(fc);
+				} else if (header.getContentLengthLong() == -1) {
+					reader.transferUntilClose(fc);
+				} else {
+					reader.transferBody(header.getContentLengthLong(), fc);
+				}
+			} catch (IOException e) {
+				Files.deleteIfExists(file);
+				throw e;
+			}
+			return null;
+		}
+	}
+
+	private static void usage() {
+		System.out.println("Usage : HTTPCrawler urls_file output_directory [threads] [max_per_host]");
+	}
+
+	public static void main(String[] args) throws IOException, InterruptedException {
+		if (args.length < 2 || args.length > 4) {
+			usage();
+			return;
+		}
+		var urls = Files.readAllLines(Path.of(args[0]));
+		urls.removeIf(String::isBlank);
+		var threads = args.length > 2 ? Integer.parseInt(args[2]) : 64;
+		var maxPerHost = args.length > 3 ? Integer.parseInt(args[3]) : 8;
+		var crawler = new HTTPCrawler(threads, maxPerHost, Path.of(args[1]));
+		System.out.println(crawler.crawl(urls));
+	}
+}
@@ -0,0 +1,135 @@
+package fr.upem.net.tcp.http;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ *
+ * <p>
+ * Tests suit for the class HTTPCrawler against local FakeHTTPServer instances
+ */
+public class HTTPCrawlerTest {
+
+    @Test
+    public void testCrawl(@TempDir Path directory) throws IOException, InterruptedException {
+        var chunked = new FakeHTTPServer("HTTP/1.1 200 OK\r\nTransfer-Encoding: chunked\r\n\r\n4\r\nWiki\r\n5\r\npedia\r\n0\r\n\r\n", 1000);
+        var fixed = new FakeHTTPServer("HTTP/1.1 200 OK\r\nContent-Length: 5\r\n\r\nHello", 3);
+        var redirect = new FakeHTTPServer("HTTP/1.1 302 Found\r\nLocation: http://localhost:" + fixed.getPort() + "/moved\r\n\r\n", 1000);
+        try {
+            chunked.serve();
+            fixed.serve();
+            redirect.serve();
+            var crawler = new HTTPCrawler(4, 1, directory);
+            var report = crawler.crawl(List.of("http://localhost:" + chunked.getPort() + "/a",
+                    "http://localhost:" + redirect.getPort() + "/b"));
+            assertEquals(2, report.getFetched());
+            assertEquals(0, report.getFailed());
+            assertEquals(14, report.getBytes());
+            assertEquals("Wikipedia", Files.readString(directory.resolve("0")));
+            assertEquals("Hello", Files.readString(directory.resolve("1")));
+        } finally {
+            chunked.shutdown();
+            fixed.shutdown();
+            redirect.shutdown();
+        }
+    }
+
+    @Test
+    public void testCrawlUntilClose(@TempDir Path directory) throws IOException, InterruptedException {
+        var server = new FakeHTTPServer("HTTP/1.1 200 OK\r\nContent-Type: text/plain\r\n\r\nHello world", 4);
+        try {
+            server.serve();
+            var report = new HTTPCrawler(1, 1, directory).crawl(List.of("http://localhost:" + server.getPort() + "/"));
+            assertEquals(1, report.getFetched());
+            assertEquals(11, report.getBytes());
+            assertEquals("Hello world", Files.readString(directory.resolve("0")));
+        } finally {
+            server.shutdown();
+        }
+    }
+
+    @Test
+    public void testCrawlFailure(@TempDir Path directory) throws IOException, InterruptedException {
+        var notFound = new FakeHTTPServer("HTTP/1.1 404 Not Found\r\nContent-Length: 0\r\n\r\n", 1000);
+        try {
+            notFound.serve();
+            var report = new HTTPCrawler(2, 2, directory).crawl(List.of("http://localhost:" + notFound.getPort() + "/",
+                    "ftp://localhost/"));
+            assertEquals(0, report.getFetched());
+            assertEquals(2, report.getFailed());
+        } finally {
+            notFound.shutdown();
+        }
+    }
+
+    @Test
+    public void testCrawlUnreachable(@TempDir Path directory) throws IOException, InterruptedException {
+        var fixed = new FakeHTTPServer("HTTP/1.1 200 OK\r\nContent-Length: 5\r\n\r\nHello", 1);
+        try {
+            fixed.serve();
+            var report = new HTTPCrawler(2, 1, directory).crawl(List.of("http://unknown-host.invalid/",
+                    "http://localhost:99999/", "http://localhost:" + fixed.getPort() + "/"));
+            assertEquals(1, report.getFetched());
+            assertEquals(2, report.getFailed());
+            assertEquals("Hello", Files.readString(directory.resolve("2")));
+        } finally {
+            fixed.shutdown();
+        }
+    }
+
+    @Test
+    public void testCrawlConcurrentServer(@TempDir Path directory) throws IOException, InterruptedException {
+        var server = new FakeHTTPServer("HTTP/1.1 200 OK\r\nContent-Length: 5\r\n\r\nHello", 7, 1, 0);
+        try {
+            server.serve();
+            var urls = new ArrayList<String>();
+            for (var i = 0; i < 50; i++) {
+                urls.add("http://localhost:" + server.getPort() + "/" + i);
+            }
+            var report = new HTTPCrawler(8, 4, directory).crawl(urls);
+            assertEquals(50, report.getFetched());
+            assertEquals(250, report.getBytes());
+            assertEquals(50, server.getRequests());
+            assertEquals(50, server.getConnections());
+            assertEquals("Hello", Files.readString(directory.resolve("49")));
+        } finally {
+            server.shutdown();
+        }
+    }
+
+    @Test
+    public void testCrawlFaults(@TempDir Path directory) throws IOException, InterruptedException {
+        var earlyClose = new FakeHTTPServer("HTTP/1.1 200 OK\r\nContent-Length: 5\r\n\r\nHello", 0, 0, 0);
+        var malformed = new FakeHTTPServer("HTTP/1.1 200 OK\r\nContent-Length: 5\r\n\r\nHello", 0, 0, 0);
+        try {
+            earlyClose.injectFault(FakeHTTPServer.Fault.EARLY_CLOSE, 2);
+            malformed.injectFault(FakeHTTPServer.Fault.MALFORMED_CHUNK, 5);
+            earlyClose.serve();
+            malformed.serve();
+            var urls = new ArrayList<String>();
+            for (var i = 0; i < 10; i++) {
+                urls.add("http://localhost:" + earlyClose.getPort() + "/" + i);
+                urls.add("http://localhost:" + malformed.getPort() + "/" + i);
+            }
+            var report = new HTTPCrawler(4, 2, directory).crawl(urls);
+            assertEquals(13, report.getFetched());
+            assertEquals(7, report.getFailed());
+            assertEquals(5, earlyClose.getFaults());
+            assertEquals(2, malformed.getFaults());
+            try (var files = Files.list(directory)) {
+                assertEquals(13, files.count()); // the truncated bodies are deleted
+            }
+        } finally {
+            earlyClose.shutdown();
+            malformed.shutdown();
+        }
+    }
+}
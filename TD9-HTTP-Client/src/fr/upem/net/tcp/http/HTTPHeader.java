@@ -86,6 +86,23 @@ public class HTTPHeader {
         }
     }
 
+    /**
+     * @return the value of the Content-Length field in the header, for bodies over 2 GB
+     *         -1 if the field does not exists
+     * @throws HTTPException when the value of Content-Length is not a number
+     */
+    public long getContentLengthLong() throws HTTPException {
+        String s = fields.get("content-length");
+        if (s == null) return -1;
+        else {
+            try {
+                return Long.valueOf(s.trim());
+            } catch (NumberFormatException e) {
+                throw new HTTPException("Invalid Content-Length field value :\n" + s);
+            }
+        }
+    }
+
     /**
      * @return the Content-Type
      *         null if there is no Content-Type field
@@ -0,0 +1,75 @@
+package fr.upem.net.tcp.http;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import fr.upem.net.tcp.nonblocking.Reader;
+
+/**
+ * Non-blocking reader of an ASCII line terminated by CRLF.
+ * <p>
+ * Same contract as {@link HTTPReader#readLineCRLF()} (the returned line does
+ * not contain the CRLF) but the bytes are pushed by the caller: bb is in
+ * write-mode before and after the call to process.
+ */
+public class HTTPLineReader implements Reader<String> {
+
+	private enum State {
+		DONE, WAITING, ERROR
+	};
+
+	public static final int MAX_LINE_SIZE = 8192;
+
+	private State state = State.WAITING;
+	private final ByteBuffer internalbb = ByteBuffer.allocate(MAX_LINE_SIZE); // write-mode
+	private boolean lastCR = false;
+	private String line;
+
+	@Override
+	public ProcessStatus process(ByteBuffer bb) {
+		if (state == State.DONE || state == State.ERROR) {
+			throw new IllegalStateException();
+		}
+		bb.flip();
+		try {
+			while (bb.hasRemaining()) {
+				var currentByte = bb.get();
+				if (lastCR && currentByte == '\n') {
+					state = State.DONE;
+					break;
+				}
+				if (!internalbb.hasRemaining()) {
+					state = State.ERROR;
+					return ProcessStatus.ERROR;
+				}
+				internalbb.put(currentByte);
+				lastCR = currentByte == '\r';
+			}
+		} finally {
+			bb.compact();
+		}
+		if (state != State.DONE) {
+			return ProcessStatus.REFILL;
+		}
+		internalbb.flip();
+		internalbb.limit(internalbb.limit() - 1); // supprime le CR
+		line = StandardCharsets.US_ASCII.decode(internalbb).toString();
+		return ProcessStatus.DONE;
+	}
+
+	@Override
+	public String get() {
+		if (state != State.DONE) {
+			throw new IllegalStateException();
+		}
+		return line;
+	}
+
+	@Override
+	public void reset() {
+		state = State.WAITING;
+		internalbb.clear();
+		lastCR = false;
+		line = null;
+	}
+}
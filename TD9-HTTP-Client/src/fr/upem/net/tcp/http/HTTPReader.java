@@ -3,13 +3,14 @@ package fr.upem.net.tcp.http;
 import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
 import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
-import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
-import java.util.Optional;
 import java.util.logging.Logger;
 
 public class HTTPReader {
@@ -20,6 +21,10 @@ public class HTTPReader {
 	public static final Logger logger = Logger.getLogger(HTTPReader.class.getName());
 	public static final int SIZE_BUFFER = 1024;
 	public static final int HEXA_BASE = 16;
+	public static final int SIZE_DIRECT_BUFFER = 64 * 1024;
+	public static final int MAX_BODY_SIZE = 64 * 1024 * 1024; // of a body read in memory
+	private Map<String, String> trailers = new HashMap<>();
+	private ByteBuffer directBuffer; // allocated on the first transferBody
 
 	public HTTPReader(SocketChannel sc, ByteBuffer buff) {
 		this.sc = sc;
@@ -84,8 +89,19 @@ public class HTTPReader {
 	 */
 
 	public HTTPHeader readHeader() throws IOException {
-
 		String firstLineResponse = readLineCRLF();
+		return HTTPHeader.create(firstLineResponse, readFields());
+	}
+
+	/**
+	 * Reads "name: value" lines until an empty line, fields appearing several
+	 * times are concatenated with ';'
+	 *
+	 * @return the map of the fields read
+	 * @throws IOException HTTPException if the connection is closed before the
+	 *                     empty line or if a line is ill-formed
+	 */
+	private Map<String, String> readFields() throws IOException {
 		Map<String, String> fieldsMap = new HashMap<String, String>();
 
 		for (var line = this.readLineCRLF(); !line.isEmpty(); line = this.readLineCRLF()) {
@@ -93,23 +109,12 @@ public class HTTPReader {
 			if (token.length != 2) {
 				throw new HTTPException("Badly formed value" + line);
 			}
-			if (token.length >= 2) {
-				// fieldsMap.merge(token[0], token[1], String::concat); ?
-				/*
-				 * fieldsMap.merge(token[0], token[1], new BiFunction<String, String, String>()
-				 * {
-				 * 
-				 * @Override public String apply(String s1, String s2) { return s1 + ";" + s2; }
-				 * });
-				 */
-				var fieldName = token[0];
-				var fieldValue = token[1];
-				// name key, new value , how to combine new and old value (lambda), here concat
-				fieldsMap.merge(fieldName, fieldValue, (oldValue, newValue) -> oldValue + ";" + newValue);
-			}
+			var fieldName = token[0];
+			var fieldValue = token[1];
+			// name key, new value , how to combine new and old value (lambda), here concat
+			fieldsMap.merge(fieldName, fieldValue, (oldValue, newValue) -> oldValue + ";" + newValue);
 		}
-		return HTTPHeader.create(firstLineResponse, fieldsMap);
-
+		return fieldsMap;
 	}
 
 	/**
@@ -120,74 +125,229 @@ public class HTTPReader {
 	 */
 	public ByteBuffer readBytes(int size) throws IOException {
 		var newBuffer = ByteBuffer.allocate(size);
+		readInto(newBuffer, size);
+		return newBuffer;
+	}
+
+	/**
+	 * Puts exactly size bytes of the response in dst: first the bytes left in
+	 * buff, then the bytes read on the socket. Small remainders go through buff to
+	 * save system calls, large ones are read directly in dst.
+	 * <p>
+	 * dst must have at least size bytes remaining. buff is in write-mode before
+	 * and after the call.
+	 *
+	 * @throws IOException HTTPException is the connection is closed before all
+	 *                     bytes could be read
+	 */
+	private void readInto(ByteBuffer dst, int size) throws IOException {
+		var oldLimit = dst.limit();
+		dst.limit(dst.position() + size);
+		try {
+			while (dst.hasRemaining()) {
+				if (this.buff.position() != 0) {
+					this.buff.flip();
+					transfer(this.buff, dst);
+					this.buff.compact();
+				} else if (dst.remaining() >= this.buff.capacity()) {
+					if (!readFully(sc, dst)) {
+						throw new HTTPException("Server closed the connection unexpectedly");
+					}
+				} else if (sc.read(this.buff) == -1) {
+					throw new HTTPException("Server closed the connection unexpectedly");
+				}
+			}
+		} finally {
+			dst.limit(oldLimit);
+		}
+	}
+
+	/**
+	 * Writes exactly length bytes of the response in dst without keeping them in
+	 * memory: the bytes left in buff are written first, then the rest is moved
+	 * with FileChannel.transferFrom if dst is a file or through a reusable direct
+	 * buffer otherwise. Never reads more than length bytes on the socket.
+	 * <p>
+	 * buff is in write-mode before and after the call.
+	 *
+	 * @param length
+	 * @param dst
+	 * @throws IOException HTTPException is the connection is closed before all
+	 *                     bytes could be read
+	 */
+	public void transferBody(long length, WritableByteChannel dst) throws IOException {
+		var missing = length;
 		this.buff.flip();
-		// newBuffer.put(this.buff.get());
+		try {
+			var oldLimit = this.buff.limit();
+			if (this.buff.remaining() > missing) {
+				this.buff.limit(this.buff.position() + (int) missing);
+			}
+			missing -= this.buff.remaining();
+			writeFully(dst, this.buff);
+			this.buff.limit(oldLimit);
+		} finally {
+			this.buff.compact();
+		}
+		if (dst instanceof FileChannel) {
+			var fc = (FileChannel) dst;
+			while (missing > 0) {
+				var transferred = fc.transferFrom(sc, fc.position(), missing);
+				if (transferred == 0) { // end of stream for a blocking socket
+					throw new HTTPException("Server closed the connection unexpectedly");
+				}
+				fc.position(fc.position() + transferred);
+				missing -= transferred;
+			}
+			return;
+		}
+		if (missing > 0 && directBuffer == null) {
+			directBuffer = ByteBuffer.allocateDirect(SIZE_DIRECT_BUFFER);
+		}
+		while (missing > 0) {
+			directBuffer.clear();
+			if (directBuffer.remaining() > missing) {
+				directBuffer.limit((int) missing);
+			}
+			if (sc.read(directBuffer) == -1) {
+				throw new HTTPException("Server closed the connection unexpectedly");
+			}
+			directBuffer.flip();
+			missing -= directBuffer.remaining();
+			writeFully(dst, directBuffer);
+		}
+	}
 
-		while (newBuffer.hasRemaining()) { // consomme le buffer
-			if (this.buff.hasRemaining()) { // Si il reste des bytes dans la zone de travail
-				newBuffer.put(this.buff.get());
-			} else if (!readFully(sc, newBuffer)) { // Rempli tout l'espace qu'il reste dans le buffer
-				throw new HTTPException("Server closed the connection unexpectedly"); // Le serveur  ferm la socket
+	/**
+	 * Writes the rest of the response in dst until the server closes the
+	 * connection, for a body delimited by the end of the connection (neither
+	 * Content-Length nor chunked). Same strategy as transferBody.
+	 * <p>
+	 * buff is in write-mode before and after the call.
+	 *
+	 * @param dst
+	 * @return the number of bytes written in dst
+	 * @throws IOException
+	 */
+	public long transferUntilClose(WritableByteChannel dst) throws IOException {
+		this.buff.flip();
+		long total = this.buff.remaining();
+		try {
+			writeFully(dst, this.buff);
+		} finally {
+			this.buff.compact();
+		}
+		if (dst instanceof FileChannel) {
+			var fc = (FileChannel) dst;
+			for (;;) {
+				var transferred = fc.transferFrom(sc, fc.position(), SIZE_DIRECT_BUFFER);
+				if (transferred == 0) { // end of stream for a blocking socket
+					return total;
+				}
+				fc.position(fc.position() + transferred);
+				total += transferred;
 			}
 		}
-		this.buff.compact();
-		return newBuffer;
+		if (directBuffer == null) {
+			directBuffer = ByteBuffer.allocateDirect(SIZE_DIRECT_BUFFER);
+		}
+		for (;;) {
+			directBuffer.clear();
+			if (sc.read(directBuffer) == -1) {
+				return total;
+			}
+			directBuffer.flip();
+			total += directBuffer.remaining();
+			writeFully(dst, directBuffer);
+		}
 	}
 
-	/*
-	 * check if data received by server are correct
+	private static void writeFully(WritableByteChannel dst, ByteBuffer bb) throws IOException {
+		while (bb.hasRemaining()) {
+			dst.write(bb);
+		}
+	}
+
+	/**
+	 * Reads the line announcing the size of the next chunk, chunk extensions are
+	 * ignored
 	 */
-	private Optional<ByteBuffer> readChunkUtil() throws IOException {
+	private int readChunkSize() throws IOException {
 		var sizeString = readLineCRLF();
-		int sizeChunck;
-
+		var extension = sizeString.indexOf(';');
+		if (extension != -1) {
+			sizeString = sizeString.substring(0, extension);
+		}
+		int sizeChunk;
 		try {
-			sizeChunck = Integer.parseInt(sizeString, HEXA_BASE);
+			sizeChunk = Integer.parseInt(sizeString.trim(), HEXA_BASE);
 		} catch (NumberFormatException e) { // Si on est pas en hexa
 			throw new HTTPException("Invalid chunk size: " + sizeString);
 		}
-		if (sizeChunck < 0) {
-			throw new HTTPException(" Invalid chunk size: " + sizeString);
-		}
-		if (sizeChunck == 0) {
-			return Optional.empty();
+		if (sizeChunk < 0) {
+			throw new HTTPException("Invalid chunk size: " + sizeString);
 		}
-		var content = readBytes(sizeChunck);
-		if (!readLineCRLF().equals("")) { // Vrifie aprs le contenu du chunk on a bien une ligne vide
+		return sizeChunk;
+	}
+
+	/*
+	 * check that the content of the chunk is followed by an empty line
+	 */
+	private void readChunkEnd() throws IOException {
+		if (!readLineCRLF().isEmpty()) {
 			throw new HTTPException("Chunck not ended by an empty line");
 		}
-		return Optional.of(content);
 	}
 
 	/**
+	 * The content of the chunks is copied once, directly in a single buffer which
+	 * grows when needed, up to MAX_BODY_SIZE bytes. The trailer fields are
+	 * available with getTrailers.
+	 *
 	 * @return a ByteBuffer in write-mode containing a content read in chunks mode
 	 * @throws IOException HTTPException if the connection is closed before the end
-	 *                     of the chunks if chunks are ill-formed
+	 *                     of the chunks if chunks are ill-formed or if the content
+	 *                     is bigger than MAX_BODY_SIZE
 	 */
-
 	public ByteBuffer readChunks() throws IOException {
-		var chunksContents = new ArrayList<ByteBuffer>(); 
-		int totalSize = 0;
-
-		while (true) {
-			var currentChunk = readChunkUtil(); // Tant que j'ai des chuncks, jusqu'a que j'ai un chunck vide - Att WRITE
-												// -MODE !
-			if (!currentChunk.isPresent()) {
-				break;
-			}
-			var content = currentChunk.get();
-			totalSize += content.position(); // On calcule la taille totale de tous le contenu  des chuncks- position()
-												//  car write-mode ! 
-			chunksContents.add(content);
-		}
-		var payload = ByteBuffer.allocate(totalSize); // On crer un "gros" buffer et on met le contenu des chunks dedans
-		for (var bb : chunksContents) {
-			bb.flip();
-			payload.put(bb);
+		var payload = ByteBuffer.allocate(SIZE_BUFFER);
+		for (var sizeChunk = readChunkSize(); sizeChunk != 0; sizeChunk = readChunkSize()) {
+			payload = ensureRemaining(payload, sizeChunk);
+			readInto(payload, sizeChunk);
+			readChunkEnd();
 		}
+		this.trailers = readFields();
 		return payload;
 	}
 
+	/**
+	 * Streams the content of the chunks in dst without keeping it in memory. The
+	 * trailer fields are available with getTrailers.
+	 *
+	 * @param dst
+	 * @return the number of bytes of content written in dst
+	 * @throws IOException HTTPException if the connection is closed before the end
+	 *                     of the chunks if chunks are ill-formed
+	 */
+	public long readChunks(WritableByteChannel dst) throws IOException {
+		var total = 0L;
+		for (var sizeChunk = readChunkSize(); sizeChunk != 0; sizeChunk = readChunkSize()) {
+			transferBody(sizeChunk, dst);
+			total += sizeChunk;
+			readChunkEnd();
+		}
+		this.trailers = readFields();
+		return total;
+	}
+
+	/**
+	 * @return the trailer fields sent after the last chunk by the last call to
+	 *         readChunks, empty if there was none
+	 */
+	public Map<String, String> getTrailers() {
+		return Collections.unmodifiableMap(trailers);
+	}
+
 	/**
 	 * @return a ByteBuffer in write-mode containing a content read in chunks mode
 	 * @throws IOException HTTPException if the connection is closed before the end
@@ -233,6 +393,43 @@ public class HTTPReader {
 		return true;
 	}
 
+	/**
+	 * Moves as many bytes as possible from src (read-mode) to dst (write-mode) in
+	 * one bulk copy
+	 */
+	static void transfer(ByteBuffer src, ByteBuffer dst) {
+		if (src.remaining() <= dst.remaining()) {
+			dst.put(src);
+			return;
+		}
+		var oldLimit = src.limit();
+		src.limit(src.position() + dst.remaining());
+		dst.put(src);
+		src.limit(oldLimit);
+	}
+
+	/**
+	 * @param bb in write-mode
+	 * @return bb or a copy of bb with a doubled capacity, at most MAX_BODY_SIZE, if
+	 *         bb has less than size bytes remaining, in write-mode
+	 * @throws HTTPException if bb would need more than MAX_BODY_SIZE bytes
+	 */
+	static ByteBuffer ensureRemaining(ByteBuffer bb, int size) throws HTTPException {
+		if (bb.remaining() >= size) {
+			return bb;
+		}
+		if (size > MAX_BODY_SIZE - bb.position()) {
+			throw new HTTPException("Body bigger than " + MAX_BODY_SIZE + " bytes");
+		}
+		var capacity = Math.max(bb.capacity(), 1);
+		while (capacity - bb.position() < size) {
+			capacity = (int) Math.min(2L * capacity, MAX_BODY_SIZE);
+		}
+		var newBuffer = ByteBuffer.allocate(capacity);
+		newBuffer.put(bb.flip());
+		return newBuffer;
+	}
+
 	public static void main(String[] args) throws IOException {
 		Charset charsetASCII = Charset.forName("ASCII");
 		String request = "GET / HTTP/1.1\r\n" + "Host: www.w3.org\r\n" + "\r\n";
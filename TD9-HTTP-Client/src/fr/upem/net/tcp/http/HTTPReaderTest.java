@@ -1,13 +1,20 @@
 package fr.upem.net.tcp.http;
 
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
 import static org.junit.jupiter.api.Assertions.*;
 
 import java.nio.ByteBuffer;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.net.InetSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
 import java.nio.channels.SocketChannel;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 
 
 /**
@@ -158,4 +165,115 @@ public class HTTPReaderTest {
             server.shutdown();
         }
     }
+
+    /**
+     * Test for readChunks with trailer fields
+     * @throws java.io.IOException
+     */
+    @Test
+    public void testReadChunksTrailers() throws IOException {
+        FakeHTTPServer server = new FakeHTTPServer("i\r\n5;name=value\r\npedia\r\n0\r\nExpires: never\r\n\r\n",4);
+        try {
+            server.serve();
+            SocketChannel sc = SocketChannel.open();
+            sc.connect(new InetSocketAddress("localhost", server.getPort()));
+            var buff = ByteBuffer.allocate(12);
+            buff.put("4\r\nWik".getBytes("ASCII"));
+            HTTPReader reader = new HTTPReader(sc, buff);
+            assertEquals("Wikipedia", StandardCharsets.US_ASCII.decode(reader.readChunks().flip()).toString());
+            assertEquals("never", reader.getTrailers().get("Expires"));
+        } finally {
+            server.shutdown();
+        }
+    }
+
+    /**
+     * Test for readChunks streaming in a channel
+     * @throws java.io.IOException
+     */
+    @Test
+    public void testReadChunksInChannel() throws IOException {
+        FakeHTTPServer server = new FakeHTTPServer("i\r\n5\r\npedia\r\nE\r\n in\r\n\r\nchunks.\r\n0\r\n\r\n",4);
+        try {
+            server.serve();
+            SocketChannel sc = SocketChannel.open();
+            sc.connect(new InetSocketAddress("localhost", server.getPort()));
+            var buff = ByteBuffer.allocate(12);
+            buff.put("4\r\nWik".getBytes("ASCII"));
+            HTTPReader reader = new HTTPReader(sc, buff);
+            var out = new ByteArrayOutputStream();
+            assertEquals(23, reader.readChunks(Channels.newChannel(out)));
+            assertEquals("Wikipedia in\r\n\r\nchunks.", out.toString("ASCII"));
+            assertTrue(reader.getTrailers().isEmpty());
+        } finally {
+            server.shutdown();
+        }
+    }
+
+    /**
+     * Test for readChunks with a chunk bigger than MAX_BODY_SIZE
+     * @throws java.io.IOException
+     */
+    @Test
+    public void testReadChunksTooBig() throws IOException {
+        FakeHTTPServer server = new FakeHTTPServer("pedia\r\n7fffffff\r\n",4);
+        try {
+            server.serve();
+            SocketChannel sc = SocketChannel.open();
+            sc.connect(new InetSocketAddress("localhost", server.getPort()));
+            var buff = ByteBuffer.allocate(12);
+            buff.put("4\r\nWik".getBytes("ASCII"));
+            HTTPReader reader = new HTTPReader(sc, buff);
+            assertThrows(HTTPException.class, reader::readChunks);
+        } finally {
+            server.shutdown();
+        }
+    }
+
+    /**
+     * Test for transferBody in a channel, the bytes following the body must not be read
+     * @throws java.io.IOException
+     */
+    @Test
+    public void testTransferBody() throws IOException {
+        FakeHTTPServer server = new FakeHTTPServer("DEFGHIJKLMNOPQRSTUVWXYZ",4);
+        try {
+            server.serve();
+            SocketChannel sc = SocketChannel.open();
+            sc.connect(new InetSocketAddress("localhost", server.getPort()));
+            var buff = ByteBuffer.allocate(12);
+            buff.put("ABC".getBytes("ASCII"));
+            HTTPReader reader = new HTTPReader(sc, buff);
+            var out = new ByteArrayOutputStream();
+            reader.transferBody(20, Channels.newChannel(out));
+            assertEquals("ABCDEFGHIJKLMNOPQRST", out.toString("ASCII"));
+            assertEquals("UVWXYZ", StandardCharsets.US_ASCII.decode(reader.readBytes(6).flip()).toString());
+        } finally {
+            server.shutdown();
+        }
+    }
+
+    /**
+     * Test for transferBody in a file
+     * @throws java.io.IOException
+     */
+    @Test
+    public void testTransferBodyInFile(@TempDir Path directory) throws IOException {
+        FakeHTTPServer server = new FakeHTTPServer("DEFGHIJKLMNOPQRSTUVWXYZ",4);
+        try {
+            server.serve();
+            SocketChannel sc = SocketChannel.open();
+            sc.connect(new InetSocketAddress("localhost", server.getPort()));
+            var buff = ByteBuffer.allocate(12);
+            buff.put("ABC".getBytes("ASCII"));
+            HTTPReader reader = new HTTPReader(sc, buff);
+            var file = directory.resolve("body");
+            try (var fc = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+                reader.transferBody(26, fc);
+            }
+            assertEquals("ABCDEFGHIJKLMNOPQRSTUVWXYZ", Files.readString(file));
+        } finally {
+            server.shutdown();
+        }
+    }
 }
@@ -0,0 +1,33 @@
+package fr.upem.net.tcp.http;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Class representing a complete HTTP response: its header and its body
+ */
+public class HTTPResponse {
+
+	private final HTTPHeader header;
+	private final ByteBuffer body;
+
+	public HTTPResponse(HTTPHeader header, ByteBuffer body) {
+		this.header = header;
+		this.body = body;
+	}
+
+	public HTTPHeader getHeader() {
+		return header;
+	}
+
+	/**
+	 * @return a ByteBuffer in write-mode containing the body of the response
+	 */
+	public ByteBuffer getBody() {
+		return body;
+	}
+
+	@Override
+	public String toString() {
+		return header + "\n" + body.position() + " bytes of body";
+	}
+}
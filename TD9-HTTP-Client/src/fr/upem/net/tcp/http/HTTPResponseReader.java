@@ -0,0 +1,254 @@
+package fr.upem.net.tcp.http;
+
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+
+import fr.upem.net.tcp.nonblocking.Reader;
+
+/**
+ * Non-blocking reader of a HTTP response (status line, header fields and
+ * body).
+ * <p>
+ * The body is read according to the Content-Length field or the chunked
+ * transfer encoding. A response with neither of them (204, 304, ...) is
+ * considered to have an empty body.
+ * <p>
+ * The convention is that bb is in write-mode before the call to process and
+ * after the call. The reader never consumes more bytes than the current
+ * response so several pipelined responses can be read from the same buffer.
+ */
+public class HTTPResponseReader implements Reader<HTTPResponse> {
+
+	private enum State {
+		DONE, WAITING_STATUS, WAITING_FIELDS, WAITING_BODY, WAITING_CHUNK_SIZE, WAITING_CHUNK_DATA,
+		WAITING_CHUNK_END, WAITING_TRAILER, ERROR
+	};
+
+	public static final int MAX_BODY_SIZE = 64 * 1024 * 1024;
+	private static final int INITIAL_BODY_SIZE = 1024;
+
+	private State state = State.WAITING_STATUS;
+	private final HTTPLineReader lineReader = new HTTPLineReader();
+	private final Map<String, String> fields = new HashMap<>();
+	private String statusLine;
+	private HTTPHeader header;
+	private ByteBuffer body; // write-mode
+	private int missing; // bytes left in the body or in the current chunk
+	private HTTPResponse response;
+
+	@Override
+	public ProcessStatus process(ByteBuffer bb) {
+		if (state == State.DONE || state == State.ERROR) {
+			throw new IllegalStateException();
+		}
+		for (;;) {
+			switch (state) {
+			case WAITING_STATUS:
+				if (!readLine(bb)) {
+					return statusOnIncompleteLine();
+				}
+				statusLine = lineReader.get();
+				lineReader.reset();
+				state = State.WAITING_FIELDS;
+				break;
+
+			case WAITING_FIELDS:
+				if (!readLine(bb)) {
+					return statusOnIncompleteLine();
+				}
+				var line = lineReader.get();
+				lineReader.reset();
+				if (!line.isEmpty()) {
+					var token = line.split(": ", 2);
+					if (token.length != 2) {
+						return error();
+					}
+					fields.merge(token[0], token[1], (oldValue, newValue) -> oldValue + ";" + newValue);
+					break;
+				}
+				if (!startBody()) {
+					return error();
+				}
+				break;
+
+			case WAITING_BODY:
+				transfer(bb);
+				if (missing > 0) {
+					return ProcessStatus.REFILL;
+				}
+				return done();
+
+			case WAITING_CHUNK_SIZE:
+				if (!readLine(bb)) {
+					return statusOnIncompleteLine();
+				}
+				var sizeString = lineReader.get();
+				lineReader.reset();
+				var extension = sizeString.indexOf(';'); // chunk-ext are ignored
+				if (extension != -1) {
+					sizeString = sizeString.substring(0, extension);
+				}
+				int sizeChunk;
+				try {
+					sizeChunk = Integer.parseInt(sizeString.trim(), HTTPReader.HEXA_BASE);
+				} catch (NumberFormatException e) {
+					return error();
+				}
+				if (sizeChunk < 0 || sizeChunk > MAX_BODY_SIZE - body.position()) {
+					return error();
+				}
+				if (sizeChunk == 0) {
+					state = State.WAITING_TRAILER;
+					break;
+				}
+				ensureRemaining(sizeChunk);
+				missing = sizeChunk;
+				state = State.WAITING_CHUNK_DATA;
+				break;
+
+			case WAITING_CHUNK_DATA:
+				transfer(bb);
+				if (missing > 0) {
+					return ProcessStatus.REFILL;
+				}
+				state = State.WAITING_CHUNK_END;
+				break;
+
+			case WAITING_CHUNK_END:
+				if (!readLine(bb)) {
+					return statusOnIncompleteLine();
+				}
+				var empty = lineReader.get().isEmpty();
+				lineReader.reset();
+				if (!empty) {
+					return error();
+				}
+				state = State.WAITING_CHUNK_SIZE;
+				break;
+
+			case WAITING_TRAILER:
+				if (!readLine(bb)) {
+					return statusOnIncompleteLine();
+				}
+				var trailer = lineReader.get();
+				lineReader.reset();
+				if (trailer.isEmpty()) {
+					return done();
+				}
+				break;
+
+			default:
+				throw new IllegalStateException("Unexpected state: " + state);
+			}
+		}
+	}
+
+	/**
+	 * Parses the header read so far and decides how the body must be read
+	 *
+	 * @return false if the header is ill-formed
+	 */
+	private boolean startBody() {
+		int contentLength;
+		try {
+			header = HTTPHeader.create(statusLine, fields);
+			contentLength = header.getContentLength();
+		} catch (HTTPException e) {
+			return false;
+		}
+		if (header.isChunkedTransfer()) {
+			body = ByteBuffer.allocate(INITIAL_BODY_SIZE);
+			state = State.WAITING_CHUNK_SIZE;
+			return true;
+		}
+		if (contentLength > MAX_BODY_SIZE) {
+			return false;
+		}
+		missing = Math.max(contentLength, 0);
+		body = ByteBuffer.allocate(missing);
+		state = State.WAITING_BODY;
+		return true;
+	}
+
+	private boolean readLine(ByteBuffer bb) {
+		var status = lineReader.process(bb);
+		if (status == ProcessStatus.ERROR) {
+			state = State.ERROR;
+		}
+		return status == ProcessStatus.DONE;
+	}
+
+	private ProcessStatus statusOnIncompleteLine() {
+		return state == State.ERROR ? ProcessStatus.ERROR : ProcessStatus.REFILL;
+	}
+
+	/**
+	 * Moves at most missing bytes from bb to body in one bulk copy
+	 */
+	private void transfer(ByteBuffer bb) {
+		bb.flip();
+		try {
+			if (bb.remaining() <= missing) {
+				missing -= bb.remaining();
+				body.put(bb);
+			} else {
+				var oldLimit = bb.limit();
+				bb.limit(bb.position() + missing);
+				body.put(bb);
+				bb.limit(oldLimit);
+				missing = 0;
+			}
+		} finally {
+			bb.compact();
+		}
+	}
+
+	/**
+	 * Grows body (by doubling its capacity) until it can receive size more bytes
+	 */
+	private void ensureRemaining(int size) {
+		if (body.remaining() >= size) {
+			return;
+		}
+		var capacity = Math.max(body.capacity(), 1);
+		while (capacity - body.position() < size) {
+			capacity = (int) Math.min(2L * capacity, MAX_BODY_SIZE);
+		}
+		var newBody = ByteBuffer.allocate(capacity);
+		body.flip();
+		newBody.put(body);
+		body = newBody;
+	}
+
+	private ProcessStatus done() {
+		response = new HTTPResponse(header, body);
+		state = State.DONE;
+		return ProcessStatus.DONE;
+	}
+
+	private ProcessStatus error() {
+		state = State.ERROR;
+		return ProcessStatus.ERROR;
+	}
+
+	@Override
+	public HTTPResponse get() {
+		if (state != State.DONE) {
+			throw new IllegalStateException();
+		}
+		return response;
+	}
+
+	@Override
+	public void reset() {
+		state = State.WAITING_STATUS;
+		lineReader.reset();
+		fields.clear();
+		statusLine = null;
+		header = null;
+		body = null; // for garbage collector, the body belongs to the response
+		missing = 0;
+		response = null;
+	}
+}
@@ -0,0 +1,101 @@
+package fr.upem.net.tcp.http;
+
+import fr.upem.net.tcp.nonblocking.Reader;
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ *
+ * <p>
+ * Tests suit for the class HTTPResponseReader
+ */
+public class HTTPResponseReaderTest {
+
+    private static String bodyOf(HTTPResponse response) {
+        return StandardCharsets.US_ASCII.decode(response.getBody().flip()).toString();
+    }
+
+    @Test
+    public void contentLength() {
+        var bb = ByteBuffer.allocate(1024);
+        bb.put("HTTP/1.1 200 OK\r\nContent-Length: 5\r\nContent-Type: text/html\r\n\r\nHelloNEXT".getBytes(StandardCharsets.US_ASCII));
+        var reader = new HTTPResponseReader();
+        assertEquals(Reader.ProcessStatus.DONE, reader.process(bb));
+        var response = reader.get();
+        assertEquals(200, response.getHeader().getCode());
+        assertEquals("text/html", response.getHeader().getContentType());
+        assertEquals("Hello", bodyOf(response));
+        assertEquals(4, bb.position());
+        assertEquals(bb.capacity(), bb.limit());
+    }
+
+    @Test
+    public void chunked() {
+        var bb = ByteBuffer.allocate(1024);
+        bb.put(("HTTP/1.1 200 OK\r\nTransfer-Encoding: chunked\r\n\r\n"
+                + "4\r\nWiki\r\n5;ext=1\r\npedia\r\nE\r\n in\r\n\r\nchunks.\r\n0\r\nExpires: never\r\n\r\n")
+                .getBytes(StandardCharsets.US_ASCII));
+        var reader = new HTTPResponseReader();
+        assertEquals(Reader.ProcessStatus.DONE, reader.process(bb));
+        assertEquals("Wikipedia in\r\n\r\nchunks.", bodyOf(reader.get()));
+        assertEquals(0, bb.position());
+    }
+
+    @Test
+    public void smallBuffer() {
+        var bytes = ByteBuffer.wrap(("HTTP/1.1 200 OK\r\nTransfer-Encoding: chunked\r\n\r\n"
+                + "4\r\nWiki\r\n5\r\npedia\r\n0\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+        var bbSmall = ByteBuffer.allocate(3);
+        var reader = new HTTPResponseReader();
+        while (bytes.hasRemaining()) {
+            while (bytes.hasRemaining() && bbSmall.hasRemaining()) {
+                bbSmall.put(bytes.get());
+            }
+            if (bytes.hasRemaining()) {
+                assertEquals(Reader.ProcessStatus.REFILL, reader.process(bbSmall));
+            } else {
+                assertEquals(Reader.ProcessStatus.DONE, reader.process(bbSmall));
+            }
+        }
+        assertEquals("Wikipedia", bodyOf(reader.get()));
+    }
+
+    @Test
+    public void pipelined() {
+        var bb = ByteBuffer.allocate(1024);
+        bb.put(("HTTP/1.1 204 No Content\r\n\r\n"
+                + "HTTP/1.1 200 OK\r\nContent-Length: 2\r\n\r\nOK").getBytes(StandardCharsets.US_ASCII));
+        var reader = new HTTPResponseReader();
+        assertEquals(Reader.ProcessStatus.DONE, reader.process(bb));
+        assertEquals(204, reader.get().getHeader().getCode());
+        assertEquals("", bodyOf(reader.get()));
+        reader.reset();
+        assertEquals(Reader.ProcessStatus.DONE, reader.process(bb));
+        assertEquals("OK", bodyOf(reader.get()));
+        assertEquals(0, bb.position());
+    }
+
+    @Test
+    public void errorGet() {
+        var reader = new HTTPResponseReader();
+        assertThrows(IllegalStateException.class, () -> reader.get());
+    }
+
+    @Test
+    public void errorBadHeader() {
+        var bb = ByteBuffer.allocate(1024);
+        bb.put("HTTP/1.1 200 OK\r\nContent-Length 5\r\n\r\n".getBytes(StandardCharsets.US_ASCII));
+        assertEquals(Reader.ProcessStatus.ERROR, new HTTPResponseReader().process(bb));
+    }
+
+    @Test
+    public void errorBadChunkSize() {
+        var bb = ByteBuffer.allocate(1024);
+        bb.put("HTTP/1.1 200 OK\r\nTransfer-Encoding: chunked\r\n\r\nZZ\r\n".getBytes(StandardCharsets.US_ASCII));
+        assertEquals(Reader.ProcessStatus.ERROR, new HTTPResponseReader().process(bb));
+    }
+}